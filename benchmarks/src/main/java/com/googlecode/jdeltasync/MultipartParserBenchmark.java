@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.descriptor.BodyDescriptor;
+import org.apache.james.mime4j.message.SimpleContentHandler;
+import org.apache.james.mime4j.parser.MimeStreamParser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.jdeltasync.hu01.HU01DecompressorOutputStream;
+import com.googlecode.jdeltasync.hu01.HU01Fixtures;
+
+/**
+ * Compares {@link MultipartParser} with the mime4j {@link MimeStreamParser}
+ * it replaced in <code>DeltaSyncClient.downloadMessageContent()</code>. Each
+ * operation parses an MTOM/XOP <code>ItemOperations</code> response wrapping
+ * the HU01 compressed data of a fixture (see {@link HU01Fixtures}). The XML
+ * part is parsed into a DOM and the binary part is either just drained
+ * (<code>decompress=false</code>) or decompressed. The
+ * <code>responseBytes</code> counter reports the throughput in response
+ * bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultipartParserBenchmark {
+
+    private static final String BOUNDARY = "--MIMEBoundary8cd2a1b1c1d9b40";
+
+    @Param({"test1", "test6", "large-1"})
+    public String fixture;
+
+    @Param({"false", "true"})
+    public boolean decompress;
+
+    private byte[] response;
+
+    /**
+     * Counts the number of response bytes parsed. Reported as a rate by JMH.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long responseBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            responseBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<ItemOperations xmlns=\"ItemOperations:\"><Status>1</Status><Responses><Fetch>"
+            + "<ServerId>00000000-0000-0000-0000-000000000001</ServerId><Status>1</Status>"
+            + "<Properties><Data><xop:Include href=\"cid:1.urn:uuid:2\" "
+            + "xmlns:xop=\"http://www.w3.org/2004/08/xop/include\"/></Data></Properties>"
+            + "</Fetch></Responses></ItemOperations>";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/related; type=\"application/xop+xml\"; "
+            + "boundary=\"" + BOUNDARY + "\"; start=\"<0.urn:uuid:1>\"\r\n"
+            + "\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-ID: <0.urn:uuid:1>\r\n"
+            + "Content-Type: application/xop+xml; charset=utf-8; type=\"text/xml\"\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + xml + "\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-ID: <1.urn:uuid:2>\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n").getBytes("UTF-8"));
+        out.write(HU01Fixtures.load(fixture));
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+        response = out.toByteArray();
+    }
+
+    @Benchmark
+    public Object multipartParser(Counters counters) throws Exception {
+        final Object[] result = new Object[1];
+        MultipartParser.parse(new ByteArrayInputStream(response), new MultipartParser.PartHandler() {
+            public void part(String mimeType, String contentId, InputStream is) throws DeltaSyncException, IOException {
+                if ("application/xop+xml".equals(mimeType)) {
+                    result[0] = XmlUtil.parse(is);
+                } else if ("application/octet-stream".equals(mimeType)) {
+                    OutputStream out = sink();
+                    MultipartParser.copy(is, out);
+                    out.flush();
+                }
+            }
+        });
+        counters.responseBytes += response.length;
+        return result[0];
+    }
+
+    @Benchmark
+    public Object mime4j(Counters counters) throws IOException, MimeException {
+        final Object[] result = new Object[1];
+        MimeStreamParser parser = new MimeStreamParser();
+        parser.setContentHandler(new SimpleContentHandler() {
+            @Override
+            public void headers(org.apache.james.mime4j.message.Header header) {
+            }
+
+            @Override
+            public void bodyDecoded(BodyDescriptor bd, InputStream is) throws IOException {
+                if ("application/xop+xml".equals(bd.getMimeType())) {
+                    try {
+                        result[0] = XmlUtil.parse(is);
+                    } catch (XmlException e) {
+                        result[0] = e;
+                    }
+                } else if ("application/octet-stream".equals(bd.getMimeType())) {
+                    OutputStream out = sink();
+                    byte[] buffer = new byte[4096];
+                    int n = 0;
+                    while ((n = is.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                    out.flush();
+                }
+            }
+        });
+        parser.parse(new ByteArrayInputStream(response));
+        counters.responseBytes += response.length;
+        return result[0];
+    }
+
+    private OutputStream sink() {
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        return decompress ? new HU01DecompressorOutputStream(out) : out;
+    }
+}
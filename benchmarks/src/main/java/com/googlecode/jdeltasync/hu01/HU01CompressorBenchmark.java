@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the compression throughput and ratio of {@link HU01Compressor}.
+ * Each operation compresses the decompressed data of a whole fixture (see
+ * {@link HU01Fixtures}). The <code>plainBytes</code> counter reports the
+ * throughput in uncompressed bytes per second. The compression ratio is
+ * <code>compressedBytes / plainBytes</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HU01CompressorBenchmark {
+
+    @Param({"test1", "test5", "test6", "test7", "large-1"})
+    public String fixture;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"16384", "65536"})
+    public int blockSize;
+
+    private byte[] plain;
+    private HU01Compressor compressor;
+
+    /**
+     * Counts the number of compressed and uncompressed bytes. Reported as
+     * rates by JMH.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long plainBytes;
+        public long compressedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            plainBytes = 0;
+            compressedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        plain = HU01Fixtures.plain(fixture);
+        compressor = new HU01Compressor(level, blockSize);
+    }
+
+    @Benchmark
+    public byte[] compressor(Counters counters) {
+        byte[] compressed = compressor.compress(plain);
+        counters.plainBytes += plain.length;
+        counters.compressedBytes += compressed.length;
+        return compressed;
+    }
+}
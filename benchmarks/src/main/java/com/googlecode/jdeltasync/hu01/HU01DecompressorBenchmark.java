@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the decompression throughput of {@link HU01Decompressor} (with and
+ * without an executor decompressing blocks concurrently),
+ * {@link HU01DecompressorInputStream} and {@link HU01DecompressorOutputStream}.
+ * Each operation decompresses a whole fixture (see {@link HU01Fixtures}),
+ * feeding and draining it <code>bufferSize</code> bytes at a time. The
+ * <code>decompressedBytes</code> counter reports the throughput in
+ * decompressed bytes per second. Run with <code>-prof gc</code> to get the
+ * allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HU01DecompressorBenchmark {
+
+    @Param({"test1", "test5", "test6", "test7", "large-1", "large-16"})
+    public String fixture;
+
+    /**
+     * 1024 is the default buffer size of {@link HU01DecompressorOutputStream}.
+     * 4096 is the buffer size used by <code>DeltaSyncClient</code> and the
+     * initial input buffer size of {@link HU01Decompressor}.
+     */
+    @Param({"1024", "4096"})
+    public int bufferSize;
+
+    private byte[] compressed;
+    private long decompressedSize;
+    private byte[] buffer;
+    private HU01DecompressorPool pool;
+    private HU01DecodeTableCache tableCache;
+
+    /**
+     * Counts the number of decompressed bytes. Reported as a rate by JMH.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long decompressedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            decompressedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        compressed = HU01Fixtures.load(fixture);
+        decompressedSize = HU01Fixtures.decompressedSize(compressed);
+        buffer = new byte[bufferSize];
+        pool = new HU01DecompressorPool(1, bufferSize, HU01Decompressor.DEFAULT_MAX_BLOCK_SIZE);
+        tableCache = new HU01DecodeTableCache(64);
+    }
+
+    /**
+     * Shared executor for {@link HU01DecompressorBenchmark#parallelDecompressor}.
+     */
+    @State(Scope.Benchmark)
+    public static class Parallel {
+        @Param({"4"})
+        public int threads;
+
+        public ExecutorService executor;
+
+        @Setup
+        public void setup() {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long decompressor(Counters counters) throws HU01Exception {
+        return decompress(counters, new HU01Decompressor(bufferSize));
+    }
+
+    /**
+     * Like {@link #decompressor} but decodes two literals per lookup.
+     */
+    @Benchmark
+    public long multiSymbolDecompressor(Counters counters) throws HU01Exception {
+        HU01Decompressor decompressor = new HU01Decompressor(bufferSize);
+        decompressor.setMultiSymbolDecoding(true);
+        return decompress(counters, decompressor);
+    }
+
+    /**
+     * Like {@link #decompressor} but without CRC verification.
+     */
+    @Benchmark
+    public long decompressorNoCrc(Counters counters) throws HU01Exception {
+        HU01Decompressor decompressor = new HU01Decompressor(bufferSize);
+        decompressor.setVerifyCrc(false);
+        return decompress(counters, decompressor);
+    }
+
+    /**
+     * Like {@link #decompressor} but reuses a pooled decompressor. Compare 
+     * the allocation rates reported by <code>-prof gc</code>.
+     */
+    @Benchmark
+    public long pooledDecompressor(Counters counters) throws HU01Exception {
+        HU01Decompressor decompressor = pool.borrow();
+        try {
+            return decompress(counters, decompressor);
+        } finally {
+            pool.release(decompressor);
+        }
+    }
+
+    /**
+     * Like {@link #decompressor} but looks up the decode tables in a cache.
+     * After the first operation every table is found in the cache.
+     */
+    @Benchmark
+    public long cachedDecompressor(Counters counters) throws HU01Exception {
+        HU01Decompressor decompressor = new HU01Decompressor(bufferSize);
+        decompressor.setDecodeTableCache(tableCache);
+        return decompress(counters, decompressor);
+    }
+
+    @Benchmark
+    public long parallelDecompressor(Counters counters, Parallel parallel) throws HU01Exception {
+        HU01Decompressor decompressor = new HU01Decompressor(bufferSize);
+        decompressor.setExecutor(parallel.executor, parallel.threads);
+        return decompress(counters, decompressor);
+    }
+
+    private long decompress(Counters counters, HU01Decompressor decompressor) throws HU01Exception {
+        byte[] output = buffer;
+        long total = 0;
+        int off = 0;
+        while (!decompressor.finished()) {
+            int n = decompressor.decompress(output);
+            if (n > 0) {
+                total += n;
+            } else if (n == 0) {
+                if (off == compressed.length) {
+                    throw new HU01Exception("Unexpected end of input");
+                }
+                int len = Math.min(bufferSize, compressed.length - off);
+                decompressor.addInput(compressed, off, len);
+                off += len;
+            }
+        }
+        return count(counters, total);
+    }
+
+    @Benchmark
+    public long byteBuffer(Counters counters) throws HU01Exception {
+        HU01Decompressor decompressor = new HU01Decompressor(bufferSize);
+        ByteBuffer dst = ByteBuffer.wrap(buffer);
+        long total = 0;
+        for (int off = 0; off < compressed.length; off += bufferSize) {
+            ByteBuffer src = ByteBuffer.wrap(compressed, off, Math.min(bufferSize, compressed.length - off));
+            do {
+                dst.clear();
+                total += Math.max(0, decompressor.decompress(src, dst));
+            } while (src.hasRemaining() && !decompressor.finished());
+        }
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        int n = 0;
+        while (!decompressor.finished()) {
+            dst.clear();
+            if ((n = decompressor.decompress(empty, dst)) <= 0) {
+                throw new HU01Exception("Unexpected end of input");
+            }
+            total += n;
+        }
+        return count(counters, total);
+    }
+
+    @Benchmark
+    public long inputStream(Counters counters) throws IOException {
+        InputStream in = new HU01DecompressorInputStream(
+                new ByteArrayInputStream(compressed), new HU01Decompressor(bufferSize), bufferSize);
+        long total = 0;
+        int n = 0;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        in.close();
+        return count(counters, total);
+    }
+
+    @Benchmark
+    public long outputStream(Counters counters, Blackhole blackhole) throws IOException {
+        CountingOutputStream sink = new CountingOutputStream(blackhole);
+        OutputStream out = new HU01DecompressorOutputStream(sink, new HU01Decompressor(bufferSize), bufferSize);
+        for (int off = 0; off < compressed.length; off += bufferSize) {
+            out.write(compressed, off, Math.min(bufferSize, compressed.length - off));
+        }
+        out.close();
+        return count(counters, sink.count);
+    }
+
+    private long count(Counters counters, long total) {
+        if (total != decompressedSize) {
+            throw new IllegalStateException("Expected " + decompressedSize
+                    + " decompressed bytes. Got " + total + ".");
+        }
+        counters.decompressedBytes += total;
+        return total;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+        private long count;
+
+        public CountingOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            count += len;
+        }
+    }
+}
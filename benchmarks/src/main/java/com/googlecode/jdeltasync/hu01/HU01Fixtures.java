@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Loads the HU01 fixtures used by the benchmarks. The fixtures are the
+ * <code>test1..test7</code> files used by the unit tests. Large synthetic
+ * fixtures are created by repeating the SCBH blocks of the larger test
+ * files behind a new HU01 header.
+ */
+public class HU01Fixtures {
+
+    /**
+     * The fixtures used by the benchmarks. <code>large-N</code> is a
+     * synthetic stream which decompresses to about N MB.
+     */
+    public static final String[] NAMES = {
+        "test1", "test2", "test3", "test4", "test5", "test6", "test7", "large-1", "large-16"
+    };
+
+    private static final String[] LARGE_SOURCES = {"test5", "test6", "test7"};
+
+    /**
+     * Returns the HU01 compressed data of the fixture with the specified name.
+     *
+     * @param name the name of the fixture.
+     * @return the compressed data.
+     * @throws IOException on I/O errors.
+     */
+    public static byte[] load(String name) throws IOException {
+        if (name.startsWith("large-")) {
+            return large(Integer.parseInt(name.substring("large-".length())) * 1024 * 1024);
+        }
+        return resource(name + ".hu01");
+    }
+
+    /**
+     * Returns the decompressed size of the specified HU01 compressed data.
+     *
+     * @param hu01 the compressed data.
+     * @return the decompressed size.
+     */
+    public static long decompressedSize(byte[] hu01) {
+        return ByteBuffer.wrap(hu01).order(ByteOrder.LITTLE_ENDIAN).getInt(32) & 0xffffffffL;
+    }
+
+    /**
+     * Returns the decompressed data of the fixture with the specified name.
+     *
+     * @param name the name of the fixture.
+     * @return the decompressed data.
+     * @throws IOException on I/O errors.
+     */
+    public static byte[] plain(String name) throws IOException {
+        byte[] hu01 = load(name);
+        byte[] plain = new byte[(int) decompressedSize(hu01)];
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.addInput(hu01);
+        int off = 0;
+        int n = 0;
+        try {
+            while ((n = decompressor.decompress(plain, off, plain.length - off)) > 0) {
+                off += n;
+            }
+        } catch (HU01Exception e) {
+            throw (IOException) new IOException().initCause(e);
+        }
+        if (!decompressor.finished() || off != plain.length) {
+            throw new IOException("Fixture " + name + " is truncated");
+        }
+        return plain;
+    }
+
+    private static byte[] large(int minSize) throws IOException {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream(minSize / 2);
+        byte[] header = null;
+        long size = 0;
+        while (size < minSize) {
+            for (String name : LARGE_SOURCES) {
+                ByteBuffer b = ByteBuffer.wrap(resource(name + ".hu01")).order(ByteOrder.LITTLE_ENDIAN);
+                int headerSize = b.getInt(4);
+                if (header == null) {
+                    header = new byte[headerSize];
+                    b.get(header);
+                }
+                int pos = headerSize;
+                while (pos < b.limit()) {
+                    int blockHeaderSize = b.getInt(pos + 4);
+                    int decompressedBlockSize = b.getInt(pos + 8);
+                    int compressedBlockSize = b.getInt(pos + 16);
+                    blocks.write(b.array(), pos, blockHeaderSize + compressedBlockSize);
+                    size += decompressedBlockSize;
+                    pos += blockHeaderSize + compressedBlockSize;
+                }
+            }
+        }
+        ByteBuffer result = ByteBuffer.allocate(header.length + blocks.size()).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(header);
+        result.put(blocks.toByteArray());
+        result.putInt(32, (int) size);
+        return result.array();
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        InputStream in = HU01Fixtures.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Fixture " + name + " not found");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n = 0;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -20,9 +20,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Abstract {@link Store} implementation.
+ * Abstract {@link Store} implementation. Every method holds a lock private 
+ * to the user while it runs, so the {@link State} of a user is only accessed 
+ * by one thread at a time while different users never wait for each other. 
+ * Subclasses must do the same when they access a {@link State} outside of 
+ * the {@link Store} methods.
  */
 public abstract class AbstractStore implements Store {
     
@@ -33,10 +39,36 @@ public abstract class AbstractStore implements Store {
         public Map<String, String> messagesSyncKeys = new HashMap<String, String>();
         public Map<String, Folder> folders = new HashMap<String, Folder>();
         public Map<String, Map<String, Message>> messages = new HashMap<String, Map<String,Message>>();
+        public Map<String, Integer> windowSizes = new HashMap<String, Integer>();
     }
 
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    
+    /**
+     * Returns the {@link State} of the specified user. Always called while 
+     * holding the lock returned by {@link #getLock(String)}.
+     */
     protected abstract State getState(String username);
     
+    /**
+     * Returns the lock guarding the {@link State} of the specified user.
+     */
+    protected Object getLock(String username) {
+        Object lock = locks.get(username);
+        if (lock == null) {
+            lock = new Object();
+            Object existing = locks.putIfAbsent(username, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+    
+    /**
+     * Called after the {@link State} of a user has been changed. Called 
+     * while holding the lock returned by {@link #getLock(String)}.
+     */
     protected void stateChanged(String username, State state) {
     }
 
@@ -49,68 +81,113 @@ public abstract class AbstractStore implements Store {
         return map;
     }
     
+    private Map<String, Integer> getWindowSizesMap(State state) {
+        if (state.windowSizes == null) {
+            // State serialized before windowSizes was added
+            state.windowSizes = new HashMap<String, Integer>();
+        }
+        return state.windowSizes;
+    }
+    
     public String getFoldersSyncKey(String username) {
-        return getState(username).foldersSyncKey;
+        synchronized (getLock(username)) {
+            return getState(username).foldersSyncKey;
+        }
     }
     
     public String getMessagesSyncKey(String username, Folder folder) {
-        String syncKey = getState(username).messagesSyncKeys.get(folder.getId());
-        if (syncKey == null) {
-            syncKey = "0";
-            getState(username).messagesSyncKeys.put(folder.getId(), syncKey);
+        synchronized (getLock(username)) {
+            String syncKey = getState(username).messagesSyncKeys.get(folder.getId());
+            if (syncKey == null) {
+                syncKey = "0";
+                getState(username).messagesSyncKeys.put(folder.getId(), syncKey);
+            }
+            return syncKey;
         }
-        return syncKey;
     }
     
     public void updateFolders(String username, String syncKey,
             Collection<Folder> added, Collection<String> deleted) {
-
-        State state = getState(username);
-        state.foldersSyncKey = syncKey;
-        for (Folder folder : added) {
-            state.folders.put(folder.getId(), folder);
+        synchronized (getLock(username)) {
+            State state = getState(username);
+            state.foldersSyncKey = syncKey;
+            for (Folder folder : added) {
+                state.folders.put(folder.getId(), folder);
+            }
+            for (String id : deleted) {
+                state.folders.remove(id);
+            }
+            stateChanged(username, state);
         }
-        for (String id : deleted) {
-            state.folders.remove(id);
-        }
-        stateChanged(username, state);
     }
     
     public void resetFolders(String username) {
-        State state = getState(username);
-        state.foldersSyncKey = "0";
-        state.folders.clear();
-        stateChanged(username, state);
+        synchronized (getLock(username)) {
+            State state = getState(username);
+            state.foldersSyncKey = "0";
+            state.folders.clear();
+            stateChanged(username, state);
+        }
     }
     
     public void updateMessages(String username, Folder folder,
             String syncKey, Collection<Message> added,
             Collection<String> deleted) {
-
-        State state = getState(username);
-        state.messagesSyncKeys.put(folder.getId(), syncKey);
-        Map<String, Message> map = getMessagesMap(state, folder);
-        for (Message message : added) {
-            map.put(message.getId(), message);
+        synchronized (getLock(username)) {
+            State state = getState(username);
+            state.messagesSyncKeys.put(folder.getId(), syncKey);
+            Map<String, Message> map = getMessagesMap(state, folder);
+            for (Message message : added) {
+                map.put(message.getId(), message);
+            }
+            for (String id : deleted) {
+                map.remove(id);
+            }
+            stateChanged(username, state);
         }
-        for (String id : deleted) {
-            map.remove(id);
-        }
-        stateChanged(username, state);
     }
     
     public void resetMessages(String username, Folder folder) {
-        State state = getState(username);
-        state.messagesSyncKeys.put(folder.getId(), "0");
-        getMessagesMap(state, folder).clear();
-        stateChanged(username, state);
+        synchronized (getLock(username)) {
+            State state = getState(username);
+            state.messagesSyncKeys.put(folder.getId(), "0");
+            getMessagesMap(state, folder).clear();
+            stateChanged(username, state);
+        }
     }
     
     public Collection<Folder> getFolders(String username) {
-        return new ArrayList<Folder>(getState(username).folders.values());
+        synchronized (getLock(username)) {
+            return new ArrayList<Folder>(getState(username).folders.values());
+        }
     }
     
     public Collection<Message> getMessages(String username, Folder folder) {
-        return new ArrayList<Message>(getMessagesMap(getState(username), folder).values());
+        synchronized (getLock(username)) {
+            return new ArrayList<Message>(getMessagesMap(getState(username), folder).values());
+        }
+    }
+    
+    public int getWindowSize(String username, Folder folder) {
+        synchronized (getLock(username)) {
+            Integer windowSize = getWindowSizesMap(getState(username)).get(folder.getId());
+            return windowSize != null ? windowSize : 0;
+        }
+    }
+    
+    /**
+     * Remembers the <code>windowSize</code> for the specified {@link Folder}. 
+     * Doesn't call {@link #stateChanged(String, State)}. The value is saved 
+     * with the next change to the {@link State} which is normally the 
+     * {@link #updateMessages(String, Folder, String, Collection, Collection)} 
+     * call for the same page.
+     */
+    public void setWindowSize(String username, Folder folder, int windowSize) {
+        synchronized (getLock(username)) {
+            getWindowSizesMap(getState(username)).put(folder.getId(), windowSize);
+        }
+    }
+    
+    public void flush(String username) {
     }
 }
\ No newline at end of file
@@ -23,12 +23,19 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.ParseException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 
 import org.apache.commons.codec.binary.Base64OutputStream;
@@ -58,20 +65,21 @@ import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
-import org.apache.james.mime4j.MimeException;
-import org.apache.james.mime4j.descriptor.BodyDescriptor;
-import org.apache.james.mime4j.message.SimpleContentHandler;
-import org.apache.james.mime4j.parser.MimeStreamParser;
+import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import com.googlecode.jdeltasync.hu01.HU01DecodeTableCache;
+import com.googlecode.jdeltasync.hu01.HU01Decompressor;
 import com.googlecode.jdeltasync.hu01.HU01DecompressorOutputStream;
+import com.googlecode.jdeltasync.hu01.HU01DecompressorPipeline;
+import com.googlecode.jdeltasync.hu01.HU01DecompressorPool;
+import com.googlecode.jdeltasync.hu01.HU01DecompressorWritableByteChannel;
+import com.googlecode.jdeltasync.hu01.HU01DirectBufferPool;
 import com.googlecode.jdeltasync.hu01.HU01Exception;
 import com.googlecode.jdeltasync.message.Clazz;
 import com.googlecode.jdeltasync.message.Command;
-import com.googlecode.jdeltasync.message.EmailAddCommand;
 import com.googlecode.jdeltasync.message.EmailDeleteCommand;
-import com.googlecode.jdeltasync.message.FolderAddCommand;
 import com.googlecode.jdeltasync.message.FolderDeleteCommand;
 import com.googlecode.jdeltasync.message.SyncRequest;
 import com.googlecode.jdeltasync.message.SyncResponse;
@@ -93,6 +101,30 @@ public class DeltaSyncClient {
     private static final String DS_BASE_URI = "http://mail.services.live.com";
     private static final byte[] LINE_SEPARATOR;
     
+    private static final XmlUtil.Path SECURITY_PATH = XmlUtil.compile("/s:Envelope/s:Header/wsse:Security");
+    private static final XmlUtil.Path USERNAME_PATH = XmlUtil.compile("wsse:UsernameToken/wsse:Username");
+    private static final XmlUtil.Path PASSWORD_PATH = XmlUtil.compile("wsse:UsernameToken/wsse:Password");
+    private static final XmlUtil.Path CREATED_PATH = XmlUtil.compile("wsu:Timestamp/wsu:Created");
+    private static final XmlUtil.Path EXPIRES_PATH = XmlUtil.compile("wsu:Timestamp/wsu:Expires");
+    private static final XmlUtil.Path LOGIN_FAULT_PATH = XmlUtil.compile("/s:Envelope/s:Body/s:Fault");
+    private static final XmlUtil.Path LOGIN_FAULT_TEXT_PATH = XmlUtil.compile("/s:Envelope/s:Body/s:Fault/s:Reason/s:Text");
+    private static final String RSTR_PATH = "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/" 
+        + "wst:RequestSecurityTokenResponse/";
+    private static final XmlUtil.Path TICKET_PATH = XmlUtil.compile(RSTR_PATH 
+            + "wst:RequestedSecurityToken/wsse:BinarySecurityToken");
+    private static final XmlUtil.Path FLOW_URL_PATH = XmlUtil.compile(RSTR_PATH + "psf:pp/psf:flowurl");
+    private static final XmlUtil.Path REQUEST_STATUS_PATH = XmlUtil.compile(RSTR_PATH + "psf:pp/psf:reqstatus");
+    private static final XmlUtil.Path ERROR_STATUS_PATH = XmlUtil.compile(RSTR_PATH + "psf:pp/psf:errorstatus");
+    private static final XmlUtil.Path FETCH_STATUS_PATH = 
+        XmlUtil.compile("/itemop:ItemOperations/itemop:Responses/itemop:Fetch/itemop:Status");
+    private static final XmlUtil.Path FETCH_PATH = 
+        XmlUtil.compile("/itemop:ItemOperations/itemop:Responses/itemop:Fetch");
+    private static final XmlUtil.Path FETCH_ITEM_STATUS_PATH = XmlUtil.compile("itemop:Status");
+    private static final XmlUtil.Path FETCH_SERVER_ID_PATH = XmlUtil.compile("*:ServerId");
+    private static final XmlUtil.Path FETCH_INCLUDE_PATH = XmlUtil.compile("//xop:Include");
+    private static final XmlUtil.Path STATUS_PATH = XmlUtil.compile("*:Status");
+    private static final XmlUtil.Path FAULTSTRING_PATH = XmlUtil.compile("*:Fault/*:Faultstring");
+    
     static {
         try {
             LINE_SEPARATOR = System.getProperty("line.separator").getBytes("ASCII");
@@ -102,6 +134,13 @@ public class DeltaSyncClient {
     }
 
     private final HttpClient httpClient;
+    private ExecutorService decompressionExecutor;
+    private int maxBlocksInFlight;
+    private HU01DecompressorPool decompressorPool;
+    private HU01DecodeTableCache decodeTableCache;
+    private boolean verifyCrc = true;
+    private HU01DecompressorPipeline decompressorPipeline;
+    private HU01DirectBufferPool directBufferPool;
     
     /**
      * Creates a new {@link DeltaSyncClient} using a 
@@ -152,6 +191,85 @@ public class DeltaSyncClient {
         HttpConnectionParams.setSoTimeout(this.httpClient.getParams(), timeout);
     }
     
+    /**
+     * Sets the {@link ExecutorService} used to decompress the HU01 blocks of
+     * downloaded messages concurrently. By default blocks are decompressed
+     * one at a time on the thread downloading the message. See 
+     * {@link HU01Decompressor#setExecutor(ExecutorService, int)}.
+     * 
+     * @param executor the {@link ExecutorService} or <code>null</code> to 
+     *        decompress on the downloading thread.
+     * @param maxBlocksInFlight the maximum number of blocks of a single 
+     *        message being decompressed at the same time.
+     */
+    public void setDecompressionExecutor(ExecutorService executor, int maxBlocksInFlight) {
+        if (executor != null && maxBlocksInFlight <= 0) {
+            throw new IllegalArgumentException("maxBlocksInFlight");
+        }
+        this.decompressionExecutor = executor;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+    
+    /**
+     * Sets the {@link HU01DecompressorPool} downloads borrow 
+     * {@link HU01Decompressor}s from. By default a new 
+     * {@link HU01Decompressor} is created for every downloaded message.
+     * 
+     * @param pool the {@link HU01DecompressorPool} or <code>null</code> to
+     *        create a new {@link HU01Decompressor} for every message.
+     */
+    public void setDecompressorPool(HU01DecompressorPool pool) {
+        this.decompressorPool = pool;
+    }
+    
+    /**
+     * Sets the {@link HU01DecodeTableCache} shared by the 
+     * {@link HU01Decompressor}s decompressing downloaded messages. See
+     * {@link HU01Decompressor#setDecodeTableCache(HU01DecodeTableCache)}.
+     * 
+     * @param cache the {@link HU01DecodeTableCache} or <code>null</code> to
+     *        build the decode table of every block from scratch.
+     */
+    public void setDecodeTableCache(HU01DecodeTableCache cache) {
+        this.decodeTableCache = cache;
+    }
+    
+    /**
+     * Sets whether the CRCs of the HU01 blocks of downloaded messages are
+     * verified (the default). See {@link HU01Decompressor#setVerifyCrc(boolean)}.
+     * 
+     * @param verifyCrc <code>false</code> to skip CRC verification.
+     */
+    public void setVerifyCrc(boolean verifyCrc) {
+        this.verifyCrc = verifyCrc;
+    }
+    
+    /**
+     * Sets the {@link HU01DecompressorPipeline} used to overlap reading 
+     * downloaded messages from the network with decompressing them. By
+     * default reading and decompressing alternate on the downloading thread.
+     * 
+     * @param pipeline the {@link HU01DecompressorPipeline} or 
+     *        <code>null</code> to decompress on the downloading thread.
+     */
+    public void setDecompressorPipeline(HU01DecompressorPipeline pipeline) {
+        this.decompressorPipeline = pipeline;
+    }
+    
+    /**
+     * Sets the {@link HU01DirectBufferPool} the buffers of the 
+     * {@link HU01Decompressor}s decompressing downloaded messages are 
+     * acquired from. The buffers are returned to the pool when a download
+     * completes. By default heap buffers are used. See 
+     * {@link HU01Decompressor#setBufferPool(HU01DirectBufferPool)}.
+     * 
+     * @param pool the {@link HU01DirectBufferPool} or <code>null</code> to
+     *        use heap buffers.
+     */
+    public void setDirectBufferPool(HU01DirectBufferPool pool) {
+        this.directBufferPool = pool;
+    }
+    
     /**
      * Logs in using the specified username and password. Returns a 
      * {@link DeltaSyncSession} object on successful authentication. 
@@ -180,11 +298,11 @@ public class DeltaSyncClient {
         Date expires = new Date(created.getTime() + 5 * 60 * 1000);
         
         Document request = XmlUtil.parse(getClass().getResourceAsStream("login-request.xml"));
-        Element elSecurity = XmlUtil.getElement(request, "/s:Envelope/s:Header/wsse:Security");
-        XmlUtil.setTextContent(elSecurity, "wsse:UsernameToken/wsse:Username", username);
-        XmlUtil.setTextContent(elSecurity, "wsse:UsernameToken/wsse:Password", password);
-        XmlUtil.setTextContent(elSecurity, "wsu:Timestamp/wsu:Created", format.format(created));
-        XmlUtil.setTextContent(elSecurity, "wsu:Timestamp/wsu:Expires", format.format(expires));
+        Element elSecurity = SECURITY_PATH.getElement(request);
+        USERNAME_PATH.getElement(elSecurity).setTextContent(username);
+        PASSWORD_PATH.getElement(elSecurity).setTextContent(password);
+        CREATED_PATH.getElement(elSecurity).setTextContent(format.format(created));
+        EXPIRES_PATH.getElement(elSecurity).setTextContent(format.format(expires));
         
         DeltaSyncSession session = new DeltaSyncSession(username, password);
         
@@ -205,19 +323,15 @@ public class DeltaSyncClient {
         if (session.getLogger().isDebugEnabled()) {
             session.getLogger().debug("Received login response: {}", XmlUtil.toString(response, false));
         }
-        if (XmlUtil.hasElement(response, "/s:Envelope/s:Body/s:Fault")) {
-            throw new AuthenticationException(XmlUtil.getTextContent(response, "/s:Envelope/s:Body/s:Fault/s:Reason/s:Text"));
+        if (LOGIN_FAULT_PATH.getElement(response) != null) {
+            throw new AuthenticationException(LOGIN_FAULT_TEXT_PATH.getTextContent(response));
         }
         
-        String ticket = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/" 
-                + "wst:RequestSecurityTokenResponse/wst:RequestedSecurityToken/wsse:BinarySecurityToken");
+        String ticket = TICKET_PATH.getTextContent(response);
         if (ticket == null) {
-            String flowUrl = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/" 
-                    + "wst:RequestSecurityTokenResponse/psf:pp/psf:flowurl");
-            String requestStatus = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/" 
-                    + "wst:RequestSecurityTokenResponse/psf:pp/psf:reqstatus");
-            String errorStatus = XmlUtil.getTextContent(response, "/s:Envelope/s:Body/wst:RequestSecurityTokenResponseCollection/" 
-                    + "wst:RequestSecurityTokenResponse/psf:pp/psf:errorstatus");
+            String flowUrl = FLOW_URL_PATH.getTextContent(response);
+            String requestStatus = REQUEST_STATUS_PATH.getTextContent(response);
+            String errorStatus = ERROR_STATUS_PATH.getTextContent(response);
             if (flowUrl != null || requestStatus != null || errorStatus != null) {
                 throw new AuthenticationException(flowUrl, requestStatus, errorStatus);
             }
@@ -261,7 +375,7 @@ public class DeltaSyncClient {
     public void downloadRawMessageContent(DeltaSyncSession session, String messageId, OutputStream out) 
             throws DeltaSyncException, IOException {
         
-        downloadMessageContent(session, messageId, out, true);
+        downloadMessageContent(session, messageId, out, null, true);
     }
     
     /**
@@ -278,13 +392,34 @@ public class DeltaSyncClient {
     public void downloadMessageContent(DeltaSyncSession session, String messageId, OutputStream out) 
             throws DeltaSyncException, IOException {
         
-        downloadMessageContent(session, messageId, out, false);
+        downloadMessageContent(session, messageId, out, null, false);
     }
     
-    private void downloadMessageContent(final DeltaSyncSession session, 
-            final String messageId, final OutputStream output, final boolean raw) 
+    /**
+     * Downloads the content of the message with the specified id and writes it 
+     * to the specified {@link WritableByteChannel}, e.g. a {@code FileChannel}.
+     * The decompressed data is written to the channel from a buffer acquired 
+     * from the {@link HU01DirectBufferPool} set using 
+     * {@link #setDirectBufferPool(HU01DirectBufferPool)}, if any, without 
+     * being copied to a <code>byte[]</code> first. The channel isn't closed.
+     * 
+     * @param session the session.
+     * @param messageId the id of the message to download.
+     * @param out the channel to write the message content to.
+     * @throws SessionExpiredException if the session has expired.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     */
+    public void downloadMessageContent(DeltaSyncSession session, String messageId, WritableByteChannel out) 
             throws DeltaSyncException, IOException {
         
+        downloadMessageContent(session, messageId, null, out, false);
+    }
+    
+    private void downloadMessageContent(final DeltaSyncSession session, 
+            final String messageId, final OutputStream output, final WritableByteChannel channel, 
+            final boolean raw) throws DeltaSyncException, IOException {
+        
         String request = 
               "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">"
             +   "<Fetch>"
@@ -311,61 +446,25 @@ public class DeltaSyncClient {
                 }
                 
                 final Object[] result = new Object[1];
-                MimeStreamParser parser = new MimeStreamParser();
-                parser.setContentHandler(new SimpleContentHandler() {
-                    
-                    @Override
-                    public void headers(org.apache.james.mime4j.message.Header header) {
-                    }
-                    
-                    @Override
-                    public void bodyDecoded(BodyDescriptor bd, InputStream is)
-                            throws IOException {
-                        
-                        if ("application/xop+xml".equals(bd.getMimeType())) {
+                MultipartParser.PartHandler handler = new MultipartParser.PartHandler() {
+                    public void part(String mimeType, String contentId, InputStream is) throws IOException {
+                        if ("application/xop+xml".equals(mimeType)) {
                             try {
                                 result[0] = XmlUtil.parse(is);
                             } catch (XmlException e) {
                                 result[0] = e;
                             }
-                        } else if ("application/octet-stream".equals(bd.getMimeType())) {
-                            OutputStream out = output;
-                            if (!raw) {
-                                out = new HU01DecompressorOutputStream(output);
-                            }
-                            byte[] buffer = new byte[4096];
-                            int n = 0;
-                            while ((n = is.read(buffer)) != -1) {
-                                out.write(buffer, 0, n);
-                            }
-                            out.flush();
+                        } else if ("application/octet-stream".equals(mimeType)) {
+                            writeContent(is, output, channel, raw);
                         }
                     }
-                });
+                };
                 
                 try {
-                    parser.parse(response.getEntity().getContent());
-                } catch (MimeException e) {
-                    throw new DeltaSyncException("Failed to parse multipart xop+xml response", e);
+                    MultipartParser.parse(response.getEntity().getContent(), handler);
                 } catch (IOException e) {
                     if (e.getCause() != null && (e.getCause() instanceof HU01Exception)) {
-                        session.getLogger().error("HU01 decompression failed: ", e.getCause());
-                        session.getLogger().error("Dumping HU01 stream as BASE64 for message {}", messageId);
-                        session.getLogger().error("Please submit the BASE64 encoded message content");
-                        session.getLogger().error("and the plain text message content to the JDeltaSync");
-                        session.getLogger().error("issue tracker. The plain text message content can");
-                        session.getLogger().error("be retrieved by clicking \"View message source\" in");
-                        session.getLogger().error("the Hotmail web UI.");
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
-                        Base64OutputStream base64Out = new Base64OutputStream(baos, true, 72, LINE_SEPARATOR);
-                        try {
-                            downloadRawMessageContent(session, messageId, base64Out);
-                            base64Out.close();
-                            session.getLogger().error(new String(baos.toByteArray(), "ASCII"));
-                        } catch (Throwable t) {
-                            session.getLogger().error("Failed to dump HU01 stream", t);
-                        }
-                        throw (HU01Exception) e.getCause();
+                        throw dumpHU01Stream(session, messageId, (HU01Exception) e.getCause());
                     }
                     throw e;
                 }
@@ -384,8 +483,7 @@ public class DeltaSyncClient {
         
         checkStatus(response);
         // No general error in the response. Check for a specific <Fetch> error.
-        Element elStatus = XmlUtil.getElement(response, 
-                "/itemop:ItemOperations/itemop:Responses/itemop:Fetch/itemop:Status");
+        Element elStatus = FETCH_STATUS_PATH.getElement(response);
         if (elStatus == null) {
             throw new DeltaSyncException("No <Status> element found in <Fetch> response: " + XmlUtil.toString(response, true));            
         }
@@ -399,9 +497,298 @@ public class DeltaSyncClient {
         }
     }
 
+    /**
+     * Downloads the contents of the messages with the specified ids using a 
+     * single <code>ItemOperations</code> request containing one 
+     * <code>&lt;Fetch&gt;</code> per message. The content of each message is 
+     * written to a stream obtained from the specified 
+     * {@link MessageSinkFactory} as soon as it arrives. Fetching several small 
+     * messages this way costs one round trip instead of one per message. Ids 
+     * of messages which don't exist on the server are silently skipped.
+     * 
+     * @param session the session.
+     * @param messageIds the ids of the messages to download.
+     * @param sinkFactory the {@link MessageSinkFactory} which creates the 
+     *        streams the message contents are written to.
+     * @return the ids of the messages actually downloaded in the order they 
+     *         were requested.
+     * @throws SessionExpiredException if the session has expired.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     */
+    public String[] downloadMessageContents(final DeltaSyncSession session, 
+            final List<String> messageIds, final MessageSinkFactory sinkFactory) 
+            throws DeltaSyncException, IOException {
+        
+        if (messageIds.isEmpty()) {
+            return new String[0];
+        }
+        StringBuilder request = new StringBuilder(
+                "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">");
+        for (String messageId : messageIds) {
+            request.append("<Fetch>")
+                .append("<Class>Email</Class>")
+                .append("<A:ServerId>").append(messageId).append("</A:ServerId>")
+                .append("<A:Compression>hm-compression</A:Compression>")
+                .append("<A:ResponseContentType>mtom</A:ResponseContentType>")
+                .append("</Fetch>");
+        }
+        request.append("</ItemOperations>");
+        
+        final List<String> received = new ArrayList<String>();
+        Document response = itemOperations(session, request.toString(), new UriCapturingResponseHandler<Document>() {
+            public Document handle(URI uri, HttpResponse response)
+                    throws DeltaSyncException, IOException {
+
+                session.dsBaseUri = uri.getScheme() + "://" + uri.getHost();
+                
+                Header contentType = response.getFirstHeader("Content-Type");
+                if (contentType == null || !contentType.getValue().equals("application/xop+xml")) {
+                    if (contentType != null && contentType.getValue().equals("text/xml")) {
+                        // If we receive a text/xml response it means an error has occurred
+                        return XmlUtil.parse(response.getEntity().getContent());
+                    }
+                    throw new DeltaSyncException("Unexpected Content-Type received: " + contentType);
+                }
+                
+                final Document[] result = new Document[1];
+                // Content-ID -> message id and the ids of the successful fetches without a Content-ID
+                final Map<String, String> byContentId = new HashMap<String, String>();
+                final LinkedList<String> byOrder = new LinkedList<String>();
+                final String[] current = new String[1];
+                MultipartParser.PartHandler handler = new MultipartParser.PartHandler() {
+                    public void part(String mimeType, String contentId, InputStream is) 
+                            throws DeltaSyncException, IOException {
+                        
+                        if ("application/xop+xml".equals(mimeType)) {
+                            result[0] = XmlUtil.parse(is);
+                            List<Element> fetches = FETCH_PATH.getElements(result[0]);
+                            for (int i = 0; i < fetches.size(); i++) {
+                                Element fetch = fetches.get(i);
+                                if (!"1".equals(FETCH_ITEM_STATUS_PATH.getTextContent(fetch))) {
+                                    continue;
+                                }
+                                String id = FETCH_SERVER_ID_PATH.getTextContent(fetch);
+                                if (id == null && i < messageIds.size()) {
+                                    // Responses are in the same order as the requests
+                                    id = messageIds.get(i);
+                                }
+                                Element include = FETCH_INCLUDE_PATH.getElement(fetch);
+                                String href = include != null ? include.getAttribute("href") : "";
+                                if (href.startsWith("cid:")) {
+                                    byContentId.put(URLDecoder.decode(href.substring(4), "UTF-8"), id);
+                                } else {
+                                    byOrder.add(id);
+                                }
+                            }
+                        } else if ("application/octet-stream".equals(mimeType)) {
+                            if (result[0] == null) {
+                                throw new DeltaSyncException("Message content received before " 
+                                        + "the <ItemOperations> response");
+                            }
+                            String id = contentId != null ? byContentId.remove(contentId) : null;
+                            if (id == null) {
+                                if (byOrder.isEmpty()) {
+                                    throw new DeltaSyncException("Unexpected message content with " 
+                                            + "Content-ID " + contentId + " received");
+                                }
+                                id = byOrder.removeFirst();
+                            }
+                            current[0] = id;
+                            OutputStream out = sinkFactory.open(id);
+                            boolean complete = false;
+                            try {
+                                writeContent(is, out, null, false);
+                                complete = true;
+                            } finally {
+                                sinkFactory.close(id, out, complete);
+                            }
+                            received.add(id);
+                        }
+                    }
+                };
+                
+                try {
+                    MultipartParser.parse(response.getEntity().getContent(), handler);
+                } catch (IOException e) {
+                    if (e.getCause() != null && (e.getCause() instanceof HU01Exception)) {
+                        throw dumpHU01Stream(session, current[0], (HU01Exception) e.getCause());
+                    }
+                    throw e;
+                }
+                
+                return result[0];
+            }
+        });
+        
+        if (session.getLogger().isDebugEnabled()) {
+            session.getLogger().debug("Received ItemOperations response: {}", 
+                    XmlUtil.toString(response, false));
+        }
+        
+        checkStatus(response);
+        List<String> downloaded = new ArrayList<String>();
+        List<Element> fetches = FETCH_PATH.getElements(response);
+        for (int i = 0; i < fetches.size(); i++) {
+            Element fetch = fetches.get(i);
+            String status = FETCH_ITEM_STATUS_PATH.getTextContent(fetch);
+            if (status == null) {
+                throw new DeltaSyncException("No <Status> element found in <Fetch> response: " 
+                        + XmlUtil.toString(response, true));            
+            }
+            int code = Integer.parseInt(status);
+            if (code == 1) {
+                String id = FETCH_SERVER_ID_PATH.getTextContent(fetch);
+                if (id == null && i < messageIds.size()) {
+                    id = messageIds.get(i);
+                }
+                if (!received.contains(id)) {
+                    throw new DeltaSyncException("No content received for message " + id);
+                }
+                downloaded.add(id);
+            } else if (code != 4403) {
+                throw new UnrecognizedErrorCodeException(code, 
+                        "Unrecognized error code in response for <Fetch> request. Response was: "
+                        + XmlUtil.toString(response, true));
+            }
+        }
+        return downloaded.toArray(new String[downloaded.size()]);
+    }
+    
+    /**
+     * Writes the HU01 compressed message content read from <code>is</code> to 
+     * <code>output</code> or <code>channel</code>, decompressing it unless 
+     * <code>raw</code> is <code>true</code>.
+     */
+    private void writeContent(InputStream is, OutputStream output, 
+            WritableByteChannel channel, boolean raw) throws IOException {
+        
+        OutputStream out = output;
+        HU01DecompressorPool pool = decompressorPool;
+        HU01DirectBufferPool bufferPool = directBufferPool;
+        HU01Decompressor decompressor = null;
+        ByteBuffer channelBuffer = null;
+        if (!raw) {
+            decompressor = pool != null ? pool.borrow() : new HU01Decompressor();
+            decompressor.setExecutor(decompressionExecutor, maxBlocksInFlight);
+            decompressor.setDecodeTableCache(decodeTableCache);
+            decompressor.setVerifyCrc(verifyCrc);
+            decompressor.setBufferPool(bufferPool);
+            if (channel != null) {
+                channelBuffer = bufferPool != null 
+                    ? bufferPool.acquire(65536) : ByteBuffer.allocate(65536);
+                out = Channels.newOutputStream(
+                        new HU01DecompressorWritableByteChannel(channel, decompressor, channelBuffer));
+            } else {
+                out = new HU01DecompressorOutputStream(output, decompressor);
+            }
+        }
+        try {
+            HU01DecompressorPipeline pipeline = decompressorPipeline;
+            if (!raw && pipeline != null) {
+                pipeline.transfer(is, out);
+            } else {
+                MultipartParser.copy(is, out);
+            }
+            out.flush();
+        } finally {
+            if (decompressor != null) {
+                decompressor.end();
+                if (bufferPool != null) {
+                    bufferPool.release(channelBuffer);
+                }
+                if (pool != null) {
+                    pool.release(decompressor);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Logs a failed HU01 decompression and dumps the raw content of the 
+     * message to the log. Returns the {@link HU01Exception} to be rethrown.
+     */
+    private HU01Exception dumpHU01Stream(DeltaSyncSession session, String messageId, HU01Exception e) {
+        session.getLogger().error("HU01 decompression failed: ", e);
+        session.getLogger().error("Dumping HU01 stream as BASE64 for message {}", messageId);
+        session.getLogger().error("Please submit the BASE64 encoded message content");
+        session.getLogger().error("and the plain text message content to the JDeltaSync");
+        session.getLogger().error("issue tracker. The plain text message content can");
+        session.getLogger().error("be retrieved by clicking \"View message source\" in");
+        session.getLogger().error("the Hotmail web UI.");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+        Base64OutputStream base64Out = new Base64OutputStream(baos, true, 72, LINE_SEPARATOR);
+        try {
+            downloadRawMessageContent(session, messageId, base64Out);
+            base64Out.close();
+            session.getLogger().error(new String(baos.toByteArray(), "ASCII"));
+        } catch (Throwable t) {
+            session.getLogger().error("Failed to dump HU01 stream", t);
+        }
+        return e;
+    }
+
+    /**
+     * Sends a <code>Sync</code> request and returns the parsed response.
+     * 
+     * @param session the session.
+     * @param syncRequest the request.
+     * @return the {@link SyncResponse}.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     */
     public SyncResponse sync(DeltaSyncSession session, SyncRequest syncRequest) 
             throws DeltaSyncException, IOException {
         
+        final List<SyncResponse.Collection> collections = new ArrayList<SyncResponse.Collection>();
+        sync(session, syncRequest, new SyncHandler() {
+            private List<Command> commands = new ArrayList<Command>();
+            private List<SyncResponse.Collection.Response> responses = 
+                new ArrayList<SyncResponse.Collection.Response>();
+            
+            public void command(Command command) {
+                commands.add(command);
+            }
+            
+            public void response(SyncResponse.Collection.Response response) {
+                responses.add(response);
+            }
+            
+            public void collection(SyncResponse.Collection collection) {
+                collections.add(new SyncResponse.Collection(collection.getSyncKey(), 
+                        collection.getClazz(), collection.getCollectionId(), 
+                        collection.getStatus(), commands, 
+                        collection.isMoreAvailable(), responses));
+                commands = new ArrayList<Command>();
+                responses = new ArrayList<SyncResponse.Collection.Response>();
+            }
+        });
+        
+        SyncResponse syncResponse = new SyncResponse(collections);
+        
+        session.getLogger().debug("Got SyncResponse: {}", syncResponse);
+        
+        return syncResponse;
+    }
+    
+    /**
+     * Sends a <code>Sync</code> request and streams the response to the 
+     * specified {@link SyncHandler} while it is being read. Unlike 
+     * {@link #sync(DeltaSyncSession, SyncRequest)} no object model of the 
+     * entire response is built which keeps the memory used when syncing 
+     * large windows of messages low.
+     * 
+     * @param session the session.
+     * @param syncRequest the request.
+     * @param handler the {@link SyncHandler} which receives the contents of 
+     *        the response.
+     * @throws DeltaSyncException on errors returned by the server or if 
+     *         thrown by <code>handler</code>.
+     * @throws IOException on communication errors.
+     */
+    public void sync(DeltaSyncSession session, SyncRequest syncRequest, SyncHandler handler) 
+            throws DeltaSyncException, IOException {
+        
         StringBuilder request = new StringBuilder("<Sync xmlns=\"AirSync:\"><Collections>");
         for (SyncRequest.Collection collection : syncRequest.getCollections()) {
             request.append("<Collection>");
@@ -436,88 +823,37 @@ public class DeltaSyncClient {
         }
         request.append("</Collections></Sync>");
         
-        Document response = sync(session, request.toString());
-
-        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        format.setTimeZone(TimeZone.getTimeZone("UTC"));
-        
-        List<SyncResponse.Collection> collections = new ArrayList<SyncResponse.Collection>();
-        for (Element elCollection : XmlUtil.getElements(response, "//airsync:Collection")) {
-            String syncKey = XmlUtil.getTextContent(elCollection, "airsync:SyncKey");
-            Clazz clazz = Clazz.valueOf(XmlUtil.getTextContent(elCollection, "airsync:Class"));
-            int status = Integer.parseInt(XmlUtil.getTextContent(elCollection, "airsync:Status"));
-            boolean moreAvailable = XmlUtil.hasElement(elCollection, "airsync:MoreAvailable");
-            List<Command> commands = new ArrayList<Command>();
-            
-            switch (clazz) {
-            case Email:
-                for (Element elAdd : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Add")) {
-                    try {
-                        String id = XmlUtil.getTextContent(elAdd, "airsync:ServerId");
-                        String folderId = XmlUtil.getTextContent(elAdd, "hmmail:FolderId");
-                        Element elAppData = XmlUtil.getElement(elAdd, "airsync:ApplicationData");
-                        long size = Long.parseLong(XmlUtil.getTextContent(elAppData, "hmmail:Size"));
-                        boolean read = Integer.parseInt(XmlUtil.getTextContent(elAppData, "email:Read")) == 1;
-                        boolean hasAttachments = Integer.parseInt(XmlUtil.getTextContent(elAppData, "hmmail:HasAttachments")) == 1;
-                        Date dateReceived = format.parse(XmlUtil.getTextContent(elAppData, "email:DateReceived"));
-                        String subject = XmlUtil.getTextContent(elAppData, "email:Subject");
-                        String from = XmlUtil.getTextContent(elAppData, "email:From");
-                        commands.add(new EmailAddCommand(id, folderId, dateReceived, size, read, subject, from, hasAttachments));
-                    } catch (ParseException e) {
-                        throw new DeltaSyncException(e);
-                    }
-                }
-                // TODO: AirSync:Change
-                for (Element elDelete : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Delete")) {
-                    String id = XmlUtil.getTextContent(elDelete, "airsync:ServerId");
-                    commands.add(new EmailDeleteCommand(id));
-                }
-                break;
-            case Folder:
-                for (Element elAdd : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Add")) {
-                    String id = XmlUtil.getTextContent(elAdd, "airsync:ServerId");
-                    String displayName = XmlUtil.getTextContent(elAdd, "airsync:ApplicationData/hmfolder:DisplayName");
-                    commands.add(new FolderAddCommand(id, displayName));
-
-                }
-                for (Element elDelete : XmlUtil.getElements(elCollection, "airsync:Commands/airsync:Delete")) {
-                    String id = XmlUtil.getTextContent(elDelete, "airsync:ServerId");
-                    commands.add(new FolderDeleteCommand(id));
-                }
-            }
-
-            List<SyncResponse.Collection.Response> responses = new ArrayList<SyncResponse.Collection.Response>();
-            // TODO: Support for other types of responses
-            for (Element elDelete : XmlUtil.getElements(elCollection, "airsync:Responses/airsync:Delete")) {
-                String id = XmlUtil.getTextContent(elDelete, "airsync:ServerId");
-                int deleteStatus = Integer.parseInt(XmlUtil.getTextContent(elDelete, "airsync:Status"));
-                responses.add(new SyncResponse.Collection.EmailDeleteResponse(id, deleteStatus));
-            }            
-            
-            collections.add(new SyncResponse.Collection(syncKey, clazz, status, commands, moreAvailable, responses));
-        }
-        
-        SyncResponse syncResponse = new SyncResponse(collections);
-        
-        session.getLogger().debug("Got SyncResponse: {}", syncResponse);
-        
-        return syncResponse;
+        sync(session, request.toString(), handler);
     }
     
-    private Document sync(final DeltaSyncSession session, String request) throws DeltaSyncException, IOException {
-        return call("Sync", session, request, new UriCapturingResponseHandler<Document>() {
+    private void sync(final DeltaSyncSession session, String request, 
+            final SyncHandler handler) throws DeltaSyncException, IOException {
+        
+        call("Sync", session, request, new UriCapturingResponseHandler<Object>() {
             
-            public Document handle(URI uri, HttpResponse response)
+            public Object handle(URI uri, HttpResponse response)
                     throws DeltaSyncException, IOException {
 
                 session.dsBaseUri = uri.getScheme() + "://" + uri.getHost();
-                Document doc = XmlUtil.parse(response.getEntity().getContent());
-                checkStatus(doc);
+                InputStream in = response.getEntity().getContent();
                 if (session.getLogger().isDebugEnabled()) {
+                    byte[] data = EntityUtils.toByteArray(response.getEntity());
                     session.getLogger().debug("Received Sync response: {}", 
-                            XmlUtil.toString(doc, false));
+                            XmlUtil.toString(XmlUtil.parse(new ByteArrayInputStream(data)), false));
+                    in = new ByteArrayInputStream(data);
+                }
+                SyncResponseParser parser = new SyncResponseParser(handler);
+                parser.parse(in);
+                if (parser.getStatus() == null) {
+                    // All responses should have a <Status> element
+                    throw new DeltaSyncException("No <Status> element found in Sync response");
                 }
-                return doc;
+                String message = parser.getFaultstring();
+                if (message == null) {
+                    message = "No Faultstring provided in Sync response";
+                }
+                checkStatus(Integer.parseInt(parser.getStatus()), message);
+                return null;
             }
             
         });
@@ -546,17 +882,23 @@ public class DeltaSyncClient {
     }
     
     private void checkStatus(Document doc) throws DeltaSyncException {
-        Element status = XmlUtil.getElement(doc.getDocumentElement(), "*:Status");
+        Element status = STATUS_PATH.getElement(doc.getDocumentElement());
         if (status == null) {
             // All responses should have a <Status> element
             throw new DeltaSyncException("No <Status> element found in response: " + XmlUtil.toString(doc, true));            
         }
         int code = Integer.parseInt(status.getTextContent().trim());
         if (code != 1) {
-            String message = XmlUtil.getTextContent(doc.getDocumentElement(), "*:Fault/*:Faultstring");
+            String message = FAULTSTRING_PATH.getTextContent(doc.getDocumentElement());
             if (message == null) {
                 message = "No Faultstring provided in response. Response was: " + XmlUtil.toString(doc, true);
             }
+            checkStatus(code, message);
+        }
+    }
+    
+    private void checkStatus(int code, String message) throws DeltaSyncException {
+        if (code != 1) {
             switch (code) {
             case 3204:
                 // Authentication failure. We assume this means that the session has expired.
@@ -16,14 +16,28 @@
 package com.googlecode.jdeltasync;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.googlecode.jdeltasync.message.Clazz;
 import com.googlecode.jdeltasync.message.Command;
@@ -52,6 +66,39 @@ public class DeltaSyncClientHelper {
      */
     public static final int DEFAULT_WINDOW_SIZE = 256;
     
+    /**
+     * The default smallest <code>windowSize</code> the adaptive window 
+     * sizing will shrink to.
+     */
+    public static final int DEFAULT_MIN_WINDOW_SIZE = 32;
+    
+    /**
+     * The default largest <code>windowSize</code> the adaptive window 
+     * sizing will grow to. The server never returns more than 2000 
+     * {@link Command}s in each Sync response.
+     */
+    public static final int DEFAULT_MAX_WINDOW_SIZE = 2000;
+    
+    /**
+     * The default response time in milliseconds the adaptive window sizing 
+     * aims for.
+     */
+    public static final long DEFAULT_TARGET_RESPONSE_TIME = 2000;
+    
+    /**
+     * The default maximum number of messages fetched in a single request by 
+     * {@link #downloadMessageContents(Message[], MessageSinkFactory)}.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    
+    /**
+     * The default maximum total size in bytes of the messages fetched in a 
+     * single request by 
+     * {@link #downloadMessageContents(Message[], MessageSinkFactory)}. A 
+     * message larger than this is fetched on its own.
+     */
+    public static final long DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+    
     static {
         STANDARD_FOLDERS_MAPPINGS = new HashMap<String, String>();
         STANDARD_FOLDERS_MAPPINGS.put("ACTIVE", "Inbox");
@@ -66,9 +113,15 @@ public class DeltaSyncClientHelper {
     private final Store store;
     private final String username;
     private final String password;
-    private DeltaSyncSession session;
+    private volatile DeltaSyncSession session;
+    private final Object sessionLock = new Object();
 
     private int windowSize = DEFAULT_WINDOW_SIZE;
+    private WindowSizeController windowSizeController = new WindowSizeController(
+            DEFAULT_MIN_WINDOW_SIZE, DEFAULT_MAX_WINDOW_SIZE, DEFAULT_TARGET_RESPONSE_TIME);
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private Executor storeExecutor;
     
     public DeltaSyncClientHelper(DeltaSyncClient client, String username, String password) {
         this(client, username, password, new InMemoryStore());
@@ -99,11 +152,18 @@ public class DeltaSyncClientHelper {
     
     /**
      * Returns the current <code>windowSize</code> which specifies the maximum 
-     * number of {@link Command} returned by a call to 
+     * number of {@link Command} returned by the first call to 
      * {@link DeltaSyncClient#sync(DeltaSyncSession, SyncRequest)} made by
-     * {@link #getMessages(Folder)}. {@link #getMessages(Folder)} needs to do
-     * <code>totalNumberOfMessagesInFolder / windowSize</code> requests to
-     * get all messages in a folder.
+     * {@link #getMessages(Folder)} for a {@link Folder} which hasn't been 
+     * synchronized before.
+     * <p>
+     * The <code>windowSize</code> is then adjusted for each {@link Folder} 
+     * after every page. It is doubled while full pages arrive in less than 
+     * half of {@link #getTargetResponseTime()} and reduced when a page takes 
+     * longer than that. It is kept within {@link #getMinWindowSize()} and 
+     * {@link #getMaxWindowSize()}. The tuned value is remembered per 
+     * {@link Folder} in the {@link Store}. Set both bounds to the same value 
+     * to use a fixed <code>windowSize</code>.
      * 
      * @return the current <code>windowSize</code>.
      * @see #DEFAULT_WINDOW_SIZE
@@ -127,6 +187,172 @@ public class DeltaSyncClientHelper {
         this.windowSize = windowSize;
     }
     
+    /**
+     * Returns the smallest <code>windowSize</code> used by the adaptive 
+     * window sizing.
+     * 
+     * @return the minimum <code>windowSize</code>.
+     * @see #DEFAULT_MIN_WINDOW_SIZE
+     * @see #getWindowSize()
+     */
+    public int getMinWindowSize() {
+        return windowSizeController.getMinWindowSize();
+    }
+    
+    /**
+     * Returns the largest <code>windowSize</code> used by the adaptive 
+     * window sizing.
+     * 
+     * @return the maximum <code>windowSize</code>.
+     * @see #DEFAULT_MAX_WINDOW_SIZE
+     * @see #getWindowSize()
+     */
+    public int getMaxWindowSize() {
+        return windowSizeController.getMaxWindowSize();
+    }
+    
+    /**
+     * Sets the bounds of the adaptive window sizing.
+     * 
+     * @param minWindowSize the new minimum <code>windowSize</code>.
+     * @param maxWindowSize the new maximum <code>windowSize</code>.
+     * @throws IllegalArgumentException if <code>minWindowSize</code> is 
+     *         negative or 0 or larger than <code>maxWindowSize</code>.
+     * @see #getWindowSize()
+     */
+    public void setWindowSizeBounds(int minWindowSize, int maxWindowSize) {
+        windowSizeController = new WindowSizeController(minWindowSize, maxWindowSize, 
+                windowSizeController.getTargetResponseTime());
+    }
+    
+    /**
+     * Returns the response time in milliseconds the adaptive window sizing 
+     * aims for.
+     * 
+     * @return the target response time.
+     * @see #DEFAULT_TARGET_RESPONSE_TIME
+     * @see #getWindowSize()
+     */
+    public long getTargetResponseTime() {
+        return windowSizeController.getTargetResponseTime();
+    }
+    
+    /**
+     * Sets the response time in milliseconds the adaptive window sizing 
+     * aims for.
+     * 
+     * @param targetResponseTime the new target response time.
+     * @throws IllegalArgumentException if the specified value is negative or 0.
+     * @see #getWindowSize()
+     */
+    public void setTargetResponseTime(long targetResponseTime) {
+        windowSizeController = new WindowSizeController(windowSizeController.getMinWindowSize(), 
+                windowSizeController.getMaxWindowSize(), targetResponseTime);
+    }
+    
+    /**
+     * Returns the <code>windowSize</code> to use for the next page of the 
+     * specified {@link Folder}.
+     */
+    private int getWindowSize(WindowSizeController controller, Folder folder) {
+        int tuned = store.getWindowSize(username, folder);
+        return controller.clamp(tuned > 0 ? tuned : windowSize);
+    }
+    
+    /**
+     * Returns the maximum number of messages fetched in a single request by 
+     * {@link #downloadMessageContents(Message[], MessageSinkFactory)}.
+     * 
+     * @return the maximum batch size.
+     * @see #DEFAULT_MAX_BATCH_SIZE
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    
+    /**
+     * Sets the maximum number of messages fetched in a single request by 
+     * {@link #downloadMessageContents(Message[], MessageSinkFactory)}.
+     * 
+     * @param maxBatchSize the new maximum batch size.
+     * @throws IllegalArgumentException if the specified value is negative or 0.
+     * @see #DEFAULT_MAX_BATCH_SIZE
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+    
+    /**
+     * Returns the maximum total size in bytes of the messages fetched in a 
+     * single request by 
+     * {@link #downloadMessageContents(Message[], MessageSinkFactory)}.
+     * 
+     * @return the maximum batch size in bytes.
+     * @see #DEFAULT_MAX_BATCH_BYTES
+     */
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+    
+    /**
+     * Sets the maximum total size in bytes of the messages fetched in a 
+     * single request by 
+     * {@link #downloadMessageContents(Message[], MessageSinkFactory)}.
+     * 
+     * @param maxBatchBytes the new maximum batch size in bytes.
+     * @throws IllegalArgumentException if the specified value is negative or 0.
+     * @see #DEFAULT_MAX_BATCH_BYTES
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        if (maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchBytes");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+    }
+    
+    /**
+     * Returns the {@link Executor} which {@link #getMessages(Folder)} and 
+     * {@link #getMessages(Folder[])} use to update the {@link Store} with a 
+     * page of changes while the next page is being requested. Unless set 
+     * using {@link #setStoreExecutor(Executor)} a pool of daemon threads 
+     * owned by this {@link DeltaSyncClientHelper} is used. Idle threads 
+     * terminate after 60 seconds.
+     * 
+     * @return the {@link Executor}.
+     */
+    public synchronized Executor getStoreExecutor() {
+        if (storeExecutor == null) {
+            storeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DeltaSyncClientHelper-store-" + username);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return storeExecutor;
+    }
+    
+    /**
+     * Sets the {@link Executor} used to update the {@link Store} in the 
+     * background. Updates for a single call to {@link #getMessages(Folder)} 
+     * are always applied one at a time in order. Use an {@link Executor} 
+     * which runs tasks in the calling thread to update the {@link Store} 
+     * synchronously.
+     * 
+     * @param storeExecutor the new {@link Executor}.
+     * @see #getStoreExecutor()
+     */
+    public synchronized void setStoreExecutor(Executor storeExecutor) {
+        if (storeExecutor == null) {
+            throw new NullPointerException("storeExecutor");
+        }
+        this.storeExecutor = storeExecutor;
+    }
+    
     /**
      * Returns the <code>DisplayName</code> of a folder mapped to a nicer name. 
      * The standard folders have funny display names (e.g. drAfT).
@@ -171,20 +397,21 @@ public class DeltaSyncClientHelper {
      */
     public Folder[] getFolders() throws DeltaSyncException, IOException {
         checkLoggedIn();
+        DeltaSyncSession session = this.session;
         try {
-            return doGetFolders();
+            return doGetFolders(session);
         } catch (SessionExpiredException e) {
-            session = client.renew(session);
-            return doGetFolders();
+            session = renewSession(session);
+            return doGetFolders(session);
         } catch (InvalidSyncKeyException e) {
             session.getLogger().warn("Invalid folders sync key. All folders " 
                     + "will be retrieved anew.");
             store.resetFolders(username);
-            return doGetFolders();
+            return doGetFolders(session);
         }
     }
 
-    private Folder[] doGetFolders() throws DeltaSyncException, IOException {
+    private Folder[] doGetFolders(DeltaSyncSession session) throws DeltaSyncException, IOException {
         
         while (true) {
             
@@ -266,69 +493,353 @@ public class DeltaSyncClientHelper {
      */
     public Message[] getMessages(Folder folder) throws DeltaSyncException, IOException {
         checkLoggedIn();
+        DeltaSyncSession session = this.session;
         try {
-            return doGetMessages(folder);
+            return doGetMessages(session, folder);
         } catch (SessionExpiredException e) {
-            session = client.renew(session);
-            return doGetMessages(folder);
+            session = renewSession(session);
+            return doGetMessages(session, folder);
         } catch (InvalidSyncKeyException e) {
             session.getLogger().warn("Invalid messages sync key. All messages " 
                     + "will be retrieved anew.");
             store.resetMessages(username, folder);
-            return doGetMessages(folder);
+            return doGetMessages(session, folder);
         } catch (DeltaSyncException e) {
             if (e.getMessage().contains("Sync request failed with status 4104")) {
                 session.getLogger().warn("Got 4104 error. All messages " 
                         + "will be retrieved anew.");
                 store.resetMessages(username, folder);
-                return doGetMessages(folder);
+                return doGetMessages(session, folder);
             }
             throw e;
         }
     }
 
-    private Message[] doGetMessages(Folder folder) throws DeltaSyncException, IOException {
+    /**
+     * Synchronizes the specified {@link Folder}. Each page is handed to a 
+     * {@link WriteBehindQueue} and the next page is requested using the new 
+     * sync key right away while the {@link Store} is being updated. The 
+     * updates are applied in order and all of them, including the final 
+     * page, are in the {@link Store} before this method returns or throws.
+     * <p>
+     * Requesting the next page acknowledges the previous page to the server. 
+     * If the {@link Store} update of a page fails after that the 
+     * {@link Store} is left with an older sync key which the server may 
+     * reject. {@link #getMessages(Folder)} then starts over from sync key 0.
+     */
+    private Message[] doGetMessages(DeltaSyncSession session, final Folder folder) throws DeltaSyncException, IOException {
         
-        while (true) {
-            
-            SyncRequest syncRequest = new SyncRequest(new SyncRequest.Collection(
-                    store.getMessagesSyncKey(username, folder), Clazz.Email, folder.getId(), true, windowSize));
-            SyncResponse response = client.sync(session, syncRequest);
-            
-            if (response.getCollections().isEmpty()) {
-                throw new DeltaSyncException("No <Collection> in Sync response");
-            }
-            SyncResponse.Collection collection = response.getCollections().get(0);
-            if (collection.getStatus() != 1) {
-                throw new DeltaSyncException("Sync request failed with status " 
-                        + collection.getStatus());
-            }
-            
-            List<Message> added = new ArrayList<Message>();
-            List<String> deleted = new ArrayList<String>();
-            for (Command cmd : collection.getCommands()) {
-                if (cmd instanceof EmailAddCommand) {
-                    EmailAddCommand addCmd = (EmailAddCommand) cmd;
-                    added.add(new Message(addCmd.getId(), 
-                            addCmd.getDateReceived(), addCmd.getSize(), addCmd.isRead(), 
-                            addCmd.getSubject(), addCmd.getFrom(), addCmd.hasAttachments()));
-                } else if (cmd instanceof EmailDeleteCommand) {
-                    EmailDeleteCommand delCmd = (EmailDeleteCommand) cmd;
-                    deleted.add(delCmd.getId());
+        WindowSizeController controller = windowSizeController;
+        String syncKey = store.getMessagesSyncKey(username, folder);
+        int window = getWindowSize(controller, folder);
+        
+        WriteBehindQueue writes = new WriteBehindQueue(getStoreExecutor());
+        boolean done = false;
+        try {
+            while (true) {
+                
+                SyncRequest syncRequest = new SyncRequest(new SyncRequest.Collection(
+                        syncKey, Clazz.Email, folder.getId(), true, window));
+                MessagesSyncHandler handler = new MessagesSyncHandler();
+                long start = System.nanoTime();
+                client.sync(session, syncRequest, handler);
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                
+                if (handler.collections.isEmpty()) {
+                    throw new DeltaSyncException("No <Collection> in Sync response");
+                }
+                SyncResponse.Collection collection = handler.collections.get(0);
+                if (collection.getStatus() != 1) {
+                    throw new DeltaSyncException("Sync request failed with status " 
+                            + collection.getStatus());
+                }
+                
+                syncKey = collection.getSyncKey();
+                window = controller.adjust(window, handler.getCommandCount(0), 
+                        collection.isMoreAvailable(), elapsed);
+                writes.submit(new UpdateMessagesTask(folder, syncKey, window, 
+                        handler.added.get(0), handler.deleted.get(0)));
+                
+                if (!collection.isMoreAvailable()) {
+                    break;
                 }
             }
-            
-            store.updateMessages(username, folder, collection.getSyncKey(), added, deleted);
-            
-            if (!collection.isMoreAvailable()) {
-                break;
+            writes.await();
+            done = true;
+        } finally {
+            if (!done) {
+                awaitQuietly(session, writes);
             }
         }
 
         Collection<Message> messages = store.getMessages(username, folder);
         return messages.toArray(new Message[messages.size()]);
     }
+    
+    /**
+     * Waits for the {@link Store} updates in the specified 
+     * {@link WriteBehindQueue} to finish when already failing with another 
+     * exception. A failed update is logged.
+     */
+    private void awaitQuietly(DeltaSyncSession session, WriteBehindQueue writes) {
+        Throwable t = writes.awaitQuietly();
+        if (t != null) {
+            session.getLogger().error("Failed to update Store", t);
+        }
+    }
+    
+    /**
+     * Returns all messages in the specified {@link Folder}s by running 
+     * {@link #getMessages(Folder)} for up to <code>parallelism</code> 
+     * {@link Folder}s at a time on the specified {@link ExecutorService}. 
+     * Each {@link Folder} is synchronized independently using its own sync 
+     * key. The {@link Store} is called from several threads and must be 
+     * thread-safe like {@link InMemoryStore} and {@link DiskStore}. A 
+     * failure (e.g. an {@link InvalidSyncKeyException} which couldn't be 
+     * recovered from) only affects the {@link Folder} it occurred for. The 
+     * remaining {@link Folder}s are still synchronized and a 
+     * {@link FolderSyncException} listing the failures is thrown at the end. 
+     * If the session expires it is renewed once and shared by all 
+     * {@link Folder}s.
+     * <p>
+     * The number of concurrent requests is also limited by the connection 
+     * manager of the {@link DeltaSyncClient}. The default 
+     * <code>ThreadSafeClientConnManager</code> only allows 2 connections per 
+     * route.
+     * 
+     * @param folders the {@link Folder}s.
+     * @param executor the {@link ExecutorService} to run the synchronizations 
+     *        on.
+     * @param parallelism the maximum number of {@link Folder}s synchronized 
+     *        concurrently.
+     * @return the {@link Message}s of each {@link Folder} keyed by 
+     *         {@link Folder} in the order the {@link Folder}s were specified.
+     * @throws FolderSyncException if the synchronization of any of the 
+     *         {@link Folder}s failed.
+     * @throws IOException if interrupted while waiting for the 
+     *         synchronizations to finish.
+     * @throws IllegalStateException if not logged in.
+     */
+    public Map<Folder, Message[]> getMessages(final Folder[] folders, ExecutorService executor, 
+            int parallelism) throws DeltaSyncException, IOException {
+        
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism");
+        }
+        checkLoggedIn();
+        final Queue<Folder> queue = new ConcurrentLinkedQueue<Folder>(Arrays.asList(folders));
+        final Map<Folder, Message[]> results = new ConcurrentHashMap<Folder, Message[]>();
+        final Map<Folder, Exception> failures = new ConcurrentHashMap<Folder, Exception>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < Math.min(parallelism, folders.length); i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    Folder folder = null;
+                    while ((folder = queue.poll()) != null) {
+                        try {
+                            results.put(folder, getMessages(folder));
+                        } catch (DeltaSyncException e) {
+                            failures.put(folder, e);
+                        } catch (IOException e) {
+                            failures.put(folder, e);
+                        } catch (RuntimeException e) {
+                            failures.put(folder, e);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            queue.clear();
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (IOException) new IOException().initCause(e.getCause());
+        }
+        
+        Map<Folder, Message[]> messages = new LinkedHashMap<Folder, Message[]>();
+        Map<Folder, Exception> failed = new LinkedHashMap<Folder, Exception>();
+        for (Folder folder : folders) {
+            if (results.containsKey(folder)) {
+                messages.put(folder, results.get(folder));
+            } else {
+                failed.put(folder, failures.get(folder));
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new FolderSyncException(messages, failed);
+        }
+        return messages;
+    }
+    
+    /**
+     * Renews the session unless it has already been renewed since 
+     * <code>expired</code> was obtained by another thread. Renewing logs in 
+     * again over the network so it is done holding a lock of its own rather 
+     * than the lock of the helper.
+     */
+    private DeltaSyncSession renewSession(DeltaSyncSession expired) 
+            throws DeltaSyncException, IOException {
+        
+        synchronized (sessionLock) {
+            if (session == expired) {
+                session = client.renew(expired);
+            }
+            return session;
+        }
+    }
 
+    /**
+     * Returns all {@link Message}s in the specified {@link Folder}s. Unlike 
+     * calling {@link #getMessages(Folder)} for each {@link Folder} all 
+     * {@link Folder}s are synchronized together with one 
+     * <code>&lt;Collection&gt;</code> per {@link Folder} in each 
+     * <code>Sync</code> request. {@link Folder}s with more changes available 
+     * are requested again until all {@link Folder}s are up to date. 
+     * Refreshing an entire account thus takes as many round trips as the 
+     * largest {@link Folder} needs rather than the sum over all 
+     * {@link Folder}s.
+     * 
+     * @param folders the {@link Folder}s.
+     * @return the {@link Message}s of each {@link Folder} keyed by 
+     *         {@link Folder} in the order the {@link Folder}s were specified.
+     * @throws SessionExpiredException if the session has expired and couldn't 
+     *         be renewed.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     * @throws IllegalStateException if not logged in.
+     */
+    public Map<Folder, Message[]> getMessages(Folder[] folders) throws DeltaSyncException, IOException {
+        checkLoggedIn();
+        DeltaSyncSession session = this.session;
+        try {
+            doGetMessages(session, folders);
+        } catch (SessionExpiredException e) {
+            session = renewSession(session);
+            doGetMessages(session, folders);
+        } catch (InvalidSyncKeyException e) {
+            session.getLogger().warn("Invalid messages sync key. All messages " 
+                    + "will be retrieved anew.");
+            for (Folder folder : folders) {
+                store.resetMessages(username, folder);
+            }
+            doGetMessages(session, folders);
+        }
+        
+        Map<Folder, Message[]> result = new LinkedHashMap<Folder, Message[]>();
+        for (Folder folder : folders) {
+            Collection<Message> messages = store.getMessages(username, folder);
+            result.put(folder, messages.toArray(new Message[messages.size()]));
+        }
+        return result;
+    }
+    
+    private void doGetMessages(DeltaSyncSession session, Folder[] folders) throws DeltaSyncException, IOException {
+        WriteBehindQueue writes = new WriteBehindQueue(getStoreExecutor());
+        boolean done = false;
+        try {
+            doGetMessages(session, folders, writes);
+            writes.await();
+            done = true;
+        } finally {
+            if (!done) {
+                awaitQuietly(session, writes);
+            }
+        }
+    }
+    
+    /**
+     * Synchronizes the specified {@link Folder}s handing the {@link Store} 
+     * updates to the specified {@link WriteBehindQueue}. The sync keys and 
+     * window sizes are tracked locally so that the next request doesn't have 
+     * to wait for the {@link Store}.
+     */
+    private void doGetMessages(DeltaSyncSession session, Folder[] folders, 
+            WriteBehindQueue writes) throws DeltaSyncException, IOException {
+        WindowSizeController controller = windowSizeController;
+        List<Folder> pending = new ArrayList<Folder>(Arrays.asList(folders));
+        Set<String> reset = new HashSet<String>();
+        Map<String, String> syncKeys = new HashMap<String, String>();
+        Map<String, Integer> windowSizes = new HashMap<String, Integer>();
+        for (Folder folder : folders) {
+            syncKeys.put(folder.getId(), store.getMessagesSyncKey(username, folder));
+            windowSizes.put(folder.getId(), getWindowSize(controller, folder));
+        }
+        
+        while (!pending.isEmpty()) {
+            
+            List<SyncRequest.Collection> collections = new ArrayList<SyncRequest.Collection>();
+            int[] windows = new int[pending.size()];
+            for (int i = 0; i < pending.size(); i++) {
+                Folder folder = pending.get(i);
+                windows[i] = windowSizes.get(folder.getId());
+                collections.add(new SyncRequest.Collection(syncKeys.get(folder.getId()), 
+                        Clazz.Email, folder.getId(), true, windows[i]));
+            }
+            MessagesSyncHandler handler = new MessagesSyncHandler();
+            long start = System.nanoTime();
+            client.sync(session, new SyncRequest(collections), handler);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            int totalCommands = handler.getCommandCount();
+            
+            List<Folder> unfinished = new ArrayList<Folder>();
+            for (int i = 0; i < pending.size(); i++) {
+                final Folder folder = pending.get(i);
+                int index = handler.indexOf(folder.getId(), i);
+                if (index == -1) {
+                    throw new DeltaSyncException("No <Collection> for folder " 
+                            + folder.getId() + " in Sync response");
+                }
+                SyncResponse.Collection collection = handler.collections.get(index);
+                if (collection.getStatus() == 4104 && reset.add(folder.getId())) {
+                    session.getLogger().warn("Got 4104 error for folder {}. All messages " 
+                            + "will be retrieved anew.", folder.getId());
+                    writes.submit(new Runnable() {
+                        public void run() {
+                            store.resetMessages(username, folder);
+                        }
+                    });
+                    syncKeys.put(folder.getId(), "0");
+                    unfinished.add(folder);
+                    continue;
+                }
+                if (collection.getStatus() != 1) {
+                    throw new DeltaSyncException("Sync request failed with status " 
+                            + collection.getStatus() + " for folder " + folder.getId());
+                }
+                
+                /*
+                 * All folders share the response time. Attribute it to each 
+                 * folder in proportion to the number of commands it got.
+                 */
+                int commands = handler.getCommandCount(index);
+                long share = totalCommands > 0 ? elapsed * commands / totalCommands : elapsed;
+                int window = controller.adjust(windows[i], commands, 
+                        collection.isMoreAvailable(), share);
+                syncKeys.put(folder.getId(), collection.getSyncKey());
+                windowSizes.put(folder.getId(), window);
+                writes.submit(new UpdateMessagesTask(folder, collection.getSyncKey(), window, 
+                        handler.added.get(index), handler.deleted.get(index)));
+                
+                if (collection.isMoreAvailable()) {
+                    unfinished.add(folder);
+                }
+            }
+            pending = unfinished;
+        }
+    }
+    
     /**
      * Deletes the specified {@link Message}s from the specified {@link Folder}.
      * 
@@ -366,21 +877,24 @@ public class DeltaSyncClientHelper {
         checkLoggedIn();
         LinkedList<String> idsList = new LinkedList<String>(Arrays.asList(ids));
         ArrayList<String> deleted = new ArrayList<String>();
+        DeltaSyncSession session = this.session;
         try {
-            doDelete(folder, idsList, deleted);
+            doDelete(session, folder, idsList, deleted);
         } catch (SessionExpiredException e) {
-            session = client.renew(session);
-            doDelete(folder, idsList, deleted);
+            session = renewSession(session);
+            doDelete(session, folder, idsList, deleted);
         } catch (InvalidSyncKeyException e) {
             session.getLogger().debug("Invalid messages sync key. Delete will " 
                     + "be retried with sync key 0");
             store.resetMessages(username, folder);
-            doDelete(folder, idsList, deleted);
+            doDelete(session, folder, idsList, deleted);
         }
         return deleted.toArray(new String[deleted.size()]);
     }
     
-    private void doDelete(Folder folder, LinkedList<String> ids, List<String> deleted) throws DeltaSyncException, IOException {    
+    private void doDelete(DeltaSyncSession session, Folder folder, LinkedList<String> ids, 
+            List<String> deleted) throws DeltaSyncException, IOException {
+        
         while (!ids.isEmpty()) {
 
             /*
@@ -450,14 +964,61 @@ public class DeltaSyncClientHelper {
             throws DeltaSyncException, IOException {
         
         checkLoggedIn();
+        DeltaSyncSession session = this.session;
         try {
             client.downloadMessageContent(session, message.getId(), out);
         } catch (SessionExpiredException e) {
-            session = client.renew(session);
+            session = renewSession(session);
             client.downloadMessageContent(session, message.getId(), out);
         }
     }
     
+    /**
+     * Downloads the contents of the specified {@link Message}s and writes them 
+     * to streams created by the specified {@link MessageSinkFactory}. Several 
+     * messages are fetched in each request. The messages are grouped in 
+     * order into batches of at most {@link #getMaxBatchSize()} messages and 
+     * {@link #getMaxBatchBytes()} bytes in total. Small messages are thus 
+     * fetched many at a time while large messages are fetched on their own.
+     * 
+     * @param messages the {@link Message}s to download the contents for.
+     * @param sinkFactory the {@link MessageSinkFactory}.
+     * @return the ids of the {@link Message}s actually downloaded. Messages 
+     *         which no longer exist on the server are skipped.
+     * @throws SessionExpiredException if the session has expired and couldn't 
+     *         be renewed.
+     * @throws DeltaSyncException on errors returned by the server.
+     * @throws IOException on communication errors.
+     * @throws IllegalStateException if not logged in.
+     */
+    public String[] downloadMessageContents(Message[] messages, MessageSinkFactory sinkFactory) 
+            throws DeltaSyncException, IOException {
+        
+        checkLoggedIn();
+        List<String> downloaded = new ArrayList<String>();
+        int i = 0;
+        while (i < messages.length) {
+            List<String> batch = new ArrayList<String>();
+            long bytes = 0;
+            while (i < messages.length && batch.size() < maxBatchSize 
+                    && (batch.isEmpty() || bytes + messages[i].getSize() <= maxBatchBytes)) {
+                batch.add(messages[i].getId());
+                bytes += messages[i].getSize();
+                i++;
+            }
+            String[] ids = null;
+            DeltaSyncSession session = this.session;
+            try {
+                ids = client.downloadMessageContents(session, batch, sinkFactory);
+            } catch (SessionExpiredException e) {
+                session = renewSession(session);
+                ids = client.downloadMessageContents(session, batch, sinkFactory);
+            }
+            downloaded.addAll(Arrays.asList(ids));
+        }
+        return downloaded.toArray(new String[downloaded.size()]);
+    }
+    
     /**
      * Downloads the HU01 compressed content of the specified {@link Message} 
      * and writes it to the specified {@link OutputStream}.
@@ -474,11 +1035,110 @@ public class DeltaSyncClientHelper {
             throws DeltaSyncException, IOException {
         
         checkLoggedIn();
+        DeltaSyncSession session = this.session;
         try {
             client.downloadRawMessageContent(session, message.getId(), out);
         } catch (SessionExpiredException e) {
-            session = client.renew(session);
+            session = renewSession(session);
             client.downloadRawMessageContent(session, message.getId(), out);
         }
     }
+    
+    /**
+     * Stores one page of changes to the messages of a {@link Folder} and the 
+     * <code>windowSize</code> to use for the next page.
+     */
+    private class UpdateMessagesTask implements Runnable {
+        private final Folder folder;
+        private final String syncKey;
+        private final int windowSize;
+        private final List<Message> added;
+        private final List<String> deleted;
+        
+        UpdateMessagesTask(Folder folder, String syncKey, int windowSize, 
+                List<Message> added, List<String> deleted) {
+            this.folder = folder;
+            this.syncKey = syncKey;
+            this.windowSize = windowSize;
+            this.added = added;
+            this.deleted = deleted;
+        }
+        
+        public void run() {
+            store.setWindowSize(username, folder, windowSize);
+            store.updateMessages(username, folder, syncKey, added, deleted);
+        }
+    }
+    
+    /**
+     * {@link SyncHandler} which turns the commands of every 
+     * <code>&lt;Collection&gt;</code> of a messages <code>Sync</code> response 
+     * into {@link Message}s and deleted ids while the response is being read.
+     */
+    private static class MessagesSyncHandler implements SyncHandler {
+        private final List<SyncResponse.Collection> collections = new ArrayList<SyncResponse.Collection>();
+        private final List<List<Message>> added = new ArrayList<List<Message>>();
+        private final List<List<String>> deleted = new ArrayList<List<String>>();
+        private List<Message> currentAdded = new ArrayList<Message>();
+        private List<String> currentDeleted = new ArrayList<String>();
+        
+        public void command(Command cmd) {
+            if (cmd instanceof EmailAddCommand) {
+                EmailAddCommand addCmd = (EmailAddCommand) cmd;
+                currentAdded.add(new Message(addCmd.getId(), 
+                        addCmd.getDateReceived(), addCmd.getSize(), addCmd.isRead(), 
+                        addCmd.getSubject(), addCmd.getFrom(), addCmd.hasAttachments()));
+            } else if (cmd instanceof EmailDeleteCommand) {
+                EmailDeleteCommand delCmd = (EmailDeleteCommand) cmd;
+                currentDeleted.add(delCmd.getId());
+            }
+        }
+        
+        public void response(SyncResponse.Collection.Response response) {
+        }
+        
+        public void collection(SyncResponse.Collection collection) {
+            collections.add(collection);
+            added.add(currentAdded);
+            deleted.add(currentDeleted);
+            currentAdded = new ArrayList<Message>();
+            currentDeleted = new ArrayList<String>();
+        }
+        
+        /**
+         * Returns the number of commands in the collection with the specified 
+         * index.
+         */
+        int getCommandCount(int index) {
+            return added.get(index).size() + deleted.get(index).size();
+        }
+        
+        /**
+         * Returns the total number of commands in all collections.
+         */
+        int getCommandCount() {
+            int count = 0;
+            for (int i = 0; i < collections.size(); i++) {
+                count += getCommandCount(i);
+            }
+            return count;
+        }
+        
+        /**
+         * Returns the index of the collection for the folder with the 
+         * specified id. Falls back to the position of the folder in the 
+         * request if the server didn't return any <code>CollectionId</code>s.
+         */
+        int indexOf(String folderId, int requestIndex) {
+            boolean hasIds = false;
+            for (int i = 0; i < collections.size(); i++) {
+                String id = collections.get(i).getCollectionId();
+                if (folderId.equals(id)) {
+                    return i;
+                }
+                hasIds |= id != null;
+            }
+            return !hasIds && requestIndex < collections.size() ? requestIndex : -1;
+        }
+    }
 }
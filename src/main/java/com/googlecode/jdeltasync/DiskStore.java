@@ -16,103 +16,739 @@
 package com.googlecode.jdeltasync;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.LinkedHashMap;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * {@link Store} implementation which saves data in the file system.
- *
+ * <p>
+ * The data of each user is kept in a snapshot file (<code>.dat</code>) 
+ * holding the {@link AbstractStore.State} in the binary {@link StateFile} 
+ * format and a journal file 
+ * (<code>.log</code>) to which each change is appended as a compact 
+ * {@link Journal} record. Once the journal has grown larger than the 
+ * snapshot it is compacted in the background: a copy of the 
+ * {@link AbstractStore.State} is written as the new snapshot and the records 
+ * it covers are dropped from the journal. When the data of a user is read 
+ * the journal is replayed on top of the snapshot. A record which was only 
+ * partly written when the process died is discarded.
+ * <p>
+ * Serialized {@link AbstractStore.State} files (<code>.bin</code>) written 
+ * by earlier versions are converted to the binary format the first time 
+ * they are read.
+ * <p>
+ * Changes are not written as they are made. A user with changes is marked 
+ * dirty and a background thread appends all of the user's pending records 
+ * in a single write at most {@link #getMaxStaleness()} milliseconds after 
+ * the first change, or as soon as {@link #getMaxPendingChanges()} changes 
+ * have accumulated. {@link #flush(String)} writes the pending changes of a 
+ * user right away and {@link #close()} writes those of all users. Whether 
+ * the journal is forced to the storage device after each write is 
+ * controlled by {@link #setSync(boolean)}.
+ * <p>
+ * The {@link AbstractStore.State}s read from disk are cached. The cache is 
+ * bounded by the approximate number of bytes the cached 
+ * {@link AbstractStore.State}s use (see {@link #setMaxCacheWeight(long)}) 
+ * rather than by the number of users, so one very large account doesn't 
+ * count the same as a small one. A user whose data hasn't been used for 
+ * {@link #getCacheExpiry()} milliseconds is evicted as well. The hit, miss, 
+ * load time and eviction counters can be used to size the cache.
+ * <p>
+ * A {@link DiskStore} can be shared by several threads. Each user has a lock 
+ * of its own which is held while the user's data is read from or written to 
+ * disk. Threads working on different users never wait for each other's I/O.
  */
 public class DiskStore extends AbstractStore {
     private static final Logger log = LoggerFactory.getLogger(DiskStore.class);
     
-    private static final int MAX_ENTRIES = 32;
+    /**
+     * The default maximum approximate number of bytes used by cached 
+     * {@link AbstractStore.State}s (64 MB).
+     */
+    public static final long DEFAULT_MAX_CACHE_WEIGHT = 64 * 1024 * 1024;
+    
+    /**
+     * The default number of milliseconds a cached 
+     * {@link AbstractStore.State} may go unused before it is evicted 
+     * (30 minutes).
+     */
+    public static final long DEFAULT_CACHE_EXPIRY = 30 * 60 * 1000;
+    
+    /**
+     * Approximate number of bytes used by a cached {@link Message}, its 
+     * strings and its map entry.
+     */
+    private static final int MESSAGE_WEIGHT = 320;
+    
+    /**
+     * Approximate number of bytes used by a folder and its map entries.
+     */
+    private static final int FOLDER_WEIGHT = 256;
+    
+    /**
+     * Approximate number of bytes used by an empty 
+     * {@link AbstractStore.State}.
+     */
+    private static final int STATE_WEIGHT = 1024;
+    
+    /**
+     * The default maximum time in milliseconds changes are kept in memory 
+     * before they are written to disk.
+     */
+    public static final long DEFAULT_MAX_STALENESS = 1000;
+    
+    /**
+     * The default number of pending changes of a user which causes them to 
+     * be written to disk without waiting for {@link #DEFAULT_MAX_STALENESS}.
+     */
+    public static final int DEFAULT_MAX_PENDING_CHANGES = 256;
+    
+    /**
+     * The journal isn't compacted until it is at least this large.
+     */
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    
+    /**
+     * A cached {@link AbstractStore.State} and the sizes of its files.
+     */
+    private static class CachedState {
+        private final State state;
+        private long snapshotLength;
+        private long logLength;
+        
+        CachedState(State state) {
+            this.state = state;
+        }
+    }
     
-    @SuppressWarnings("serial")
-    private final Map<String, State> states = new LinkedHashMap<String, State>(16, 0.75f, true) {
-        protected boolean removeEldestEntry(Map.Entry<String,State> eldest) {
-            return size() > MAX_ENTRIES;
+    private final WeightedCache<String, CachedState> cache = 
+        new WeightedCache<String, CachedState>(DEFAULT_MAX_CACHE_WEIGHT, DEFAULT_CACHE_EXPIRY);
+    private final ConcurrentMap<String, Boolean> compacting = new ConcurrentHashMap<String, Boolean>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DiskStore-compactor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DiskStore-flusher");
+            t.setDaemon(true);
+            return t;
         }
-    };
+    });
+    private final ConcurrentMap<String, List<byte[]>> pending = new ConcurrentHashMap<String, List<byte[]>>();
     private final File datadir;
+    
+    private volatile long maxStaleness = DEFAULT_MAX_STALENESS;
+    private volatile int maxPendingChanges = DEFAULT_MAX_PENDING_CHANGES;
+    private volatile boolean sync = false;
 
     public DiskStore(File datadir) throws IOException {
         if ((datadir.exists() && !datadir.isDirectory()) || (!datadir.exists() && !datadir.mkdirs())) {
             throw new IOException("Failed to create datadir " + datadir.getCanonicalPath());
         }
         this.datadir = datadir;
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                cache.evictExpired();
+            }
+        }, 60, 60, TimeUnit.SECONDS);
     }
 
+    /**
+     * Returns the maximum time in milliseconds changes are kept in memory 
+     * before they are written to disk.
+     * 
+     * @return the maximum staleness.
+     * @see #DEFAULT_MAX_STALENESS
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+    
+    /**
+     * Sets the maximum time in milliseconds changes are kept in memory 
+     * before they are written to disk. <code>0</code> writes every change 
+     * before returning.
+     * 
+     * @param maxStaleness the new maximum staleness.
+     * @throws IllegalArgumentException if the specified value is negative.
+     * @see #DEFAULT_MAX_STALENESS
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        if (maxStaleness < 0) {
+            throw new IllegalArgumentException("maxStaleness");
+        }
+        this.maxStaleness = maxStaleness;
+    }
+    
+    /**
+     * Returns the number of pending changes of a user which causes them to 
+     * be written without waiting for {@link #getMaxStaleness()}.
+     * 
+     * @return the maximum number of pending changes.
+     * @see #DEFAULT_MAX_PENDING_CHANGES
+     */
+    public int getMaxPendingChanges() {
+        return maxPendingChanges;
+    }
+    
+    /**
+     * Sets the number of pending changes of a user which causes them to be 
+     * written without waiting for {@link #getMaxStaleness()}.
+     * 
+     * @param maxPendingChanges the new maximum number of pending changes.
+     * @throws IllegalArgumentException if the specified value is negative or 0.
+     * @see #DEFAULT_MAX_PENDING_CHANGES
+     */
+    public void setMaxPendingChanges(int maxPendingChanges) {
+        if (maxPendingChanges <= 0) {
+            throw new IllegalArgumentException("maxPendingChanges");
+        }
+        this.maxPendingChanges = maxPendingChanges;
+    }
+    
+    /**
+     * Returns whether the journal is forced to the storage device after 
+     * each write.
+     * 
+     * @return <code>true</code> if writes are synced.
+     */
+    public boolean isSync() {
+        return sync;
+    }
+    
+    /**
+     * Sets whether the journal is forced to the storage device after each 
+     * write. Defaults to <code>false</code>, leaving it to the operating 
+     * system.
+     * 
+     * @param sync <code>true</code> to sync writes.
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+    
+    /**
+     * Returns the maximum approximate number of bytes used by cached 
+     * {@link AbstractStore.State}s.
+     * 
+     * @return the maximum weight.
+     * @see #DEFAULT_MAX_CACHE_WEIGHT
+     */
+    public long getMaxCacheWeight() {
+        return cache.getMaxWeight();
+    }
+    
+    /**
+     * Sets the maximum approximate number of bytes used by cached 
+     * {@link AbstractStore.State}s. The least recently used are evicted when 
+     * the cache grows heavier than this. The most recently used 
+     * {@link AbstractStore.State} is always kept.
+     * 
+     * @param maxCacheWeight the new maximum weight.
+     * @throws IllegalArgumentException if the specified value is negative or 0.
+     * @see #DEFAULT_MAX_CACHE_WEIGHT
+     */
+    public void setMaxCacheWeight(long maxCacheWeight) {
+        cache.setMaxWeight(maxCacheWeight);
+    }
+    
+    /**
+     * Returns the number of milliseconds a cached 
+     * {@link AbstractStore.State} may go unused before it is evicted.
+     * 
+     * @return the expiry time.
+     * @see #DEFAULT_CACHE_EXPIRY
+     */
+    public long getCacheExpiry() {
+        return cache.getExpiry();
+    }
+    
+    /**
+     * Sets the number of milliseconds a cached {@link AbstractStore.State} 
+     * may go unused before it is evicted. <code>0</code> means never.
+     * 
+     * @param cacheExpiry the new expiry time.
+     * @throws IllegalArgumentException if the specified value is negative.
+     * @see #DEFAULT_CACHE_EXPIRY
+     */
+    public void setCacheExpiry(long cacheExpiry) {
+        cache.setExpiry(cacheExpiry);
+    }
+    
+    /**
+     * Returns the approximate number of bytes currently used by cached 
+     * {@link AbstractStore.State}s.
+     * 
+     * @return the weight.
+     */
+    public long getCacheWeight() {
+        return cache.getWeight();
+    }
+    
+    /**
+     * Returns the number of times the {@link AbstractStore.State} of a user 
+     * was found in the cache.
+     * 
+     * @return the number of hits.
+     */
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+    
+    /**
+     * Returns the number of times the {@link AbstractStore.State} of a user 
+     * had to be read from disk.
+     * 
+     * @return the number of misses.
+     */
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+    
+    /**
+     * Returns the total number of milliseconds spent reading 
+     * {@link AbstractStore.State}s from disk after misses.
+     * 
+     * @return the load time.
+     */
+    public long getCacheLoadTime() {
+        return cache.getLoadTime();
+    }
+    
+    /**
+     * Returns the number of {@link AbstractStore.State}s evicted from the 
+     * cache, either because it was too heavy or because they had expired.
+     * 
+     * @return the number of evictions.
+     */
+    public long getCacheEvictionCount() {
+        return cache.getEvictionCount();
+    }
+    
     private File getFile(String username) throws UnsupportedEncodingException {
+        return new File(datadir, URLEncoder.encode(username, "UTF-8") + ".dat");
+    }
+    
+    private File getLegacyFile(String username) throws UnsupportedEncodingException {
         return new File(datadir, URLEncoder.encode(username, "UTF-8") + ".bin");
     }
     
+    private File getLogFile(String username) throws UnsupportedEncodingException {
+        return new File(datadir, URLEncoder.encode(username, "UTF-8") + ".log");
+    }
+    
     @Override
     protected State getState(String username) {
-        State state = states.get(username);
-        if (state == null) {
-            ObjectInputStream in = null;
+        return getEntry(username).state;
+    }
+    
+    /**
+     * Returns the cached {@link AbstractStore.State} of the specified user, 
+     * reading it from disk if necessary. Must be called while holding the 
+     * lock of the user. Only the cache itself is shared by all users and it 
+     * is never locked while reading from disk.
+     */
+    private CachedState getEntry(String username) {
+        CachedState entry = cache.get(username);
+        if (entry == null) {
+            long start = System.currentTimeMillis();
+            // Pending changes of an evicted user must be on disk before reading it back
+            flush(username);
+            State state = new State();
+            long snapshotLength = 0;
+            long logLength = 0;
             try {
                 File f = getFile(username);
+                if (!f.exists()) {
+                    migrate(username, f);
+                }
                 if (f.exists()) {
                     log.debug("Reading State for user {} from disk", username);
-                    in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
-                    state = (State) in.readObject();
+                    snapshotLength = f.length();
+                    state = StateFile.read(f);
                 }
+                logLength = Journal.replay(getLogFile(username), state);
             } catch (IOException e) {
-                log.error("Failed to read State object from file for user " + username, e);
-            } catch (ClassNotFoundException e) {
-                log.error("Failed to read State object from file for user " + username, e);
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException e) {}
+                /*
+                 * Replaying the journal on anything but the snapshot it was 
+                 * written after would give a State with the wrong sync keys. 
+                 * Start over from sync key 0 instead so that everything is 
+                 * fetched again.
+                 */
+                log.error("Failed to read State from disk for user " + username 
+                        + ". Resetting the user.", e);
+                quarantine(username);
+                state = new State();
+                snapshotLength = 0;
+                logLength = 0;
+            }
+            entry = new CachedState(state);
+            entry.snapshotLength = snapshotLength;
+            entry.logLength = logLength;
+            cache.put(username, entry, weigh(state), System.currentTimeMillis() - start);
+        }
+        return entry;
+    }
+    
+    /**
+     * Moves the files of the specified user out of the way by renaming them 
+     * to <code>.corrupt</code> so that they aren't read again.
+     */
+    private void quarantine(String username) {
+        try {
+            for (File f : new File[] {getFile(username), getLogFile(username), getLegacyFile(username)}) {
+                if (f.exists()) {
+                    File corrupt = new File(f.getParent(), f.getName() + ".corrupt");
+                    corrupt.delete();
+                    if (!f.renameTo(corrupt) && !f.delete()) {
+                        log.error("Failed to remove corrupt file {}", f);
+                    }
                 }
             }
-            if (state == null) {
-                state = new State();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Estimates the number of bytes used by the specified 
+     * {@link AbstractStore.State}.
+     */
+    private static long weigh(State state) {
+        long messages = 0;
+        for (Map<String, Message> map : state.messages.values()) {
+            messages += map.size();
+        }
+        return STATE_WEIGHT + (long) state.messagesSyncKeys.size() * FOLDER_WEIGHT 
+                + messages * MESSAGE_WEIGHT;
+    }
+    
+    /**
+     * Converts the serialized {@link AbstractStore.State} written by earlier 
+     * versions of {@link DiskStore} into a {@link StateFile}. The old file 
+     * is deleted once the new one has been written.
+     */
+    private void migrate(String username, File f) throws IOException {
+        File legacy = getLegacyFile(username);
+        if (!legacy.exists()) {
+            return;
+        }
+        log.info("Migrating State for user {} to the binary format", username);
+        State state = null;
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacy)));
+        try {
+            state = (State) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw (IOException) new IOException().initCause(e);
+        } finally {
+            in.close();
+        }
+        File tmp = new File(f.getParent(), f.getName() + ".tmp");
+        StateFile.write(tmp, state);
+        replace(tmp, f);
+        legacy.delete();
+    }
+    
+    @Override
+    public void updateFolders(String username, String syncKey,
+            Collection<Folder> added, Collection<String> deleted) {
+        
+        synchronized (getLock(username)) {
+            super.updateFolders(username, syncKey, added, deleted);
+            append(username, Journal.folders(syncKey, added, deleted));
+        }
+    }
+    
+    @Override
+    public void resetFolders(String username) {
+        synchronized (getLock(username)) {
+            super.resetFolders(username);
+            append(username, Journal.resetFolders());
+        }
+    }
+    
+    @Override
+    public void updateMessages(String username, Folder folder,
+            String syncKey, Collection<Message> added,
+            Collection<String> deleted) {
+        
+        synchronized (getLock(username)) {
+            super.updateMessages(username, folder, syncKey, added, deleted);
+            append(username, Journal.messages(folder.getId(), syncKey, added, deleted));
+        }
+    }
+    
+    @Override
+    public void resetMessages(String username, Folder folder) {
+        synchronized (getLock(username)) {
+            super.resetMessages(username, folder);
+            append(username, Journal.resetMessages(folder.getId()));
+        }
+    }
+    
+    @Override
+    public void setWindowSize(String username, Folder folder, int windowSize) {
+        synchronized (getLock(username)) {
+            if (windowSize != getWindowSize(username, folder)) {
+                super.setWindowSize(username, folder, windowSize);
+                append(username, Journal.windowSize(folder.getId(), windowSize));
             }
-            states.put(username, state);
         }
-        return state;
     }
     
+    /**
+     * Queues a record to be appended to the journal of the specified user. 
+     * Must be called while holding the lock of the user.
+     */
+    private void append(String username, byte[] record) {
+        CachedState entry = cache.peek(username);
+        if (entry != null) {
+            cache.setWeight(username, weigh(entry.state));
+        }
+        List<byte[]> records = pending.get(username);
+        boolean first = records == null;
+        if (first) {
+            records = new ArrayList<byte[]>();
+            pending.put(username, records);
+        }
+        records.add(record);
+        if (maxStaleness == 0) {
+            flush(username);
+        } else if (records.size() == maxPendingChanges) {
+            scheduleFlush(username, 0);
+        } else if (first) {
+            scheduleFlush(username, maxStaleness);
+        }
+    }
+    
+    private void scheduleFlush(final String username, long delay) {
+        try {
+            flusher.schedule(new Runnable() {
+                public void run() {
+                    flush(username);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed. Write synchronously.
+            flush(username);
+        }
+    }
+    
+    /**
+     * Writes the pending changes of the specified user to disk. If the 
+     * write fails the changes are kept and retried later.
+     */
     @Override
-    protected void stateChanged(String username, State state) {
-        ObjectOutputStream out = null;
+    public void flush(String username) {
+        synchronized (getLock(username)) {
+            List<byte[]> records = pending.remove(username);
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            try {
+                Journal.append(getLogFile(username), records, sync);
+            } catch (IOException e) {
+                log.error("Failed to write journal records for user " + username, e);
+                pending.put(username, records);
+                scheduleFlush(username, Math.max(maxStaleness, 1000));
+                return;
+            }
+            CachedState entry = cache.peek(username);
+            if (entry == null) {
+                return;
+            }
+            for (byte[] record : records) {
+                entry.logLength += record.length;
+            }
+            if (entry.logLength > Math.max(MIN_COMPACTION_SIZE, entry.snapshotLength) 
+                    && compacting.putIfAbsent(username, Boolean.TRUE) == null) {
+                scheduleCompaction(username, entry);
+            }
+        }
+    }
+    
+    /**
+     * Writes the pending changes of all users to disk.
+     */
+    public void flush() {
+        for (String username : new ArrayList<String>(pending.keySet())) {
+            flush(username);
+        }
+    }
+    
+    /**
+     * Writes the pending changes of all users to disk and stops the 
+     * background threads. Changes made after this method has been called 
+     * are written, and the journal compacted, synchronously.
+     */
+    public void close() {
+        flusher.shutdown();
+        flush();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void scheduleCompaction(final String username, CachedState entry) {
+        final State copy = copy(entry.state);
+        final long covered = entry.logLength;
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    compact(username, copy, covered);
+                } finally {
+                    compacting.remove(username);
+                }
+            }
+        };
+        try {
+            compactor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed. Compact synchronously.
+            task.run();
+        }
+    }
+    
+    /**
+     * Waits for any scheduled compactions to finish.
+     */
+    void awaitCompaction() throws InterruptedException {
+        try {
+            compactor.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * Writes the specified copy of the {@link AbstractStore.State} of a user 
+     * as the new snapshot and then removes the first <code>covered</code> 
+     * bytes, which are included in the snapshot, from the journal. Records 
+     * appended since the copy was taken are kept.
+     */
+    private void compact(String username, State copy, long covered) {
+        File f = null;
+        File logFile = null;
+        try {
+            f = getFile(username);
+            logFile = getLogFile(username);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        log.debug("Compacting journal of user {}", username);
+        if (!writeSnapshot(username, f, copy)) {
+            return;
+        }
+        synchronized (getLock(username)) {
+            File tmp = new File(logFile.getParent(), logFile.getName() + ".tmp");
+            try {
+                copyTail(logFile, tmp, covered);
+                replace(tmp, logFile);
+            } catch (IOException e) {
+                /*
+                 * The journal is left as it is. Replaying all of it on top 
+                 * of the new snapshot gives the same State.
+                 */
+                log.error("Failed to truncate journal for user " + username, e);
+                tmp.delete();
+                return;
+            }
+            CachedState entry = cache.peek(username);
+            if (entry != null) {
+                entry.logLength -= covered;
+                entry.snapshotLength = f.length();
+            }
+        }
+    }
+    
+    private boolean writeSnapshot(String username, File f, State state) {
         try {
-            File f = getFile(username);
             File tmp = new File(f.getParent(), f.getName() + ".tmp");
             log.debug("Writing State for user {} to disk", username);
-            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
-            out.writeObject(state);
-            out.close();
-            if (f.exists()) {
-                f.delete();
-            }
-            tmp.renameTo(f);
+            StateFile.write(tmp, state);
+            replace(tmp, f);
+            return true;
         } catch (IOException e) {
-            log.error("Failed to write State object to file for user " + username, e);
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e1) {}
+            log.error("Failed to write State to file for user " + username, e);
+            return false;
+        }
+    }
+    
+    private static void replace(File tmp, File f) throws IOException {
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Failed to rename " + tmp + " to " + f);
             }
         }
     }
     
+    private static void copyTail(File from, File to, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel channel = in.getChannel();
+                long position = offset;
+                long end = channel.size();
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, out.getChannel());
+                }
+                // The new journal must be on disk before it replaces the old one
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static State copy(State state) {
+        State copy = new State();
+        copy.foldersSyncKey = state.foldersSyncKey;
+        copy.messagesSyncKeys.putAll(state.messagesSyncKeys);
+        copy.folders.putAll(state.folders);
+        for (Map.Entry<String, Map<String, Message>> e : state.messages.entrySet()) {
+            copy.messages.put(e.getKey(), new HashMap<String, Message>(e.getValue()));
+        }
+        if (state.windowSizes != null) {
+            copy.windowSizes.putAll(state.windowSizes);
+        }
+        return copy;
+    }
+    
 }
\ No newline at end of file
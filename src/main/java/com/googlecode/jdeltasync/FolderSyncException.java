@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.util.Map;
+
+/**
+ * Exception thrown by
+ * {@link DeltaSyncClientHelper#getMessages(Folder[], java.util.concurrent.ExecutorService, int)}
+ * when the synchronization of one or more {@link Folder}s failed. Holds the
+ * exception for each failed {@link Folder} and the {@link Message}s of the
+ * {@link Folder}s which were synchronized successfully.
+ */
+@SuppressWarnings("serial")
+public class FolderSyncException extends DeltaSyncException {
+    private final Map<Folder, Message[]> messages;
+    private final Map<Folder, Exception> failures;
+
+    public FolderSyncException(Map<Folder, Message[]> messages, Map<Folder, Exception> failures) {
+        super("Failed to synchronize " + failures.size() + " folder(s): " + failures.values(),
+                failures.values().iterator().next());
+        this.messages = messages;
+        this.failures = failures;
+    }
+
+    /**
+     * Returns the {@link Message}s of the {@link Folder}s which were
+     * synchronized successfully.
+     *
+     * @return the {@link Message}s keyed by {@link Folder}.
+     */
+    public Map<Folder, Message[]> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Returns the exceptions thrown for the {@link Folder}s which couldn't be
+     * synchronized.
+     *
+     * @return the exceptions keyed by {@link Folder}.
+     */
+    public Map<Folder, Exception> getFailures() {
+        return failures;
+    }
+}
@@ -15,18 +15,20 @@
  */
 package com.googlecode.jdeltasync;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Simple {@link Store} implementation which saves the data in memory only.
+ * Simple {@link Store} implementation which saves the data in memory only. 
+ * Can be shared by several threads.
  */
 public class InMemoryStore extends AbstractStore {
-    private Map<String, State> states = new HashMap<String, State>();
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<String, State>();
     
     protected State getState(String username) {
         State state = states.get(username);
         if (state == null) {
+            // Only called while holding the lock of the user
             state = new State();
             states.put(username, state);
         }
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to an {@link AbstractStore.State}. Each
+ * record is written as its length, a CRC32 checksum and the payload. The
+ * payload starts with the record type followed by the fields of the change.
+ * Replaying a log on top of the snapshot it was written after restores the
+ * {@link AbstractStore.State}.
+ * <p>
+ * Every change either sets a value or clears a map so replaying records on
+ * top of a {@link AbstractStore.State} which already contains some of them
+ * gives the same result as replaying them on the original snapshot. A newer
+ * snapshot can thus be written before the log is truncated.
+ */
+class Journal {
+    private static final byte FOLDERS = 1;
+    private static final byte RESET_FOLDERS = 2;
+    private static final byte MESSAGES = 3;
+    private static final byte RESET_MESSAGES = 4;
+    private static final byte WINDOW_SIZE = 5;
+
+    private static final int READ = 1;
+    private static final int HAS_ATTACHMENTS = 2;
+
+    private Journal() {
+    }
+
+    public static byte[] folders(String syncKey, Collection<Folder> added, Collection<String> deleted) {
+        Record r = new Record(FOLDERS);
+        try {
+            writeString(r.out, syncKey);
+            r.out.writeInt(added.size());
+            for (Folder folder : added) {
+                writeString(r.out, folder.getId());
+                writeString(r.out, folder.getName());
+            }
+            writeStrings(r.out, deleted);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return r.toByteArray();
+    }
+
+    public static byte[] resetFolders() {
+        return new Record(RESET_FOLDERS).toByteArray();
+    }
+
+    public static byte[] messages(String folderId, String syncKey, Collection<Message> added,
+            Collection<String> deleted) {
+
+        Record r = new Record(MESSAGES);
+        try {
+            writeString(r.out, folderId);
+            writeString(r.out, syncKey);
+            r.out.writeInt(added.size());
+            for (Message message : added) {
+                writeString(r.out, message.getId());
+                r.out.writeLong(message.getDateReceived() != null
+                        ? message.getDateReceived().getTime() : Long.MIN_VALUE);
+                r.out.writeLong(message.getSize());
+                r.out.writeByte((message.isRead() ? READ : 0)
+                        | (message.hasAttachments() ? HAS_ATTACHMENTS : 0));
+                writeString(r.out, message.getSubject());
+                writeString(r.out, message.getFrom());
+            }
+            writeStrings(r.out, deleted);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return r.toByteArray();
+    }
+
+    public static byte[] resetMessages(String folderId) {
+        Record r = new Record(RESET_MESSAGES);
+        try {
+            writeString(r.out, folderId);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return r.toByteArray();
+    }
+
+    public static byte[] windowSize(String folderId, int windowSize) {
+        Record r = new Record(WINDOW_SIZE);
+        try {
+            writeString(r.out, folderId);
+            r.out.writeInt(windowSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return r.toByteArray();
+    }
+
+    /**
+     * Appends the specified records to the end of the specified log file 
+     * using a single write. If the write fails the file is truncated to its 
+     * original length so that no partial record is left behind for later 
+     * records to be appended after.
+     *
+     * @param file the log file.
+     * @param records the records.
+     * @param sync <code>true</code> to force the records to the storage 
+     *        device before returning.
+     * @throws IOException on I/O errors.
+     */
+    public static void append(File file, List<byte[]> records, boolean sync) throws IOException {
+        int length = 0;
+        for (byte[] record : records) {
+            length += record.length;
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (byte[] record : records) {
+            System.arraycopy(record, 0, bytes, offset, record.length);
+            offset += record.length;
+        }
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long start = raf.length();
+            try {
+                raf.seek(start);
+                raf.write(bytes);
+                if (sync) {
+                    raf.getFD().sync();
+                }
+            } catch (IOException e) {
+                try {
+                    raf.setLength(start);
+                } catch (IOException e1) {
+                }
+                throw e;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Applies the records in the specified log file to the specified
+     * {@link AbstractStore.State}. Reading stops at the first incomplete or
+     * corrupt record, e.g. one which was being written when the process
+     * crashed, and the file is truncated there.
+     *
+     * @param file the log file.
+     * @param state the {@link AbstractStore.State} to apply the records to.
+     * @return the length of the log file after replay.
+     * @throws IOException on I/O errors.
+     */
+    public static long replay(File file, AbstractStore.State state) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] payload = null;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length <= 0 || length > file.length() - valid) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc != checksum(payload)) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(state, new DataInputStream(new ByteArrayInputStream(payload)));
+                valid += 8 + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        return valid;
+    }
+
+    private static void apply(AbstractStore.State state, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case FOLDERS:
+            state.foldersSyncKey = readString(in);
+            for (int i = in.readInt(); i > 0; i--) {
+                Folder folder = new Folder(readString(in), readString(in));
+                state.folders.put(folder.getId(), folder);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                state.folders.remove(readString(in));
+            }
+            break;
+        case RESET_FOLDERS:
+            state.foldersSyncKey = "0";
+            state.folders.clear();
+            break;
+        case MESSAGES: {
+            String folderId = readString(in);
+            state.messagesSyncKeys.put(folderId, readString(in));
+            Map<String, Message> map = getMessagesMap(state, folderId);
+            for (int i = in.readInt(); i > 0; i--) {
+                String id = readString(in);
+                long date = in.readLong();
+                long size = in.readLong();
+                int flags = in.readByte();
+                map.put(id, new Message(id, date != Long.MIN_VALUE ? new Date(date) : null, size,
+                        (flags & READ) != 0, readString(in), readString(in),
+                        (flags & HAS_ATTACHMENTS) != 0));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                map.remove(readString(in));
+            }
+            break;
+        }
+        case RESET_MESSAGES: {
+            String folderId = readString(in);
+            state.messagesSyncKeys.put(folderId, "0");
+            getMessagesMap(state, folderId).clear();
+            break;
+        }
+        case WINDOW_SIZE:
+            if (state.windowSizes == null) {
+                state.windowSizes = new HashMap<String, Integer>();
+            }
+            state.windowSizes.put(readString(in), in.readInt());
+            break;
+        default:
+            throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static Map<String, Message> getMessagesMap(AbstractStore.State state, String folderId) {
+        Map<String, Message> map = state.messages.get(folderId);
+        if (map == null) {
+            map = new HashMap<String, Message>();
+            state.messages.put(folderId, map);
+        }
+        return map;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A record being built.
+     */
+    private static class Record {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Record(byte type) {
+            try {
+                out.writeByte(type);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] payload = bytes.toByteArray();
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.length + 8);
+            DataOutputStream out = new DataOutputStream(framed);
+            try {
+                out.writeInt(payload.length);
+                out.writeInt(checksum(payload));
+                out.write(payload);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return framed.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Creates the streams the message contents downloaded by
+ * {@link DeltaSyncClient#downloadMessageContents(DeltaSyncSession, java.util.List, MessageSinkFactory)}
+ * are written to.
+ */
+public interface MessageSinkFactory {
+    /**
+     * Returns the stream the content of the message with the specified id
+     * will be written to. Called when the content of the message starts to
+     * arrive.
+     *
+     * @param messageId the id of the message.
+     * @return the stream.
+     * @throws IOException on I/O errors.
+     */
+    OutputStream open(String messageId) throws IOException;
+
+    /**
+     * Called once the content of a message has been written to the stream
+     * returned by {@link #open(String)}, or writing it has failed.
+     *
+     * @param messageId the id of the message.
+     * @param out the stream returned by {@link #open(String)}.
+     * @param complete <code>true</code> if the entire content was written,
+     *        <code>false</code> if the download failed.
+     * @throws IOException on I/O errors.
+     */
+    void close(String messageId, OutputStream out, boolean complete) throws IOException;
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+
+/**
+ * Minimal streaming parser for the MTOM/XOP multipart responses returned by
+ * <code>ItemOperations</code> requests. The response body starts with MIME
+ * headers declaring a <code>multipart/related</code> content type and the
+ * boundary. The parts are split in a single pass over the input and the body
+ * of every part is handed to a {@link PartHandler} as an {@link InputStream}
+ * which reads straight from the parser's buffer. Only the
+ * <code>Content-Type</code> and <code>Content-Transfer-Encoding</code>
+ * headers are interpreted. <code>base64</code> encoded bodies are decoded,
+ * all other encodings are passed through as is.
+ * <p>
+ * If the top-level content type isn't a multipart type the entire body is
+ * handed to the {@link PartHandler} as a single part.
+ */
+class MultipartParser {
+
+    /**
+     * Receives the parts of a multipart response.
+     */
+    interface PartHandler {
+        /**
+         * Called for every part. Any bytes of {@code body} not read when
+         * this method returns are skipped.
+         *
+         * @param mimeType the lower case MIME type of the part, e.g.
+         *        <code>application/octet-stream</code>.
+         * @param contentId the <code>Content-ID</code> of the part without
+         *        the enclosing angle brackets or <code>null</code>.
+         * @param body the decoded body of the part.
+         */
+        void part(String mimeType, String contentId, InputStream body) throws DeltaSyncException, IOException;
+    }
+
+    private static final int BUFFER_SIZE = 32768;
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private MultipartParser(InputStream in) {
+        this.in = in;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Parses the multipart response read from {@code in} and calls
+     * {@code handler} for every part.
+     *
+     * @param in the response body.
+     * @param handler the {@link PartHandler}.
+     * @throws DeltaSyncException if the response is malformed or thrown by
+     *         {@code handler}.
+     * @throws IOException on I/O errors or if thrown by {@code handler}.
+     */
+    public static void parse(InputStream in, PartHandler handler) throws DeltaSyncException, IOException {
+        new MultipartParser(in).parse(handler);
+    }
+
+    private void parse(PartHandler handler) throws DeltaSyncException, IOException {
+        String[] headers = readHeaders();
+        String contentType = headers[0];
+        String boundary = getParameter(contentType, "boundary");
+        if (!mimeType(contentType).startsWith("multipart/") || boundary == null) {
+            handler.part(mimeType(contentType), headers[2], decode(headers[1], new PartInputStream(null)));
+            return;
+        }
+
+        byte[] delimiter = ("\n--" + boundary).getBytes("ISO-8859-1");
+        // Skip the preamble. The first delimiter may be at the very start of the body.
+        if (!startsWith(delimiter, 1)) {
+            skip(new PartInputStream(delimiter));
+        } else {
+            pos += delimiter.length - 1;
+        }
+        while (true) {
+            // We're right after a delimiter. '--' means this was the last one.
+            if (fill(2) >= 2 && buf[pos] == '-' && buf[pos + 1] == '-') {
+                // Drain the epilogue
+                skip(new PartInputStream(null));
+                return;
+            }
+            readLine();
+            if (fill(1) == 0) {
+                throw new DeltaSyncException("Failed to parse multipart xop+xml response: "
+                        + "Unexpected end of stream");
+            }
+            headers = readHeaders();
+            PartInputStream body = new PartInputStream(delimiter);
+            handler.part(mimeType(headers[0]), headers[2], decode(headers[1], body));
+            skip(body);
+            if (body.eof) {
+                throw new DeltaSyncException("Failed to parse multipart xop+xml response: "
+                        + "Missing closing boundary");
+            }
+        }
+    }
+
+    /**
+     * Copies {@code body} to {@code out}. Part bodies which aren't encoded
+     * are written to {@code out} straight from the parser's buffer.
+     *
+     * @param body the body of a part.
+     * @param out the stream to write to.
+     * @throws IOException on I/O errors.
+     */
+    public static void copy(InputStream body, OutputStream out) throws IOException {
+        if (body instanceof PartInputStream) {
+            ((PartInputStream) body).writeTo(out);
+            return;
+        }
+        byte[] buffer = new byte[4096];
+        int n = 0;
+        while ((n = body.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static int[] shifts(byte[] delimiter) {
+        int m = delimiter.length;
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int i = 0; i < m - 1; i++) {
+            shift[delimiter[i] & 0xff] = m - 1 - i;
+        }
+        return shift;
+    }
+
+    private static InputStream decode(String transferEncoding, InputStream body) {
+        if (transferEncoding != null && transferEncoding.trim().equalsIgnoreCase("base64")) {
+            return new Base64InputStream(body);
+        }
+        return body;
+    }
+
+    private static void skip(InputStream in) throws IOException {
+        while (in.skip(Long.MAX_VALUE) > 0) {
+        }
+    }
+
+    /**
+     * Returns the MIME type part of a <code>Content-Type</code> header value.
+     * Defaults to <code>text/plain</code>.
+     */
+    static String mimeType(String contentType) {
+        if (contentType == null) {
+            return "text/plain";
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon == -1 ? contentType : contentType.substring(0, semicolon);
+        return type.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the value of the parameter with the specified name in a header
+     * value or {@code null} if not found. Quotes are removed.
+     */
+    static String getParameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        int i = value.indexOf(';');
+        while (i != -1 && i < value.length()) {
+            int eq = value.indexOf('=', i + 1);
+            if (eq == -1) {
+                return null;
+            }
+            String paramName = value.substring(i + 1, eq).trim();
+            int start = eq + 1;
+            while (start < value.length() && Character.isWhitespace(value.charAt(start))) {
+                start++;
+            }
+            String paramValue;
+            int next;
+            if (start < value.length() && value.charAt(start) == '"') {
+                int end = value.indexOf('"', start + 1);
+                if (end == -1) {
+                    end = value.length();
+                }
+                paramValue = value.substring(start + 1, end);
+                next = value.indexOf(';', end);
+            } else {
+                next = value.indexOf(';', start);
+                paramValue = value.substring(start, next == -1 ? value.length() : next).trim();
+            }
+            if (paramName.equalsIgnoreCase(name)) {
+                return paramValue;
+            }
+            i = next;
+        }
+        return null;
+    }
+
+    /**
+     * Reads header lines up to and including the empty line ending the
+     * headers. Returns the values of the <code>Content-Type</code>,
+     * <code>Content-Transfer-Encoding</code> and <code>Content-ID</code>
+     * headers.
+     */
+    private String[] readHeaders() throws IOException {
+        String[] result = new String[3];
+        String header = null;
+        while (true) {
+            String line = readLine();
+            if (line != null && line.length() > 0
+                    && (line.charAt(0) == ' ' || line.charAt(0) == '\t') && header != null) {
+                // Folded header
+                header += line;
+                continue;
+            }
+            if (header != null) {
+                int colon = header.indexOf(':');
+                if (colon != -1) {
+                    String name = header.substring(0, colon).trim();
+                    String value = header.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Type")) {
+                        result[0] = value;
+                    } else if (name.equalsIgnoreCase("Content-Transfer-Encoding")) {
+                        result[1] = value;
+                    } else if (name.equalsIgnoreCase("Content-ID")) {
+                        result[2] = value.startsWith("<") && value.endsWith(">")
+                            ? value.substring(1, value.length() - 1) : value;
+                    }
+                }
+            }
+            if (line == null || line.length() == 0) {
+                return result;
+            }
+            header = line;
+        }
+    }
+
+    /**
+     * Reads a line terminated by LF or CRLF. Returns {@code null} at the
+     * end of the stream.
+     */
+    private String readLine() throws IOException {
+        StringBuilder sb = null;
+        while (true) {
+            if (fill(1) == 0) {
+                return sb == null ? null : sb.toString();
+            }
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                pos++;
+            }
+            int end = pos;
+            boolean found = pos < limit;
+            if (found) {
+                pos++;
+                if (end > start && buf[end - 1] == '\r') {
+                    end--;
+                } else if (end == start && sb != null && sb.length() > 0
+                        && sb.charAt(sb.length() - 1) == '\r') {
+                    sb.setLength(sb.length() - 1);
+                }
+            }
+            String s = toString(buf, start, end - start);
+            sb = sb == null ? new StringBuilder(s) : sb.append(s);
+            if (found) {
+                return sb.toString();
+            }
+        }
+    }
+
+    private static String toString(byte[] b, int off, int len) {
+        try {
+            return new String(b, off, len, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the buffered input starts with
+     * {@code delimiter} (skipping the first {@code skip} bytes of
+     * {@code delimiter}).
+     */
+    private boolean startsWith(byte[] delimiter, int skip) throws IOException {
+        int n = delimiter.length - skip;
+        if (fill(n) < n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf[pos + i] != delimiter[skip + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tries to make at least {@code n} bytes available in the buffer.
+     * Returns the number of bytes available.
+     */
+    private int fill(int n) throws IOException {
+        if (limit - pos >= n || eof) {
+            return limit - pos;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < n && !eof) {
+            int count = in.read(buf, limit, buf.length - limit);
+            if (count == -1) {
+                eof = true;
+            } else {
+                limit += count;
+            }
+        }
+        return limit - pos;
+    }
+
+    /**
+     * Reads the body of a part up to (but not including) the CRLF or LF
+     * preceding the next delimiter. The delimiter itself is consumed.
+     * Reads until the end of the stream if the delimiter is {@code null}.
+     */
+    private class PartInputStream extends InputStream {
+        private final byte[] delimiter;
+        private final int[] shift;
+        private boolean done = false;
+        private boolean eof = false;
+
+        PartInputStream(byte[] delimiter) {
+            this.delimiter = delimiter;
+            this.shift = delimiter != null ? shifts(delimiter) : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = 0;
+            while ((n = read(b, 0, 1)) == 0) {
+            }
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int n = available(len);
+            if (n == -1) {
+                return -1;
+            }
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Writes the rest of the body to {@code out} without copying it.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            int n = 0;
+            while (!done && (n = available(Integer.MAX_VALUE)) != -1) {
+                out.write(buf, pos, n);
+                pos += n;
+            }
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            if (done) {
+                return 0;
+            }
+            int n = available((int) Math.min(len, Integer.MAX_VALUE));
+            if (n == -1) {
+                return 0;
+            }
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Returns the number of body bytes (at most {@code len}) at
+         * {@code pos} which can be consumed or -1 at the end of the body.
+         */
+        private int available(int len) throws IOException {
+            // Keep the CR before the delimiter in the buffer
+            int keep = delimiter == null ? 1 : delimiter.length + 1;
+            while (true) {
+                int avail = fill(keep);
+                if (avail == 0) {
+                    done = true;
+                    eof = true;
+                    return -1;
+                }
+                if (delimiter == null) {
+                    return Math.min(len, avail);
+                }
+                int end = pos + avail;
+                int i = indexOf(pos, end);
+                if (i != -1) {
+                    int bodyEnd = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    if (bodyEnd > pos) {
+                        return Math.min(len, bodyEnd - pos);
+                    }
+                    // The delimiter is next. Consume it.
+                    pos = i + delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                if (MultipartParser.this.eof) {
+                    // No more delimiters. Hand out the rest.
+                    eof = true;
+                    if (avail == 0) {
+                        done = true;
+                        return -1;
+                    }
+                    return Math.min(len, avail);
+                }
+                // Bytes which can't be part of a delimiter (or its CR) can be handed out
+                int safe = avail - keep;
+                if (safe > 0) {
+                    return Math.min(len, safe);
+                }
+                fill(limit - pos + 1);
+            }
+        }
+
+        /**
+         * Returns the index of the first (possibly partial at the end)
+         * occurrence of the delimiter in the buffer between {@code from} and
+         * {@code to} or -1.
+         */
+        private int indexOf(int from, int to) {
+            // Boyer-Moore-Horspool
+            byte[] b = buf;
+            byte[] d = delimiter;
+            int[] shift = this.shift;
+            int m = d.length;
+            int last = to - m;
+            int i = from;
+            while (i <= last) {
+                int j = m - 1;
+                while (b[i + j] == d[j]) {
+                    if (j == 0) {
+                        return i;
+                    }
+                    j--;
+                }
+                i += shift[b[i + m - 1] & 0xff];
+            }
+            return -1;
+        }
+    }
+}
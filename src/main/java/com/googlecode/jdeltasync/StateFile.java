@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes {@link AbstractStore.State} snapshots in a compact binary
+ * format. The file is read into memory in one go and the fixed-width records
+ * are decoded straight off the buffer.
+ * <p>
+ * Layout (version 2, big-endian):
+ * <pre>
+ * int    magic ('JDSS')
+ * int    version
+ * int    foldersSyncKey     (string index)
+ * int    stringCount
+ * int    folderCount
+ * int    messageCount
+ * int[]  stringOffsets      (stringCount + 1 offsets into the string heap)
+ * byte[] stringHeap         (UTF-8)
+ * folder records  (folderCount x 20 bytes):
+ *   int id, int name, int syncKey, int windowSize, int messageCount
+ * message records (messageCount x 32 bytes, grouped by folder in folder order):
+ *   int id, int subject, int from, long dateReceived, long size, int flags
+ * int    checksum           (CRC32 of all preceding bytes)
+ * </pre>
+ * Strings are stored once in the string table and referenced by index.
+ * <code>-1</code> means <code>null</code>. Folder ids, sync keys and senders
+ * are thus only stored once no matter how often they occur. Dates are stored
+ * as milliseconds since the epoch, <code>Long.MIN_VALUE</code> meaning
+ * <code>null</code>. A folder record with a <code>null</code> name has
+ * messages, a sync key or a window size but isn't in the list of folders.
+ * <p>
+ * Version 1 files are the same without the checksum. A file which fails any 
+ * check is reported as an {@link IOException}.
+ */
+class StateFile {
+    static final int MAGIC = 0x4A445353;
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int FOLDER_RECORD_SIZE = 20;
+    private static final int MESSAGE_RECORD_SIZE = 32;
+
+    private static final int READ = 1;
+    private static final int HAS_ATTACHMENTS = 2;
+
+    private StateFile() {
+    }
+
+    /**
+     * Writes the specified {@link AbstractStore.State} to the specified file 
+     * and forces it to the storage device so that it can safely replace an 
+     * older snapshot.
+     */
+    public static void write(File file, AbstractStore.State state) throws IOException {
+        Set<String> folderIds = new LinkedHashSet<String>();
+        folderIds.addAll(state.folders.keySet());
+        folderIds.addAll(state.messagesSyncKeys.keySet());
+        folderIds.addAll(state.messages.keySet());
+        if (state.windowSizes != null) {
+            folderIds.addAll(state.windowSizes.keySet());
+        }
+
+        StringTable strings = new StringTable();
+        int foldersSyncKey = strings.add(state.foldersSyncKey);
+        int messageCount = 0;
+        for (String folderId : folderIds) {
+            strings.add(folderId);
+            Folder folder = state.folders.get(folderId);
+            strings.add(folder != null ? folder.getName() : null);
+            strings.add(state.messagesSyncKeys.get(folderId));
+            Map<String, Message> messages = state.messages.get(folderId);
+            if (messages != null) {
+                for (Message message : messages.values()) {
+                    strings.add(message.getId());
+                    strings.add(message.getSubject());
+                    strings.add(message.getFrom());
+                }
+                messageCount += messages.size();
+            }
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(foldersSyncKey);
+            out.writeInt(strings.size());
+            out.writeInt(folderIds.size());
+            out.writeInt(messageCount);
+            strings.write(out);
+            for (String folderId : folderIds) {
+                Folder folder = state.folders.get(folderId);
+                Map<String, Message> messages = state.messages.get(folderId);
+                Integer windowSize = state.windowSizes != null ? state.windowSizes.get(folderId) : null;
+                out.writeInt(strings.indexOf(folderId));
+                out.writeInt(strings.indexOf(folder != null ? folder.getName() : null));
+                out.writeInt(strings.indexOf(state.messagesSyncKeys.get(folderId)));
+                out.writeInt(windowSize != null ? windowSize : 0);
+                out.writeInt(messages != null ? messages.size() : 0);
+            }
+            for (String folderId : folderIds) {
+                Map<String, Message> messages = state.messages.get(folderId);
+                if (messages == null) {
+                    continue;
+                }
+                for (Message message : messages.values()) {
+                    out.writeInt(strings.indexOf(message.getId()));
+                    out.writeInt(strings.indexOf(message.getSubject()));
+                    out.writeInt(strings.indexOf(message.getFrom()));
+                    out.writeLong(message.getDateReceived() != null
+                            ? message.getDateReceived().getTime() : Long.MIN_VALUE);
+                    out.writeLong(message.getSize());
+                    out.writeInt((message.isRead() ? READ : 0)
+                            | (message.hasAttachments() ? HAS_ATTACHMENTS : 0));
+                }
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the {@link AbstractStore.State} in the specified file.
+     *
+     * @throws IOException on I/O errors or if the file isn't a valid state
+     *         file.
+     */
+    public static AbstractStore.State read(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("State file " + file + " is too large");
+        }
+        byte[] bytes = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            throw new IOException("Truncated state file " + file);
+        } finally {
+            in.close();
+        }
+        try {
+            return read(ByteBuffer.wrap(bytes));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated state file " + file);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt state file " + file);
+        }
+    }
+
+    private static AbstractStore.State read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a state file");
+        }
+        int version = buffer.getInt();
+        if (version == VERSION) {
+            int end = buffer.limit() - 4;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, end);
+            if ((int) crc.getValue() != buffer.getInt(end)) {
+                throw new IOException("State file checksum mismatch");
+            }
+            buffer.limit(end);
+        } else if (version != 1) {
+            throw new IOException("Unsupported state file version " + version);
+        }
+        int foldersSyncKey = buffer.getInt();
+        int stringCount = buffer.getInt();
+        int folderCount = buffer.getInt();
+        int messageCount = buffer.getInt();
+        if (stringCount < 0 || folderCount < 0 || messageCount < 0 
+                || (stringCount + 1L) * 4 > buffer.remaining()) {
+            throw new IOException("Corrupt state file header");
+        }
+
+        int[] offsets = new int[stringCount + 1];
+        for (int i = 0; i <= stringCount; i++) {
+            offsets[i] = buffer.getInt();
+            if (offsets[i] < (i > 0 ? offsets[i - 1] : 0)) {
+                throw new IOException("Corrupt state file string table");
+            }
+        }
+        int heapStart = buffer.position();
+        if (offsets[stringCount] > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = new String(buffer.array(), heapStart + offsets[i], offsets[i + 1] - offsets[i], "UTF-8");
+        }
+        buffer.position(heapStart + offsets[stringCount]);
+
+        AbstractStore.State state = new AbstractStore.State();
+        state.foldersSyncKey = string(strings, foldersSyncKey);
+        int folderStart = buffer.position();
+        long messageStart = folderStart + (long) folderCount * FOLDER_RECORD_SIZE;
+        if (buffer.limit() != messageStart + (long) messageCount * MESSAGE_RECORD_SIZE) {
+            throw new IOException("Corrupt state file record counts");
+        }
+        int messagePos = (int) messageStart;
+        long messagesLeft = messageCount;
+        for (int i = 0; i < folderCount; i++) {
+            int pos = folderStart + i * FOLDER_RECORD_SIZE;
+            String id = string(strings, buffer.getInt(pos));
+            String name = string(strings, buffer.getInt(pos + 4));
+            String syncKey = string(strings, buffer.getInt(pos + 8));
+            int windowSize = buffer.getInt(pos + 12);
+            int count = buffer.getInt(pos + 16);
+            if (id == null || count < 0 || count > messagesLeft) {
+                throw new IOException("Corrupt state file folder record");
+            }
+            messagesLeft -= count;
+            if (name != null) {
+                state.folders.put(id, new Folder(id, name));
+            }
+            if (syncKey != null) {
+                state.messagesSyncKeys.put(id, syncKey);
+            }
+            if (windowSize > 0) {
+                state.windowSizes.put(id, windowSize);
+            }
+            if (count > 0) {
+                Map<String, Message> messages = new HashMap<String, Message>(count * 4 / 3 + 1);
+                for (int j = 0; j < count; j++, messagePos += MESSAGE_RECORD_SIZE) {
+                    String messageId = string(strings, buffer.getInt(messagePos));
+                    long date = buffer.getLong(messagePos + 12);
+                    int flags = buffer.getInt(messagePos + 28);
+                    messages.put(messageId, new Message(messageId,
+                            date != Long.MIN_VALUE ? new Date(date) : null,
+                            buffer.getLong(messagePos + 20), (flags & READ) != 0,
+                            string(strings, buffer.getInt(messagePos + 4)),
+                            string(strings, buffer.getInt(messagePos + 8)),
+                            (flags & HAS_ATTACHMENTS) != 0));
+                }
+                state.messages.put(id, messages);
+            }
+        }
+        return state;
+    }
+
+    private static String string(String[] strings, int index) throws IOException {
+        if (index < -1 || index >= strings.length) {
+            throw new IOException("Corrupt state file string index " + index);
+        }
+        return index == -1 ? null : strings[index];
+    }
+
+    /**
+     * Collects the distinct strings of a {@link AbstractStore.State}.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new LinkedHashMap<String, Integer>();
+        private final List<byte[]> bytes = new ArrayList<byte[]>();
+
+        int add(String s) throws IOException {
+            if (s == null) {
+                return -1;
+            }
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = bytes.size();
+                indexes.put(s, index);
+                bytes.add(s.getBytes("UTF-8"));
+            }
+            return index;
+        }
+
+        int indexOf(String s) {
+            return s == null ? -1 : indexes.get(s);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] b : bytes) {
+                offset += b.length;
+                out.writeInt(offset);
+            }
+            for (byte[] b : bytes) {
+                out.write(b);
+            }
+        }
+    }
+}
@@ -19,6 +19,9 @@ import java.util.Collection;
 
 /**
  * Used by {@link DeltaSyncClientHelper} to cache {@link Folder}s and {@link Message}.
+ * Implementations must be thread-safe. {@link DeltaSyncClientHelper} updates 
+ * the {@link Store} from background threads and a single {@link Store} is 
+ * usually shared by the {@link DeltaSyncClientHelper}s of many users.
  */
 public interface Store {
     String getFoldersSyncKey(String username);
@@ -29,4 +32,13 @@ public interface Store {
     void resetMessages(String username, Folder folder);
     Collection<Folder> getFolders(String username);
     Collection<Message> getMessages(String username, Folder folder);
+    int getWindowSize(String username, Folder folder);
+    void setWindowSize(String username, Folder folder, int windowSize);
+    
+    /**
+     * Makes sure all changes made for the specified user have been saved. 
+     * Implementations which save changes in the background write them 
+     * before returning.
+     */
+    void flush(String username);
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Receives the contents of a <code>Sync</code> response while it is being
+ * parsed (see {@link DeltaSyncClient#sync(DeltaSyncSession,
+ * com.googlecode.jdeltasync.message.SyncRequest, SyncHandler)}). The
+ * {@link Command}s and {@link SyncResponse.Collection.Response}s of a
+ * <code>&lt;Collection&gt;</code> are passed to the handler one at a time as
+ * soon as they have been read. Once the end of the
+ * <code>&lt;Collection&gt;</code> has been reached
+ * {@link #collection(SyncResponse.Collection)} is called.
+ */
+public interface SyncHandler {
+    /**
+     * Called for every <code>&lt;Add&gt;</code> and
+     * <code>&lt;Delete&gt;</code> command in the current collection.
+     *
+     * @param command the {@link Command}.
+     * @throws DeltaSyncException to abort the parsing.
+     */
+    void command(Command command) throws DeltaSyncException;
+
+    /**
+     * Called for every response to a command sent in the request.
+     *
+     * @param response the {@link SyncResponse.Collection.Response}.
+     * @throws DeltaSyncException to abort the parsing.
+     */
+    void response(SyncResponse.Collection.Response response) throws DeltaSyncException;
+
+    /**
+     * Called at the end of every <code>&lt;Collection&gt;</code>. The
+     * {@link SyncResponse.Collection#getCommands()} and
+     * {@link SyncResponse.Collection#getResponses()} lists of
+     * <code>collection</code> are empty. The commands and responses have
+     * already been passed to {@link #command(Command)} and
+     * {@link #response(SyncResponse.Collection.Response)}.
+     *
+     * @param collection the {@link SyncResponse.Collection}.
+     * @throws DeltaSyncException to abort the parsing.
+     */
+    void collection(SyncResponse.Collection collection) throws DeltaSyncException;
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.EmailAddCommand;
+import com.googlecode.jdeltasync.message.EmailDeleteCommand;
+import com.googlecode.jdeltasync.message.FolderAddCommand;
+import com.googlecode.jdeltasync.message.FolderDeleteCommand;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Streaming SAX parser for <code>Sync</code> responses. Instead of building
+ * a DOM of the entire response the <code>&lt;Add&gt;</code> and
+ * <code>&lt;Delete&gt;</code> elements of every
+ * <code>&lt;Collection&gt;</code> are turned into {@link Command}s and handed
+ * to a {@link SyncHandler} as soon as their end tag has been read. Only the
+ * fields of the current item are kept in memory.
+ * <p>
+ * The top-level <code>&lt;Status&gt;</code> and
+ * <code>&lt;Fault&gt;&lt;Faultstring&gt;</code> are recorded and can be
+ * checked using {@link #getStatus()} and {@link #getFaultstring()} once
+ * {@link #parse(InputStream)} returns. <code>&lt;Collection&gt;</code>s are
+ * ignored unless the status is <code>1</code>.
+ */
+class SyncResponseParser extends DefaultHandler {
+    private static final String AIRSYNC = "AirSync:";
+    private static final String HMFOLDER = "HMFOLDER:";
+    private static final String HMMAIL = "HMMAIL:";
+    private static final String EMAIL = "EMAIL:";
+
+    private final SyncHandler handler;
+    private final SimpleDateFormat format;
+    private final List<String> uris = new ArrayList<String>();
+    private final List<String> names = new ArrayList<String>();
+    private final StringBuilder text = new StringBuilder();
+
+    private String status;
+    private String faultstring;
+
+    // The state of the current <Collection>
+    private int collectionDepth = -1;
+    private String syncKey;
+    private Clazz clazz;
+    private String collectionId;
+    private String collectionStatus;
+    private boolean moreAvailable;
+
+    // The state of the current <Add> or <Delete>
+    private String id;
+    private String folderId;
+    private String size;
+    private String read;
+    private String hasAttachments;
+    private String dateReceived;
+    private String subject;
+    private String from;
+    private String displayName;
+    private String itemStatus;
+
+    /**
+     * Creates a new {@link SyncResponseParser} which passes the contents of
+     * the response to the specified {@link SyncHandler}.
+     *
+     * @param handler the {@link SyncHandler}.
+     */
+    public SyncResponseParser(SyncHandler handler) {
+        this.handler = handler;
+        this.format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        this.format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Parses the <code>Sync</code> response read from {@code in}.
+     *
+     * @param in the stream to read from.
+     * @throws XmlException on parse errors.
+     * @throws DeltaSyncException if the response is malformed or thrown by
+     *         the {@link SyncHandler}.
+     * @throws IOException on I/O errors.
+     */
+    public void parse(InputStream in) throws DeltaSyncException, IOException {
+        XmlUtil.parse(in, this);
+    }
+
+    /**
+     * Returns the text content of the top-level <code>&lt;Status&gt;</code>
+     * element.
+     *
+     * @return the status or <code>null</code> if there was none.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the text content of the top-level
+     * <code>&lt;Fault&gt;&lt;Faultstring&gt;</code> element.
+     *
+     * @return the fault string or <code>null</code> if there was none.
+     */
+    public String getFaultstring() {
+        return faultstring;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+            Attributes attributes) throws SAXException {
+
+        uris.add(uri);
+        names.add(localName);
+        text.setLength(0);
+        int depth = names.size() - 1;
+
+        if (collectionDepth == -1) {
+            if (AIRSYNC.equals(uri) && "Collection".equals(localName)
+                    && (status == null || "1".equals(status))) {
+                collectionDepth = depth;
+                syncKey = null;
+                clazz = null;
+                collectionId = null;
+                collectionStatus = null;
+                moreAvailable = false;
+            }
+        } else if (depth == collectionDepth + 1) {
+            if (AIRSYNC.equals(uri) && "MoreAvailable".equals(localName)) {
+                moreAvailable = true;
+            }
+        } else if (depth == collectionDepth + 2) {
+            id = null;
+            folderId = null;
+            size = null;
+            read = null;
+            hasAttachments = null;
+            dateReceived = null;
+            subject = null;
+            from = null;
+            displayName = null;
+            itemStatus = null;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        int depth = names.size() - 1;
+        try {
+            if (collectionDepth == -1) {
+                if (depth == 1 && "Status".equals(localName) && status == null) {
+                    status = text();
+                } else if (depth == 2 && "Faultstring".equals(localName)
+                        && "Fault".equals(names.get(1)) && faultstring == null) {
+                    faultstring = text();
+                }
+            } else if (depth == collectionDepth) {
+                endCollection();
+            } else if (depth == collectionDepth + 1) {
+                if (AIRSYNC.equals(uri)) {
+                    if ("SyncKey".equals(localName) && syncKey == null) {
+                        syncKey = text();
+                    } else if ("Class".equals(localName) && clazz == null) {
+                        clazz = Clazz.valueOf(text());
+                    } else if ("CollectionId".equals(localName) && collectionId == null) {
+                        collectionId = text();
+                    } else if ("Status".equals(localName) && collectionStatus == null) {
+                        collectionStatus = text();
+                    }
+                }
+            } else if (depth == collectionDepth + 2) {
+                if (AIRSYNC.equals(uri) && AIRSYNC.equals(uris.get(depth - 1))) {
+                    endItem(names.get(depth - 1), localName);
+                }
+            } else if (depth == collectionDepth + 3) {
+                if (AIRSYNC.equals(uri)) {
+                    if ("ServerId".equals(localName) && id == null) {
+                        id = text();
+                    } else if ("Status".equals(localName) && itemStatus == null) {
+                        itemStatus = text();
+                    }
+                } else if (HMMAIL.equals(uri) && "FolderId".equals(localName) && folderId == null) {
+                    folderId = text();
+                }
+            } else if (depth == collectionDepth + 4) {
+                if (AIRSYNC.equals(uris.get(depth - 1)) && "ApplicationData".equals(names.get(depth - 1))) {
+                    endApplicationData(uri, localName);
+                }
+            }
+        } catch (DeltaSyncException e) {
+            throw new SAXException(e);
+        }
+        uris.remove(depth);
+        names.remove(depth);
+    }
+
+    private void endApplicationData(String uri, String localName) {
+        if (HMMAIL.equals(uri)) {
+            if ("Size".equals(localName) && size == null) {
+                size = text();
+            } else if ("HasAttachments".equals(localName) && hasAttachments == null) {
+                hasAttachments = text();
+            }
+        } else if (EMAIL.equals(uri)) {
+            if ("Read".equals(localName) && read == null) {
+                read = text();
+            } else if ("DateReceived".equals(localName) && dateReceived == null) {
+                dateReceived = text();
+            } else if ("Subject".equals(localName) && subject == null) {
+                subject = text();
+            } else if ("From".equals(localName) && from == null) {
+                from = text();
+            }
+        } else if (HMFOLDER.equals(uri)) {
+            if ("DisplayName".equals(localName) && displayName == null) {
+                displayName = text();
+            }
+        }
+    }
+
+    private void endItem(String parent, String localName) throws DeltaSyncException {
+        if ("Commands".equals(parent)) {
+            if (!"Add".equals(localName) && !"Delete".equals(localName)) {
+                // TODO: AirSync:Change
+                return;
+            }
+            if (clazz == null) {
+                throw new DeltaSyncException("No <Class> before <Commands> in <Collection>");
+            }
+            boolean add = "Add".equals(localName);
+            switch (clazz) {
+            case Email:
+                if (add) {
+                    try {
+                        handler.command(new EmailAddCommand(id, folderId, format.parse(dateReceived),
+                                Long.parseLong(size), Integer.parseInt(read) == 1, subject, from,
+                                Integer.parseInt(hasAttachments) == 1));
+                    } catch (ParseException e) {
+                        throw new DeltaSyncException(e);
+                    }
+                } else {
+                    handler.command(new EmailDeleteCommand(id));
+                }
+                break;
+            case Folder:
+                if (add) {
+                    handler.command(new FolderAddCommand(id, displayName));
+                } else {
+                    handler.command(new FolderDeleteCommand(id));
+                }
+                break;
+            }
+        } else if ("Responses".equals(parent) && "Delete".equals(localName)) {
+            // TODO: Support for other types of responses
+            handler.response(new SyncResponse.Collection.EmailDeleteResponse(id, Integer.parseInt(itemStatus)));
+        }
+    }
+
+    private void endCollection() throws DeltaSyncException {
+        collectionDepth = -1;
+        handler.collection(new SyncResponse.Collection(syncKey, clazz, collectionId,
+                Integer.parseInt(collectionStatus), Collections.<Command>emptyList(),
+                moreAvailable, Collections.<SyncResponse.Collection.Response>emptyList()));
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        text.append(ch, start, length);
+    }
+
+    private String text() {
+        return text.toString().trim();
+    }
+}
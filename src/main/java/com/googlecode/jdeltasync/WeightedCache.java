@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe cache bounded by the total weight of its values rather than
+ * their number. The weight of a value is supplied by the caller, typically
+ * an estimate of the number of bytes it uses, and can change while the
+ * value is cached. The least recently used values are evicted when the
+ * total weight exceeds the maximum, but the most recently used value is
+ * always kept even if it alone exceeds the maximum. Values which haven't
+ * been used for longer than the expiry time are evicted as well.
+ * <p>
+ * The values are kept in the order they were last used by {@link #get} or 
+ * {@link #put}, least recently used first, so that both kinds of eviction 
+ * only have to look at the head of the map. {@link #peek} and 
+ * {@link #setWeight} don't count as uses.
+ */
+class WeightedCache<K, V> {
+    private final Map<K, Node<V>> nodes = new LinkedHashMap<K, Node<V>>();
+    private long maxWeight;
+    private long expiry;
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long loadTime = 0;
+    private long evictions = 0;
+
+    private static class Node<V> {
+        private final V value;
+        private long weight;
+        private long lastAccess;
+
+        Node(V value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxWeight the maximum total weight.
+     * @param expiry the number of milliseconds a value may go unused before
+     *        it is evicted. <code>0</code> means never.
+     */
+    WeightedCache(long maxWeight, long expiry) {
+        setMaxWeight(maxWeight);
+        setExpiry(expiry);
+    }
+
+    /**
+     * Returns the value for the specified key and counts a hit or a miss.
+     *
+     * @return the value or <code>null</code> if not cached.
+     */
+    V get(K key) {
+        synchronized (nodes) {
+            long now = System.currentTimeMillis();
+            evictExpired(now);
+            Node<V> node = nodes.remove(key);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            node.lastAccess = now;
+            nodes.put(key, node);
+            return node.value;
+        }
+    }
+
+    /**
+     * Returns the value for the specified key without counting a hit or a
+     * miss and without affecting when it is evicted.
+     *
+     * @return the value or <code>null</code> if not cached.
+     */
+    V peek(K key) {
+        synchronized (nodes) {
+            Node<V> node = nodes.get(key);
+            return node != null ? node.value : null;
+        }
+    }
+
+    /**
+     * Adds a value which has just been loaded after a miss.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @param weight the weight of the value.
+     * @param loadTime the number of milliseconds it took to load the value.
+     */
+    void put(K key, V value, long weight, long loadTime) {
+        synchronized (nodes) {
+            Node<V> node = new Node<V>(value);
+            node.weight = weight;
+            node.lastAccess = System.currentTimeMillis();
+            Node<V> old = nodes.remove(key);
+            nodes.put(key, node);
+            if (old != null) {
+                this.weight -= old.weight;
+            }
+            this.weight += weight;
+            this.loadTime += loadTime;
+            evictOverweight();
+        }
+    }
+
+    /**
+     * Updates the weight of the value for the specified key, if it is still
+     * cached, and evicts values if the cache has become too heavy.
+     */
+    void setWeight(K key, long weight) {
+        synchronized (nodes) {
+            Node<V> node = nodes.get(key);
+            if (node != null) {
+                this.weight += weight - node.weight;
+                node.weight = weight;
+                evictOverweight();
+            }
+        }
+    }
+
+    /**
+     * Evicts the values which haven't been used for longer than the expiry
+     * time.
+     */
+    void evictExpired() {
+        synchronized (nodes) {
+            evictExpired(System.currentTimeMillis());
+        }
+    }
+
+    private void evictExpired(long now) {
+        if (expiry <= 0) {
+            return;
+        }
+        for (Iterator<Node<V>> it = nodes.values().iterator(); it.hasNext();) {
+            Node<V> node = it.next();
+            if (now - node.lastAccess <= expiry) {
+                break;
+            }
+            it.remove();
+            weight -= node.weight;
+            evictions++;
+        }
+    }
+
+    private void evictOverweight() {
+        for (Iterator<Node<V>> it = nodes.values().iterator();
+                weight > maxWeight && nodes.size() > 1;) {
+            Node<V> node = it.next();
+            it.remove();
+            weight -= node.weight;
+            evictions++;
+        }
+    }
+
+    long getMaxWeight() {
+        synchronized (nodes) {
+            return maxWeight;
+        }
+    }
+
+    void setMaxWeight(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight");
+        }
+        synchronized (nodes) {
+            this.maxWeight = maxWeight;
+            evictOverweight();
+        }
+    }
+
+    long getExpiry() {
+        synchronized (nodes) {
+            return expiry;
+        }
+    }
+
+    void setExpiry(long expiry) {
+        if (expiry < 0) {
+            throw new IllegalArgumentException("expiry");
+        }
+        synchronized (nodes) {
+            this.expiry = expiry;
+        }
+    }
+
+    long getWeight() {
+        synchronized (nodes) {
+            return weight;
+        }
+    }
+
+    int size() {
+        synchronized (nodes) {
+            return nodes.size();
+        }
+    }
+
+    long getHitCount() {
+        synchronized (nodes) {
+            return hits;
+        }
+    }
+
+    long getMissCount() {
+        synchronized (nodes) {
+            return misses;
+        }
+    }
+
+    long getLoadTime() {
+        synchronized (nodes) {
+            return loadTime;
+        }
+    }
+
+    long getEvictionCount() {
+        synchronized (nodes) {
+            return evictions;
+        }
+    }
+}
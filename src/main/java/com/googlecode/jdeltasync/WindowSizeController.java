@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+/**
+ * Adjusts the <code>&lt;WindowSize&gt;</code> used when synchronizing the
+ * messages of a {@link Folder} based on how long the previous page took and
+ * how many commands it returned. The window is doubled while full pages come
+ * back in less than half the target response time and is scaled down when a
+ * page takes longer than the target. The window always stays within the
+ * configured bounds.
+ */
+class WindowSizeController {
+    private final int minWindowSize;
+    private final int maxWindowSize;
+    private final long targetResponseTime;
+
+    /**
+     * Creates a new {@link WindowSizeController}.
+     *
+     * @param minWindowSize the smallest window to use.
+     * @param maxWindowSize the largest window to use.
+     * @param targetResponseTime the response time in milliseconds to aim for.
+     */
+    public WindowSizeController(int minWindowSize, int maxWindowSize, long targetResponseTime) {
+        if (minWindowSize <= 0 || maxWindowSize < minWindowSize) {
+            throw new IllegalArgumentException("minWindowSize/maxWindowSize");
+        }
+        if (targetResponseTime <= 0) {
+            throw new IllegalArgumentException("targetResponseTime");
+        }
+        this.minWindowSize = minWindowSize;
+        this.maxWindowSize = maxWindowSize;
+        this.targetResponseTime = targetResponseTime;
+    }
+
+    public int getMinWindowSize() {
+        return minWindowSize;
+    }
+
+    public int getMaxWindowSize() {
+        return maxWindowSize;
+    }
+
+    public long getTargetResponseTime() {
+        return targetResponseTime;
+    }
+
+    /**
+     * Returns the specified window size limited to the bounds of this
+     * controller.
+     */
+    public int clamp(int windowSize) {
+        return Math.max(minWindowSize, Math.min(maxWindowSize, windowSize));
+    }
+
+    /**
+     * Returns the window size to use for the next page.
+     *
+     * @param windowSize the window size used for the page just received.
+     * @param commands the number of commands in the page.
+     * @param moreAvailable whether the server has more changes available.
+     * @param elapsed the time in milliseconds it took to receive the page.
+     * @return the new window size.
+     */
+    public int adjust(int windowSize, int commands, boolean moreAvailable, long elapsed) {
+        windowSize = clamp(windowSize);
+        if (elapsed > targetResponseTime && commands > minWindowSize) {
+            /*
+             * Too slow. Assume the time is proportional to the number of
+             * commands but never shrink by more than half at a time since a
+             * single slow response may just be a hiccup.
+             */
+            long scaled = windowSize * targetResponseTime / elapsed;
+            return clamp((int) Math.max(scaled, windowSize / 2));
+        }
+        if (moreAvailable && commands >= windowSize && elapsed * 2 < targetResponseTime) {
+            // A full page which came back quickly. Ask for more next time.
+            return clamp((int) Math.min((long) windowSize * 2, Integer.MAX_VALUE));
+        }
+        return windowSize;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs {@link Store} updates in the background on an {@link Executor}, one
+ * at a time and in the order they were submitted, while the caller carries
+ * on with the next request. Once a task fails the remaining tasks are
+ * dropped and the failure is rethrown by {@link #submit(Runnable)} and
+ * {@link #await()}.
+ */
+class WriteBehindQueue {
+    private final Executor executor;
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private boolean running;
+    private Throwable failure;
+
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Creates a new {@link WriteBehindQueue}.
+     *
+     * @param executor the {@link Executor} to run the tasks on.
+     */
+    public WriteBehindQueue(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues the specified task to be run after all previously submitted
+     * tasks.
+     *
+     * @param task the task.
+     * @throws RuntimeException if a previously submitted task has failed.
+     */
+    public void submit(Runnable task) {
+        synchronized (this) {
+            rethrow();
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        try {
+            executor.execute(drainer);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                tasks.clear();
+                running = false;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until all submitted tasks have been run.
+     *
+     * @throws InterruptedIOException if interrupted while waiting.
+     * @throws RuntimeException if a task has failed.
+     */
+    public synchronized void await() throws IOException {
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException().initCause(e);
+            }
+        }
+        rethrow();
+    }
+
+    /**
+     * Like {@link #await()} but doesn't throw. Used when the caller is
+     * already failing. Returns the failure of a task, if any.
+     */
+    public synchronized Throwable awaitQuietly() {
+        boolean interrupted = false;
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failure;
+    }
+
+    private void rethrow() {
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task = null;
+            synchronized (this) {
+                if (failure != null || tasks.isEmpty()) {
+                    tasks.clear();
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                task = tasks.removeFirst();
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                synchronized (this) {
+                    failure = t;
+                }
+            }
+        }
+    }
+}
@@ -22,15 +22,17 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -43,6 +45,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Utility methods for working with XML {@link Document}s.
@@ -89,16 +92,38 @@ import org.xml.sax.SAXException;
  *   <tr>
  *     <td>hmsync</td><td>HMSYNC:</td>
  *   </tr>
+ *   <tr>
+ *     <td>xop</td><td>http://www.w3.org/2004/08/xop/include</td>
+ *   </tr>
  * </table>
+ * <p>
+ * Paths used repeatedly should be compiled once using {@link #compile(String)}.
+ * The methods taking a path string compile the path on first use and cache 
+ * the resulting {@link Path}.
+ * <p>
+ * The {@link DocumentBuilder}s, {@link SAXParser}s and {@link Transformer}s 
+ * used by this class are created once per thread and reused.
  */
 class XmlUtil {
 
     private static final DocumentBuilderFactory DOM_FACTORY;
+    private static final SAXParserFactory SAX_FACTORY;
+    private static final TransformerFactory TRANSFORMER_FACTORY;
     private static final Map<String, String> NAMESPACES;
+    private static final Map<String, Path> PATHS = new ConcurrentHashMap<String, Path>();
+    
+    // A thread's instance is taken out while in use so that reentrant calls 
+    // (e.g. from a SAX handler) get a fresh instance instead of a busy one.
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>();
+    private static final ThreadLocal<SAXParser> SAX_PARSER = new ThreadLocal<SAXParser>();
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>();
     
     static {
         DOM_FACTORY = DocumentBuilderFactory.newInstance();
         DOM_FACTORY.setNamespaceAware(true); 
+        SAX_FACTORY = SAXParserFactory.newInstance();
+        SAX_FACTORY.setNamespaceAware(true);
+        TRANSFORMER_FACTORY = TransformerFactory.newInstance();
         
         NAMESPACES = new HashMap<String, String>();
         NAMESPACES.put("s", "http://www.w3.org/2003/05/soap-envelope");
@@ -112,6 +137,7 @@ class XmlUtil {
         NAMESPACES.put("hmmail", "HMMAIL:");
         NAMESPACES.put("email", "EMAIL:");
         NAMESPACES.put("hmsync", "HMSYNC:");
+        NAMESPACES.put("xop", "http://www.w3.org/2004/08/xop/include");
     }
     
     /**
@@ -123,8 +149,17 @@ class XmlUtil {
      * @throws IOException on I/O errors.
      */
     public static Document parse(InputStream input) throws XmlException, IOException {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
         try {
-            return DOM_FACTORY.newDocumentBuilder().parse(input);
+            if (builder == null) {
+                builder = DOM_FACTORY.newDocumentBuilder();
+            } else {
+                DOCUMENT_BUILDER.set(null);
+            }
+            Document doc = builder.parse(input);
+            builder.reset();
+            DOCUMENT_BUILDER.set(builder);
+            return doc;
         } catch (SAXException e) {
             throw new XmlException(e);
         } catch (ParserConfigurationException e) {
@@ -132,6 +167,39 @@ class XmlUtil {
         }
     }
 
+    /**
+     * Parses XML data from a stream and reports the contents to the specified
+     * SAX {@link DefaultHandler}. If <code>handler</code> throws a 
+     * {@link SAXException} wrapping a {@link DeltaSyncException} the 
+     * {@link DeltaSyncException} is rethrown.
+     * 
+     * @param input the stream to read from.
+     * @param handler the {@link DefaultHandler}.
+     * @throws XmlException on parse errors.
+     * @throws DeltaSyncException if thrown by <code>handler</code>.
+     * @throws IOException on I/O errors.
+     */
+    public static void parse(InputStream input, DefaultHandler handler) throws DeltaSyncException, IOException {
+        SAXParser parser = SAX_PARSER.get();
+        try {
+            if (parser == null) {
+                parser = SAX_FACTORY.newSAXParser();
+            } else {
+                SAX_PARSER.set(null);
+            }
+            parser.parse(input, handler);
+            parser.reset();
+            SAX_PARSER.set(parser);
+        } catch (SAXException e) {
+            if (e.getException() instanceof DeltaSyncException) {
+                throw (DeltaSyncException) e.getException();
+            }
+            throw new XmlException(e);
+        } catch (ParserConfigurationException e) {
+            throw new XmlException(e);
+        }
+    }
+
     private static String[] split(String s, String delim, boolean includeDelim) {
         StringTokenizer tok = new StringTokenizer(s, delim, includeDelim);
         String[] parts = new String[tok.countTokens()];
@@ -141,6 +209,27 @@ class XmlUtil {
         return parts;
     }
     
+    /**
+     * Compiles the specified <code>path</code> into a {@link Path} which can 
+     * be evaluated against any number of {@link Node}s.
+     * 
+     * @param path the path.
+     * @return the compiled {@link Path}.
+     * @throws IllegalArgumentException if the path uses an unbound prefix.
+     */
+    public static Path compile(String path) {
+        return new Path(path);
+    }
+    
+    private static Path getPath(String path) {
+        Path p = PATHS.get(path);
+        if (p == null) {
+            p = compile(path);
+            PATHS.put(path, p);
+        }
+        return p;
+    }
+    
     /**
      * Returns the first {@link Element} which matches the specified
      * <code>path</code>. The search starts at the specified root {@link Node}.
@@ -151,11 +240,7 @@ class XmlUtil {
      *         <code>null</code> if no match could be found.
      */
     public static Element getElement(Node root, String path) {
-        List<Element> l = getElements(root, path);
-        if (l.isEmpty()) {
-            return null;
-        }
-        return l.get(0);
+        return getPath(path).getElement(root);
     }
     
     /**
@@ -167,67 +252,7 @@ class XmlUtil {
      * @return the {@link Element}s that matches the path.
      */
     public static List<Element> getElements(Node root, String path) {
-        return getElements(root, new LinkedList<String>(Arrays.asList(split(path, "/", true))));
-    }
-    
-    private static List<Element> find(Node root, String nsUri, String localName, boolean recursive) {
-        List<Element> result = new ArrayList<Element>();
-        NodeList nl = root.getChildNodes();
-        if (nl != null) {
-            int len = nl.getLength();
-            for (int i = 0; i < len; i++) {
-                Node child = nl.item(i);
-                if (child instanceof Element) {
-                    String childUri = child.getNamespaceURI();
-                    String childLocalName = child.getLocalName();
-                    if (("*".equals(nsUri) || nsUri == null && childUri == null || nsUri.equals(childUri)) 
-                            && localName.equals(childLocalName)) {
-                        result.add((Element) child);
-                    } else if (recursive) {
-                        result.addAll(find(child, nsUri, localName, recursive));
-                    }
-                }
-            }
-        }
-        return result;
-    }
-    
-    private static List<Element> getElements(Node root, LinkedList<String> parts) {
-        boolean recursive = false;
-        if (parts.getFirst().equals("/")) {
-            parts.removeFirst();
-            if (parts.getFirst().equals("/")) {
-                parts.removeFirst();
-                recursive = true;
-            }
-        }
-        
-        String[] qname = split(parts.removeFirst(), ":", false);
-        String nsUri = null;
-        if (qname.length > 1) {
-            if ("*".equals(qname[0])) {
-                nsUri = "*";
-            } else {
-                nsUri = NAMESPACES.get(qname[0]);
-                if (nsUri == null) {
-                    throw new IllegalArgumentException("Unbound prefix " + qname[0]);
-                }
-            }
-        }
-        String localName = qname.length > 1 ? qname[1] : qname[0];
-        List<Element> matches = find(root, nsUri, localName, recursive);
-        if (!matches.isEmpty()) {
-            if (parts.isEmpty()) {
-                return matches;
-            } else {
-                List<Element> result = new ArrayList<Element>(); 
-                for (Element match : matches) {
-                    result.addAll(getElements(match, new LinkedList<String>(parts)));
-                }
-                return result;
-            }
-        }
-        return new ArrayList<Element>();
+        return getPath(path).getElements(root);
     }
     
     /**
@@ -241,7 +266,7 @@ class XmlUtil {
      *         otherwise.
      */
     public static boolean hasElement(Node root, String path) {
-        return getElement(root, path) != null;
+        return getPath(path).getElement(root) != null;
     }
     
     /**
@@ -255,9 +280,7 @@ class XmlUtil {
      *         path or <code>null</code> if no match could be found.
      */
     public static String getTextContent(Node root, String path) {
-        Element el = getElement(root, path);
-        String s = el == null ? null : el.getTextContent();
-        return s != null ? s.trim() : null;
+        return getPath(path).getTextContent(root);
     }
     
     /**
@@ -270,7 +293,7 @@ class XmlUtil {
      * @param value the new text content.
      */
     public static void setTextContent(Node root, String path, String value) {
-        Element el = getElement(root, path);
+        Element el = getPath(path).getElement(root);
         el.setTextContent(value);
     }
     
@@ -297,15 +320,7 @@ class XmlUtil {
      * @throws XmlException on XML errors.
      */
     public static void writeDocument(Document doc, OutputStream out, boolean compact) throws XmlException {
-        try {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer serializer = tf.newTransformer();
-            serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            serializer.setOutputProperty(OutputKeys.INDENT, compact ? "no" : "yes");
-            serializer.transform(new DOMSource(doc), new StreamResult(out));
-        } catch (TransformerException e) {
-            throw new XmlException(e);
-        }
+        transform(doc, new StreamResult(out), compact);
     }
     
     /**
@@ -331,12 +346,22 @@ class XmlUtil {
      * @throws XmlException on XML errors.
      */
     public static void writeDocument(Document doc, Writer writer, boolean compact) throws XmlException {
+        transform(doc, new StreamResult(writer), compact);
+    }
+    
+    private static void transform(Document doc, StreamResult result, boolean compact) throws XmlException {
+        Transformer serializer = TRANSFORMER.get();
         try {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer serializer = tf.newTransformer();
+            if (serializer == null) {
+                serializer = TRANSFORMER_FACTORY.newTransformer();
+            } else {
+                TRANSFORMER.set(null);
+            }
             serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
             serializer.setOutputProperty(OutputKeys.INDENT, compact ? "no" : "yes");
-            serializer.transform(new DOMSource(doc), new StreamResult(writer));
+            serializer.transform(new DOMSource(doc), result);
+            serializer.reset();
+            TRANSFORMER.set(serializer);
         } catch (TransformerException e) {
             throw new XmlException(e);
         }
@@ -393,4 +418,149 @@ class XmlUtil {
         writeDocument(doc, sw, compact);
         return sw.toString();
     }
+    
+    /**
+     * A compiled path (see {@link XmlUtil#compile(String)}). Instances are 
+     * immutable and can be shared between threads.
+     */
+    public static class Path {
+        private final String path;
+        private final String[] nsUris;
+        private final String[] localNames;
+        private final boolean[] recursive;
+        
+        private Path(String path) {
+            this.path = path;
+            List<String> parts = new ArrayList<String>();
+            for (String part : split(path, "/", true)) {
+                parts.add(part);
+            }
+            List<String[]> steps = new ArrayList<String[]>();
+            List<Boolean> rec = new ArrayList<Boolean>();
+            int i = 0;
+            while (i < parts.size()) {
+                boolean r = false;
+                if (parts.get(i).equals("/")) {
+                    i++;
+                    if (i < parts.size() && parts.get(i).equals("/")) {
+                        i++;
+                        r = true;
+                    }
+                }
+                if (i == parts.size()) {
+                    throw new IllegalArgumentException("Empty step in path " + path);
+                }
+                String[] qname = split(parts.get(i++), ":", false);
+                String nsUri = null;
+                if (qname.length > 1) {
+                    if ("*".equals(qname[0])) {
+                        nsUri = "*";
+                    } else {
+                        nsUri = NAMESPACES.get(qname[0]);
+                        if (nsUri == null) {
+                            throw new IllegalArgumentException("Unbound prefix " + qname[0]);
+                        }
+                    }
+                }
+                steps.add(new String[] {nsUri, qname.length > 1 ? qname[1] : qname[0]});
+                rec.add(r);
+            }
+            this.nsUris = new String[steps.size()];
+            this.localNames = new String[steps.size()];
+            this.recursive = new boolean[steps.size()];
+            for (int j = 0; j < steps.size(); j++) {
+                nsUris[j] = steps.get(j)[0];
+                localNames[j] = steps.get(j)[1];
+                recursive[j] = rec.get(j);
+            }
+        }
+        
+        /**
+         * Returns the first {@link Element} which matches this path. The 
+         * search starts at the specified root {@link Node} and stops at the 
+         * first match.
+         * 
+         * @param root the {@link Node} where the search will start.
+         * @return the first {@link Element} that matches the path or 
+         *         <code>null</code> if no match could be found.
+         */
+        public Element getElement(Node root) {
+            return find(root, 0, null);
+        }
+        
+        /**
+         * Returns all {@link Element}s which matches this path in document 
+         * order. The search starts at the specified root {@link Node}.
+         * 
+         * @param root the {@link Node} where the search will start.
+         * @return the {@link Element}s that matches the path.
+         */
+        public List<Element> getElements(Node root) {
+            List<Element> result = new ArrayList<Element>();
+            find(root, 0, result);
+            return result;
+        }
+        
+        /**
+         * Returns the trimmed text content of the first {@link Element} which 
+         * matches this path. The search starts at the specified root 
+         * {@link Node}.
+         * 
+         * @param root the {@link Node} where the search will start.
+         * @return the text content of the first {@link Element} that matches 
+         *         the path or <code>null</code> if no match could be found.
+         */
+        public String getTextContent(Node root) {
+            Element el = getElement(root);
+            String s = el == null ? null : el.getTextContent();
+            return s != null ? s.trim() : null;
+        }
+        
+        /**
+         * Searches the children (or descendants if the step is recursive) of
+         * <code>node</code> for matches of step <code>step</code>. Matches 
+         * of the last step are added to <code>result</code>. If 
+         * <code>result</code> is <code>null</code> the first match of the 
+         * last step is returned and the search stops.
+         */
+        private Element find(Node node, int step, List<Element> result) {
+            String nsUri = nsUris[step];
+            String localName = localNames[step];
+            boolean last = step == nsUris.length - 1;
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() != Node.ELEMENT_NODE) {
+                    continue;
+                }
+                Element match = null;
+                if (localName.equals(child.getLocalName()) && matches(nsUri, child.getNamespaceURI())) {
+                    if (last) {
+                        if (result == null) {
+                            return (Element) child;
+                        }
+                        result.add((Element) child);
+                    } else {
+                        match = find(child, step + 1, result);
+                    }
+                } else if (recursive[step]) {
+                    match = find(child, step, result);
+                }
+                if (match != null) {
+                    return match;
+                }
+            }
+            return null;
+        }
+        
+        private static boolean matches(String nsUri, String childUri) {
+            if (nsUri == null) {
+                return childUri == null;
+            }
+            return "*".equals(nsUri) || nsUri.equals(childUri);
+        }
+        
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
 }
@@ -4,538 +4,521 @@
  */
 package com.googlecode.jdeltasync.hu01;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * Java port of Daniel Parnell's hu01_decompressor.c code. The original code can be found at
  * <a href="https://github.com/dparnell/hu01">github</a>.
  * <p>
+ * The block decoder is a structured rewrite of the original disassembly based
+ * port. Each block starts with a 256 byte table holding 512 4-bit code lengths.
+ * Symbols 0-255 are literal bytes while symbols 256-511 are matches. The
+ * compressed bits are read MSB first from a stream of little-endian 16-bit
+ * words. Codes up to 10 bits long are resolved by a single lookup in the first
+ * 1024 entries of the decode table. Longer codes are resolved by walking a
+ * small binary tree stored after those entries.
+ * <p>
  * This class has package private scope
  * since it's not meant to be used directly. Use {@link HU01Decompressor},
- * {@link HU01DecompressorInputStream} or {@link HU01DecompressorOutputStream} instead. 
+ * {@link HU01DecompressorInputStream} or {@link HU01DecompressorOutputStream} instead.
  */
 class HU01 {
 
-    private static final boolean DEBUG = false;
-    private static final boolean DEBUG_TABLE_GEN = false;
-
-    static boolean build_decompression_table(ByteBuffer source_ptr, short[] table) {
-        ByteBuffer source = source_ptr.duplicate().order(ByteOrder.LITTLE_ENDIAN);
-        
-        int v2; // ecx@1
-        int v3; // eax@4
-        int v4; // ecx@4
-        int v5; // eax@5
-        int v6; // eax@8
-        int v7; // ecx@8
-        int v8; // eax@10
-        int v9; // edi@10
-        int v10; // eax@11
-        int v11; // ecx@11
-        //char *v12; // esi@11
-        int v13; // ecx@12
-        int v14; // eax@14
-        int v15; // ecx@14
-        int i; // edx@15
-        int j; // eax@16
-        int k; // edx@18
-        int v19; // eax@21
-        short v20; // si@21
-        int v22; // eax@2
-        int v23; // of@17
-        int v24; // zf@17
-        int v25; // sf@17
-        short v26; // si@26
-        int[] counts = new int[16]; // [sp+40h] [bp-44h]@1
-        int total_counts; // [sp+80h] [bp-4h]@10
-        int[] counts2 = new int[16]; // [sp+0h] [bp-84h]@16
-           
-        // 1bc52
-        Arrays.fill(counts, 0);
-        // 1bc62
-        v2 = 256;
-        // 1bc67
-        do {
-            // 1bc67
-            v22 = source.get(v2 - 1) & 0xff;
-            // 1bc6f
-            v2--;
-            // 1bc72
-            counts[v22 & 0xF]++;
-            // 1bc7c
-            counts[v22 >> 4]++;
-            // 1bc84
-        } while ( v2 != 0 );
-
-        if (DEBUG_TABLE_GEN) {    
-            System.out.printf("\n\n1: HEX digit counts:\n");
-            for (int index = 0; index < counts.length; index++) {
-                System.out.printf("\t0x%x = 0x%08X\n", index, counts[index]);
+    /**
+     * The size of the 4-bit code length table at the start of each block.
+     */
+    static final int TABLE_SIZE = 256;
+
+    /**
+     * The number of entries needed in the decode table built by
+     * {@link #build_decompression_table(byte[], int, short[])}.
+     */
+    static final int DECODE_TABLE_SIZE = 2048;
+
+    /**
+     * The number of decoded bytes between CRC updates in
+     * {@link #decompress_hu01_block(byte[], int, int, short[], byte[], int, int, CRC32)}.
+     * Small enough for the bytes to still be in the L1 cache.
+     */
+    static final int CRC_CHUNK_SIZE = 4096;
+
+    /**
+     * The number of bits used to index the table built by
+     * {@link #build_multi_table(short[], int[])}. Never more than the 16 bits
+     * which are always available to the decoder.
+     */
+    static final int MULTI_BITS = 12;
+
+    /**
+     * The number of entries in the table built by
+     * {@link #build_multi_table(short[], int[])}.
+     */
+    static final int MULTI_TABLE_SIZE = 1 << MULTI_BITS;
+
+    private static final int LITERALS_FLAG = 0x40000000;
+
+    private static final int NUM_SYMBOLS = 512;
+    private static final int LOOKUP_BITS = 10;
+    private static final int LOOKUP_SIZE = 1 << LOOKUP_BITS;
+    private static final int MAX_CODE_LENGTH = 15;
+
+    /**
+     * Builds the decode table from the 256 byte code length table starting at
+     * <code>off</code> in <code>src</code>. Entries with the sign bit clear
+     * hold <code>(symbol << 4) | codeLength</code>. Entries with the sign bit
+     * set point to a pair of tree nodes used to resolve codes longer than 10
+     * bits.
+     *
+     * @return <code>false</code> if the code lengths don't describe a valid
+     *         prefix code.
+     */
+    static boolean build_decompression_table(byte[] src, int off, short[] table) {
+        int[] counts = new int[MAX_CODE_LENGTH + 1];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            int b = src[off + i] & 0xff;
+            counts[b & 0x0f]++;
+            counts[b >> 4]++;
+        }
+        if (counts[0] >= NUM_SYMBOLS - 1) {
+            // Less than two symbols in use
+            return false;
+        }
+
+        // Make sure the code lengths describe a complete prefix code
+        int left = 0;
+        for (int len = MAX_CODE_LENGTH; len > 0; len--) {
+            int n = counts[len] + left;
+            if ((n & 1) != 0) {
+                return false;
             }
+            left = n >> 1;
         }
-        
-        // 1bc90
-        if (counts[0] >= 511) {
-            return false; // ERROR
+        if (left != 1) {
+            return false;
+        }
+
+        int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+        System.arraycopy(counts, 0, lengthCounts, 0, counts.length);
+
+        // counts[len] becomes the end index of the codes of length len in the sorted symbol list
+        for (int len = 2; len <= MAX_CODE_LENGTH; len++) {
+            counts[len] += counts[len - 1];
         }
-        
-        // Save off a copy of the counts
-        // 1bc9f
-        System.arraycopy(counts, 0, counts2, 0, counts2.length);
-        
-        v3 = 0;
-        v4 = 15;
-        while (true) {
-            v5 = counts[v4] + v3;
-            if ( (v5 & 1) != 0 ) {
-                break;
+        int numSymbols = counts[MAX_CODE_LENGTH];
+
+        // Sort symbols by code length and symbol value into table[0..numSymbols)
+        for (int sym = NUM_SYMBOLS - 1; sym >= 0; sym--) {
+            int b = src[off + (sym >> 1)] & 0xff;
+            int len = (sym & 1) != 0 ? b >> 4 : b & 0x0f;
+            if (len != 0) {
+                table[--counts[len]] = (short) ((sym << 4) | len);
             }
-                
-            v3 = v5 >> 1;
-            --v4;
-            if (v4 == 0) {
-                if (v3 != 1) {
-                    return false;
-                }
-                
-                v7 = 0;
-                v6 = 1;
-                do {
-                    counts[v6] += v7;
-                    v7 = counts[v6++];
-                } while (v6 < 16);
-                
-                if (DEBUG_TABLE_GEN) {  
-                    System.out.printf("\n\n2: HEX digit counts:\n");
-                    for( int index = 0; index < counts.length; index++) {
-                        System.out.printf("\t0x%x = 0x%08X\n", index, counts[index]);
-                    }
-                }
-                
-                v9 = counts[15];
-                total_counts = counts[15];
-                v8 = 8192;
-                
-                do {
-                    v10 = v8 - 16;
-                    v11 = (source.get(v10 >> 5) >> 4) & 0x0f;
-                    
-                    if (v11 != 0) {
-                        --counts[v11];
-                        table[counts[v11]] = (short) (v11 |  v10);
-                        v9 = total_counts;
-                    }
-                    v8 = v10 - 16;
-                    v13 = (source.get(v8 >> 5) & 0xF);
-                    if (v13 != 0) {
-                        --counts[v13];
-                        table[counts[v13]] = (short) (v13 | v8);
-                    }
-                } while (v8 != 0);
-              
-                         
-                v15 = 2048;
-                v14 = 2048;
-                int xsource = 15;
-                do {
-                    for (i = v15; v14 > i; table[v15] = (short) (v14 | 0x8000)) {
-                        v14 -= 2;
-                        --v15;
-                    }
-                    for (j = counts2[xsource] - 1; j >= 0; table[v15] = v26 ) {
-                        v26 = table[v9-- - 1];
-                        --v15;
-                        --j;
-                    }
-                    v14 = i;
-                    v23 = (xsource - 1 < 10) ? 1 : 0;
-                    v24 = (xsource == 11 ? 1 : 0);
-                    v25 = ((xsource-- < 11) ? 1 : 0);
-                } while (((v25 ^ v23) | v24) == 0);
-                
-                
-                for (k = 1024; v14 > v15; table[k] = (short) (v14 | 0x8000)) {
-                    v14 -= 2;
-                    --k;
-                }
+        }
 
-                while (v9 > 0) {
-                    if (DEBUG_TABLE_GEN) {                
-                        System.out.printf("v9 = %d, k = %d\n", v9, k);
-                    }
-                    v20 = table[v9-- - 1];
-                    if (DEBUG_TABLE_GEN) {                
-                        System.out.printf("v20 = %d\n", v20);
-                    }
-                    v19 = k - (1024 >> (v20 & 0xF));
-                    do {
-                        --k;
-                        table[k] = v20;
-                        if (DEBUG_TABLE_GEN) {
-                            System.out.printf("k=0x%x v19=0x%x\n", k, v19);
-                        }
-                    } while (k != v19);
-                    
-                }
-                
-                if (DEBUG_TABLE_GEN) {
-                    System.out.printf("\n\n3: HEX digit table:\n");
-                    for (int index = 0; index < 0x400; index++) {
-                        System.out.printf("\t0x%x = 0x%04X\n", index, table[index] & 0xffff);
-                    }
-                }              
-                
-                return true;
+        // Build the tree for codes longer than LOOKUP_BITS, longest codes first
+        int next = numSymbols;
+        int node = DECODE_TABLE_SIZE;
+        int pair = DECODE_TABLE_SIZE;
+        for (int len = MAX_CODE_LENGTH; len > LOOKUP_BITS; len--) {
+            int end = node;
+            while (pair > end) {
+                pair -= 2;
+                table[--node] = (short) (pair | 0x8000);
+            }
+            for (int j = lengthCounts[len]; j > 0; j--) {
+                table[--node] = table[--next];
+            }
+            pair = end;
+        }
+
+        // The lookup entries for the roots of the tree go at the end of the lookup table
+        int k = LOOKUP_SIZE;
+        while (pair > node) {
+            pair -= 2;
+            table[--k] = (short) (pair | 0x8000);
+        }
+
+        // Each code of length len <= LOOKUP_BITS fills 2^(LOOKUP_BITS-len) lookup entries
+        while (next > 0) {
+            short entry = table[--next];
+            int start = k - (LOOKUP_SIZE >> (entry & 0x0f));
+            while (k > start) {
+                table[--k] = entry;
             }
         }
-        return false;
+
+        return true;
     }
 
+    /**
+     * Decodes the compressed data in <code>src[srcOff..srcOff+srcLen)</code>
+     * into <code>dst[dstOff..dstOff+dstLen)</code> using a decode table built
+     * by {@link #build_decompression_table(byte[], int, short[])}. Decoding
+     * stops when the destination is full or when the input runs out.
+     * <p>
+     * If <code>crc</code> isn't <code>null</code> it is updated with the 
+     * decoded bytes. This is done every {@link #CRC_CHUNK_SIZE} bytes while 
+     * the bytes are still in the CPU cache rather than in a second pass over 
+     * the entire block.
+     *
+     * @return the number of bytes written to <code>dst</code>.
+     * @throws HU01Exception if the compressed data is corrupt.
+     */
+    static int decompress_hu01_block(byte[] src, int srcOff, int srcLen, short[] table,
+            byte[] dst, int dstOff, int dstLen, CRC32 crc) throws HU01Exception {
+
+        if (srcLen < 4) {
+            throw new HU01Exception("Bad block: Compressed data too short");
+        }
 
-    /* -- Here is where the magic happens -- */
-
-    private static final int WORD_LENGTH = (8 * 4);
-                                
-    private static int ror(int value, int places) { 
-        return (value>>places)|(value<<(WORD_LENGTH-places)); 
-    } 
-
-    static void decompress_hu01_block(ByteBuffer source_ptr, short[] table, ByteBuffer destination_ptr) throws HU01Exception {
-        ByteBuffer source = source_ptr.duplicate().order(ByteOrder.LITTLE_ENDIAN);
-        ByteBuffer destination = destination_ptr.duplicate().order(ByteOrder.LITTLE_ENDIAN);
-        
-        // 1BA35
-        int esi = (source.getShort() << 16) | (source.getShort() &  0xffff);
-        int ch = 0,cl = 0;
-        int eax = 0, edx = 0;
-        int saved_esi = 0;
-        int esi_ptr_pos = 0;
-        int edi_ptr_pos = 0;
-        
-        ch = 0x10; // 1BA42
-        
-        int pc = 0x1BA44;
-        loop: while (true) {
-            switch (pc) {
-            case 0x1BA44:
-                if (source.hasRemaining() && destination.hasRemaining()) {
-                    pc = 0x1BA56;
-                    continue loop;
+        int ip = srcOff;
+        int inEnd = srcOff + srcLen;
+        int op = dstOff;
+        int outEnd = dstOff + dstLen;
+
+        /*
+         * bits holds the next unread bits MSB first. There are always
+         * count + 16 valid bits in bits. When count drops below 0 the next
+         * 16-bit word is added right below the valid bits.
+         */
+        int bits = ((src[ip + 1] & 0xff) << 24) | ((src[ip] & 0xff) << 16)
+                 | ((src[ip + 3] & 0xff) << 8) | (src[ip + 2] & 0xff);
+        ip += 4;
+        int count = 16;
+        int crcOff = op;
+
+        decode:
+        while (op < outEnd) {
+            int chunkEnd = Math.min(op + CRC_CHUNK_SIZE, outEnd);
+            while (op < chunkEnd) {
+                int entry = table[bits >>> (32 - LOOKUP_BITS)];
+                if (entry >= 0) {
+                    int len = entry & 0x0f;
+                    bits <<= len;
+                    count -= len;
                 } else {
-                    // We're done
-                    return;
-                }
-                
-            case 0x1BA56:
-                edx = esi; // 1BA56
-                cl = 0x0f;
-                edx = edx >>> 0x16;
-                eax = table[edx & 0x3ff];    // 1BA5D
-            
-                // 1BA62
-                if (eax<0) {
-                    pc = 0x1BB55;
-                    continue loop;
-                }
-                // 1BA6A
-                cl = cl & (eax & 0xff);
-                eax = eax >>> 4; 
-                esi = esi << cl;
-                ch = ch - cl;
-                if (ch<0) {
-                    pc = 0x1BAFA;
-                    continue loop;
-                }
-                // 1BA79
-                eax = eax - 0x100;
-                if (eax<0) {
-                    pc = 0x1BB2B;
-                    continue loop;
-                }
-            
-            case 0x1BA84:
-                cl = eax & 0xff;
-                edx = esi;
-                cl = cl >>> 4;
-                edx = edx | 1;
-                esi = esi << cl;
-                ch = ch - cl;
-                // 1BA92
-                edx = ror(edx, 1);
-                cl = (cl ^ 0x1f) & 0xff;
-                eax = eax & 0x0f;
-                edx = edx >>> cl;
-                // 1BA9C
-                saved_esi = esi;
-                edx = -edx;
-                if (eax>5) {
-                    pc = 0x1B9E1;
-                    continue loop;
-                }
-                // 1BAA8
-                esi_ptr_pos = destination.position() + edx;
-                if (edx<=-3) {
-                    pc = 0x36670;
-                    continue loop;
-                }
-            
-                if (esi_ptr_pos < destination_ptr.position()) {
-                    throw new HU01Exception();
-                }
-            
-                try {
-                    for (int i = 0; i < eax + 3; i++) {
-                        destination.put(destination.position() + i, destination.get(esi_ptr_pos + i));
+                    // Code longer than LOOKUP_BITS. Walk the tree one bit at a time.
+                    bits <<= LOOKUP_BITS;
+                    do {
+                        entry = table[(entry & 0x7fff) + (bits >>> 31)];
+                        bits <<= 1;
+                    } while (entry < 0);
+                    count -= entry & 0x0f;
+                }
+                if (count < 0) {
+                    if (ip >= inEnd) {
+                        break decode;
                     }
-                } catch (IndexOutOfBoundsException e) {
-                    /*
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                }
-                if (DEBUG) {
-                    try {
-                        for (int i = 0; i < eax + 3; i++) {
-                            System.out.printf("%c", (char) destination.get(destination.position() + i));                   
-                        }
-                    } catch (IndexOutOfBoundsException e) {
+                    int word = src[ip] & 0xff;
+                    if (ip + 1 < inEnd) {
+                        word |= (src[ip + 1] & 0xff) << 8;
                     }
+                    ip += 2;
+                    bits |= word << -count;
+                    count += 16;
                 }
-            
-                esi = saved_esi;
-                destination.position(Math.min(destination.limit(), destination.position() + eax + 3));
-            
-                // 1BAC8
-                if (ch>=0) {
-                    pc = 0x1BA56;
-                    continue loop;
-                }
-            
-            case 0x1BAD0:
-                if (!source.hasRemaining() || !destination.hasRemaining()) {
-                    // We're done
-                    return;
-                }
-                cl = ch;
-                edx = source.getShort() & 0xffff;
-                cl = -cl;
-                edx = edx << cl;
-                ch = ch + 0x10;
-                esi = esi + edx;
-                pc = 0x1BA56;
-                continue loop;
-            
-            case 0x36670:
-                if (esi_ptr_pos < destination_ptr.position()) {
-                    throw new HU01Exception();
+
+                int sym = entry >>> 4;
+                if (sym < 256) {
+                    dst[op++] = (byte) sym;
+                    continue;
                 }
-            
-                try {
-                    for (int i = 0; i < eax + 3; i++) {
-                        destination.put(destination.position() + i, destination.get(esi_ptr_pos + i));
+
+                // Match. The high nibble is the number of extra offset bits, the low nibble the length.
+                int offsetBits = (sym >> 4) & 0x0f;
+                int length = sym & 0x0f;
+                int offset = ((bits >>> 1) | 0x80000000) >>> (31 - offsetBits);
+                bits <<= offsetBits;
+                count -= offsetBits;
+
+                if (length == 15) {
+                    // Long match. The length follows as a byte (or a 16-bit word) in the input.
+                    if (ip >= inEnd) {
+                        break decode;
                     }
-                } catch (IndexOutOfBoundsException e) {
-                    /*
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                }
-                if (DEBUG) {
-                    try {
-                        for (int i = 0; i < eax + 3; i++) {
-                            System.out.printf("%c", (char) destination.get(destination.position()+i));                   
+                    length = src[ip++] & 0xff;
+                    if (length != 0xff) {
+                        length += 15;
+                    } else {
+                        if (ip + 1 >= inEnd) {
+                            throw new HU01Exception("Bad block: Unexpected end of match length");
+                        }
+                        length = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                        ip += 2;
+                        if (length < 0x10e) {
+                            throw new HU01Exception("Bad block: Invalid match length " + length);
                         }
-                    } catch (IndexOutOfBoundsException e) {
                     }
                 }
-            
-                esi = saved_esi;
-                destination.position(Math.min(destination.limit(), destination.position() + eax + 3));
-                if (ch>=0) {
-                    pc = 0x1BA56;
-                    continue loop;
-                }
-            
-                pc = 0x1BAD0;
-                continue loop;
-            
-            case 0x1BAFA:
-                if(!source.hasRemaining() || !destination.hasRemaining()) {
-                    // We're done
-                    return;
+                length += 3;
+
+                int from = op - offset;
+                if (from < dstOff) {
+                    throw new HU01Exception("Bad block: Match offset " + offset
+                            + " points before start of block");
                 }
-                // 1BB0C
-                cl = ch;
-                edx = source.getShort() & 0xffff;
-                cl = -cl;
-                // 1BB15
-                edx = edx << cl;
-            case 0x1BB1A:
-                ch = ch + 0x10;
-                esi = esi + edx;
-                eax = eax - 0x100;
-                if (eax<0) {
-                    pc = 0x1BB2B;
-                    continue loop;
+                if (length > outEnd - op) {
+                    length = outEnd - op;
                 }
-            
-                pc = 0x1BA84;
-                continue loop;
-            
-            case 0x1BB2B:
-                edx = esi;
-            
-                if (destination.hasRemaining()) {
-                    /*
-                     * Guard against buffer overflow.
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                    if (DEBUG) {
-                        System.out.printf("%c", (char) (eax & 0xff));
+                if (offset >= length) {
+                    System.arraycopy(dst, from, dst, op, length);
+                    op += length;
+                } else {
+                    // Overlapping match repeats the last offset bytes
+                    int end = op + length;
+                    while (op < end) {
+                        dst[op++] = dst[from++];
                     }
-                    destination.put((byte) (eax & 0xff));    // decompressed byte written here
-                }
-                edx = edx >>> 0x16;
-            
-                eax = table[edx & 0x3ff];    // 1BB33
-                cl = 0x0f;
-            
-                // 1BB3A
-                if (eax<0) {
-                    pc = 0x1BB55;
-                    continue loop;
                 }
-            
-                // 1BB3E
-                cl = cl & (eax & 0xff);
-                eax = eax >>> 4;
-                esi = esi << cl;        
-                // 1BB45
-                ch = ch - cl;
-                if (ch<0) {
-                    pc = 0x1BAFA;
-                    continue loop;
-                }
-                // 1BB49
-                eax = eax - 0x100;
-                if (eax<0) {
-                    pc = 0x1BB2B;
-                    continue loop;
-                }
-                pc = 0x1BA84;
-                continue loop;
-                
-            case 0x1B9C5:
-                if (!source.hasRemaining()) {
-                    // We're done
-                    return;
+
+                if (count < 0) {
+                    if (ip >= inEnd) {
+                        break decode;
+                    }
+                    int word = src[ip] & 0xff;
+                    if (ip + 1 < inEnd) {
+                        word |= (src[ip + 1] & 0xff) << 8;
+                    }
+                    ip += 2;
+                    bits |= word << -count;
+                    count += 16;
                 }
-                eax = source.get() & 0xff;
-                // 1B9CC
-                eax += 0x0f;
-                if (eax!=0x10e) {
-                    pc = 0x1B9E6;
-                    continue loop;
+            }
+            if (crc != null) {
+                crc.update(dst, crcOff, op - crcOff);
+            }
+            crcOff = op;
+        }
+
+        if (crc != null && op > crcOff) {
+            // Ran out of input
+            crc.update(dst, crcOff, op - crcOff);
+        }
+        return op - dstOff;
+    }
+
+    /**
+     * Builds the table used by
+     * {@link #decompress_hu01_block_multi(byte[], int, int, short[], int[], byte[], int, int, CRC32)}
+     * from a decode table built by 
+     * {@link #build_decompression_table(byte[], int, short[])}. The table is 
+     * indexed by the next {@link #MULTI_BITS} bits of input. If these start 
+     * with the codes of one or two literals the entry holds 
+     * <code>LITERALS_FLAG | (n << 24) | (literal1 << 16) | (literal2 << 8) | codeLengths</code>.
+     * Otherwise, if they start with the complete code of a match, the entry 
+     * holds <code>(symbol << 8) | codeLength</code>. All other entries are 0.
+     */
+    static void build_multi_table(short[] table, int[] multi) {
+        for (int i = 0; i < MULTI_TABLE_SIZE; i++) {
+            int first = lookup(table, i);
+            if (first < 0) {
+                multi[i] = 0;
+                continue;
+            }
+            int sym1 = first >>> 4;
+            int len1 = first & 0x0f;
+            if (sym1 >= 256) {
+                multi[i] = (sym1 << 8) | len1;
+                continue;
+            }
+            int entry = LITERALS_FLAG | (1 << 24) | (sym1 << 16) | len1;
+            int second = lookup(table, (i << len1) & (MULTI_TABLE_SIZE - 1));
+            if (second >= 0 && (second >>> 4) < 256 && len1 + (second & 0x0f) <= MULTI_BITS) {
+                entry = LITERALS_FLAG | (2 << 24) | (sym1 << 16) | ((second >>> 4) << 8) | (len1 + (second & 0x0f));
+            }
+            multi[i] = entry;
+        }
+    }
+
+    /**
+     * Returns the decode table entry of the code at the start of the 
+     * {@link #MULTI_BITS} bits in <code>bits</code> or -1 if the code is 
+     * longer than that.
+     */
+    private static int lookup(short[] table, int bits) {
+        int entry = table[bits >>> (MULTI_BITS - LOOKUP_BITS)];
+        for (int bit = MULTI_BITS - LOOKUP_BITS - 1; entry < 0; bit--) {
+            if (bit < 0) {
+                return -1;
+            }
+            entry = table[(entry & 0x7fff) + ((bits >>> bit) & 1)];
+        }
+        return entry;
+    }
+
+    /**
+     * Same as {@link #decompress_hu01_block(byte[], int, int, short[], byte[], int, int, CRC32)}
+     * but looks up the next {@link #MULTI_BITS} bits in <code>multi</code> 
+     * first. This decodes two literals at once whenever possible and resolves 
+     * codes of up to {@link #MULTI_BITS} bits without walking the tree. The 
+     * output is the same.
+     *
+     * @param multi the table built from <code>table</code> by 
+     *        {@link #build_multi_table(short[], int[])}.
+     */
+    static int decompress_hu01_block_multi(byte[] src, int srcOff, int srcLen, short[] table, int[] multi,
+            byte[] dst, int dstOff, int dstLen, CRC32 crc) throws HU01Exception {
+
+        if (srcLen < 4) {
+            throw new HU01Exception("Bad block: Compressed data too short");
+        }
+
+        int ip = srcOff;
+        int inEnd = srcOff + srcLen;
+        int op = dstOff;
+        int outEnd = dstOff + dstLen;
+
+        /*
+         * bits holds the next unread bits MSB first. There are always
+         * count + 16 valid bits in bits. When count drops below 0 the next
+         * 16-bit word is added right below the valid bits.
+         */
+        int bits = ((src[ip + 1] & 0xff) << 24) | ((src[ip] & 0xff) << 16)
+                 | ((src[ip + 3] & 0xff) << 8) | (src[ip + 2] & 0xff);
+        ip += 4;
+        int count = 16;
+        int crcOff = op;
+
+        decode:
+        while (op < outEnd) {
+            int chunkEnd = Math.min(op + CRC_CHUNK_SIZE, outEnd);
+            while (op < chunkEnd) {
+                int entry = multi[bits >>> (32 - MULTI_BITS)];
+                if (entry >= LITERALS_FLAG && op + 1 < outEnd) {
+                    // One or two literals. Both bytes are always stored. A 
+                    // second byte which isn't a literal is overwritten later.
+                    int len = entry & 0x1f;
+                    bits <<= len;
+                    count -= len;
+                    if (count < 0) {
+                        if (ip >= inEnd) {
+                            break decode;
+                        }
+                        int word = src[ip] & 0xff;
+                        if (ip + 1 < inEnd) {
+                            word |= (src[ip + 1] & 0xff) << 8;
+                        }
+                        ip += 2;
+                        bits |= word << -count;
+                        count += 16;
+                    }
+                    dst[op] = (byte) (entry >>> 16);
+                    dst[op + 1] = (byte) (entry >>> 8);
+                    op += (entry >>> 24) & 0x03;
+                    continue;
+                }
+                if (entry > 0 && entry < LITERALS_FLAG) {
+                    int len = entry & 0x1f;
+                    bits <<= len;
+                    count -= len;
+                    // Same layout as the entries in table
+                    entry = ((entry >>> 8) << 4) | len;
                 } else {
-                    eax = source.getShort() & 0xffff;
-                
-                    if (eax>=0x10e) {
-                        pc = 0x1B9E6;
-                        continue loop;
+                    // Code longer than MULTI_BITS or literals at the end of the block
+                    entry = table[bits >>> (32 - LOOKUP_BITS)];
+                    if (entry >= 0) {
+                        int len = entry & 0x0f;
+                        bits <<= len;
+                        count -= len;
+                    } else {
+                        bits <<= LOOKUP_BITS;
+                        do {
+                            entry = table[(entry & 0x7fff) + (bits >>> 31)];
+                            bits <<= 1;
+                        } while (entry < 0);
+                        count -= entry & 0x0f;
                     }
-                
-                    throw new HU01Exception();
                 }
-            
-            case 0x1B9E1:
-                if (eax==0x0f) {
-                    pc = 0x1B9C5;
-                    continue loop;
+                if (count < 0) {
+                    if (ip >= inEnd) {
+                        break decode;
+                    }
+                    int word = src[ip] & 0xff;
+                    if (ip + 1 < inEnd) {
+                        word |= (src[ip + 1] & 0xff) << 8;
+                    }
+                    ip += 2;
+                    bits |= word << -count;
+                    count += 16;
                 }
-            
-            case 0x1B9E6:
-                // let's get ready to copy some bytes
-                esi_ptr_pos = destination.position() + edx;
-                eax = eax + 3;
-                edi_ptr_pos = destination.position() + eax;
-                if (esi_ptr_pos<0) {
-                    throw new HU01Exception();
+
+                int sym = entry >>> 4;
+                if (sym < 256) {
+                    dst[op++] = (byte) sym;
+                    continue;
                 }
-            
-//                if (edi_ptr_pos>=destination.limit()) {
-//                    // We're done
-//                    return;
-//                }
-            
-                try {
-                    for (int i = 0; i < eax; i++) {
-                        destination.put(destination.position() + i, destination.get(esi_ptr_pos + i));
+
+                // Match. The high nibble is the number of extra offset bits, the low nibble the length.
+                int offsetBits = (sym >> 4) & 0x0f;
+                int length = sym & 0x0f;
+                int offset = ((bits >>> 1) | 0x80000000) >>> (31 - offsetBits);
+                bits <<= offsetBits;
+                count -= offsetBits;
+
+                if (length == 15) {
+                    // Long match. The length follows as a byte (or a 16-bit word) in the input.
+                    if (ip >= inEnd) {
+                        break decode;
                     }
-                } catch (IndexOutOfBoundsException e) {
-                    /*
-                     * The original C code sometimes writes after the end of the destination buffer.
-                     * C does no bounds checking so that code appears to work fine. However, in Java an 
-                     * exception will be thrown.
-                     */
-                }
-                if (DEBUG) {
-                    try {
-                        for (int i = 0; i < eax; i++) {
-                            System.out.printf("%c", (char) destination.get(destination.position()+i));                   
+                    length = src[ip++] & 0xff;
+                    if (length != 0xff) {
+                        length += 15;
+                    } else {
+                        if (ip + 1 >= inEnd) {
+                            throw new HU01Exception("Bad block: Unexpected end of match length");
+                        }
+                        length = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                        ip += 2;
+                        if (length < 0x10e) {
+                            throw new HU01Exception("Bad block: Invalid match length " + length);
                         }
-                    } catch (IndexOutOfBoundsException e) {
                     }
                 }
-                destination.position(Math.min(destination.limit(), edi_ptr_pos));
-            
-                esi = saved_esi;
-                if (!destination.hasRemaining()) {
-                    // We're done
-                    return;
+                length += 3;
+
+                int from = op - offset;
+                if (from < dstOff) {
+                    throw new HU01Exception("Bad block: Match offset " + offset
+                            + " points before start of block");
                 }
-                if (ch<0) {
-                    pc = 0x1BAD0;
-                    continue loop;
+                if (length > outEnd - op) {
+                    length = outEnd - op;
                 }
-                pc = 0x1BA56;
-                continue loop;
-            
-            case 0x1BB55:
-                // we got a negative decompression index
-            
-                esi = esi << 10;
-                do {
-                    eax = eax + (esi>>>31);
-                    esi = esi + esi;
-                    // 1BB5D
-                    eax = table[0x8000+eax];
-                } while (eax < 0);
-            
-                // 1BB69
-                cl = cl & (eax & 0xff);
-                eax = eax >>> 4;
-                ch = ch - cl;
-                if (ch < 0) {
-                    pc = 0x1BAFA;
-                    continue loop;
+                if (offset >= length) {
+                    System.arraycopy(dst, from, dst, op, length);
+                    op += length;
+                } else {
+                    // Overlapping match repeats the last offset bytes
+                    int end = op + length;
+                    while (op < end) {
+                        dst[op++] = dst[from++];
+                    }
                 }
-                // 1BB72
-                eax = eax - 0x100;
-                if (eax >= 0) {
-                    pc = 0x1BA84;
-                    continue loop;
+
+                if (count < 0) {
+                    if (ip >= inEnd) {
+                        break decode;
+                    }
+                    int word = src[ip] & 0xff;
+                    if (ip + 1 < inEnd) {
+                        word |= (src[ip + 1] & 0xff) << 8;
+                    }
+                    ip += 2;
+                    bits |= word << -count;
+                    count += 16;
                 }
-            
-                pc = 0x1BB2B;
-                continue loop;
             }
+            if (crc != null) {
+                crc.update(dst, crcOff, op - crcOff);
+            }
+            crcOff = op;
         }
+
+        if (crc != null && op > crcOff) {
+            // Ran out of input
+            crc.update(dst, crcOff, op - crcOff);
+        }
+        return op - dstOff;
     }
-    
+
 }
@@ -0,0 +1,563 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses data using the proprietary <i>HU01</i> algorithm (see
+ * <a href="http://en.wikipedia.org/wiki/DeltaSync">Wikipedia's DeltaSync page</a>
+ * for info on the compression). The output can be decompressed using
+ * {@link HU01Decompressor}.
+ * <p>
+ * Data is compressed one block at a time. Every block is compressed
+ * independently using LZ77 matching within the block followed by Huffman
+ * coding of the literals and matches. The compression level determines how
+ * hard the compressor looks for long matches.
+ * <p>
+ * Instances of this class aren't thread-safe but can be reused.
+ *
+ * @see HU01CompressorOutputStream
+ */
+public class HU01Compressor {
+    /**
+     * The fastest compression level.
+     */
+    public static final int BEST_SPEED = 1;
+
+    /**
+     * The default compression level.
+     */
+    public static final int DEFAULT_COMPRESSION = 6;
+
+    /**
+     * The compression level giving the smallest output.
+     */
+    public static final int BEST_COMPRESSION = 9;
+
+    /**
+     * The default and maximum block size. Match offsets are limited to 16
+     * bits so blocks can't be any larger.
+     */
+    public static final int MAX_BLOCK_SIZE = 65536;
+
+    /**
+     * The size of the header written by {@link #writeHeader(long, byte[], int)}.
+     */
+    public static final int HEADER_SIZE = 0x28;
+
+    /**
+     * The size of the header of every block.
+     */
+    public static final int BLOCK_HEADER_SIZE = 20;
+
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 0xffff + MIN_MATCH;
+    private static final int NUM_SYMBOLS = 512;
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int HASH_BITS = 15;
+
+    private final int level;
+    private final int blockSize;
+    private final int maxChain;
+
+    private final int[] head = new int[1 << HASH_BITS];
+    private int[] prev;
+    private int[] tokens;
+    private int[] lengths;
+    private final int[] freqs = new int[NUM_SYMBOLS];
+    private final int[] codeLengths = new int[NUM_SYMBOLS];
+    private final int[] codes = new int[NUM_SYMBOLS];
+    private final CRC32 crc32 = new CRC32();
+    private byte[] scratch;
+
+    // Bit writer state
+    private byte[] out;
+    private int outPos;
+    private int bitBuf;
+    private int bitCount;
+    private int totalBits;
+    private int[] slots;
+    private int wordsReserved;
+    private int wordsWritten;
+
+    /**
+     * Creates a new instance using the default compression level and
+     * block size.
+     */
+    public HU01Compressor() {
+        this(DEFAULT_COMPRESSION, MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new instance using the specified compression level and
+     * block size.
+     *
+     * @param level the compression level between {@link #BEST_SPEED} and
+     *        {@link #BEST_COMPRESSION}.
+     * @param blockSize the number of bytes compressed into each block.
+     *        Between 1 and {@link #MAX_BLOCK_SIZE}.
+     */
+    public HU01Compressor(int level, int blockSize) {
+        if (level < BEST_SPEED || level > BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level");
+        }
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize");
+        }
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxChain = 1 << (level - 1);
+    }
+
+    /**
+     * Returns the compression level.
+     *
+     * @return the level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the maximum number of bytes compressed into each block.
+     *
+     * @return the block size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the maximum size of a compressed block (header included)
+     * holding {@code len} bytes.
+     *
+     * @param len the number of bytes in the block.
+     * @return the maximum size of the compressed block.
+     */
+    public static int maxCompressedBlockSize(int len) {
+        // Each match of at least 3 bytes takes at most 30 bits and 3 extra bytes
+        return BLOCK_HEADER_SIZE + HU01.TABLE_SIZE + (len * 18 + 7) / 8 + 8;
+    }
+
+    /**
+     * Compresses the specified bytes into a complete HU01 stream.
+     *
+     * @param b the bytes to compress.
+     * @return the HU01 stream.
+     */
+    public byte[] compress(byte[] b) {
+        return compress(b, 0, b.length);
+    }
+
+    /**
+     * Compresses {@code len} bytes starting at {@code off} in {@code b} into
+     * a complete HU01 stream.
+     *
+     * @param b the bytes to compress.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @return the HU01 stream.
+     */
+    public byte[] compress(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        int numBlocks = (len + blockSize - 1) / blockSize;
+        byte[] dst = new byte[HEADER_SIZE + numBlocks * maxCompressedBlockSize(blockSize)];
+        int pos = writeHeader(len, dst, 0);
+        for (int i = 0; i < len; i += blockSize) {
+            pos += compressBlock(b, off + i, Math.min(blockSize, len - i), dst, pos);
+        }
+        byte[] result = new byte[pos];
+        System.arraycopy(dst, 0, result, 0, pos);
+        return result;
+    }
+
+    /**
+     * Writes the header of a HU01 stream which decompresses to {@code size}
+     * bytes. The header is followed by the blocks written using
+     * {@link #compressBlock(byte[], int, int, byte[], int)}.
+     *
+     * @param size the total number of decompressed bytes.
+     * @param dst the array to write the header to.
+     * @param dstOff the offset in {@code dst}.
+     * @return the number of bytes written ({@link #HEADER_SIZE}).
+     */
+    public static int writeHeader(long size, byte[] dst, int dstOff) {
+        if (size < 0 || size > 0xffffffffL) {
+            throw new IllegalArgumentException("size");
+        }
+        Arrays.fill(dst, dstOff, dstOff + HEADER_SIZE, (byte) 0);
+        putInt(dst, dstOff, 0x31305548); // HU01
+        putInt(dst, dstOff + 4, HEADER_SIZE);
+        putInt(dst, dstOff + 32, (int) size);
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Compresses {@code len} bytes starting at {@code off} in {@code src} into
+     * a single block (header and compressed data) written to {@code dst}
+     * starting at {@code dstOff}. {@code dst} must have room for
+     * {@link #maxCompressedBlockSize(int)} bytes.
+     *
+     * @param src the bytes to compress.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes. At most {@link #getBlockSize()}.
+     * @param dst the array to write the block to.
+     * @param dstOff the offset in {@code dst}.
+     * @return the number of bytes written.
+     */
+    public int compressBlock(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        if (len < 0 || len > blockSize) {
+            throw new IllegalArgumentException("len");
+        }
+        crc32.reset();
+        crc32.update(src, off, len);
+
+        int compressedSize = 0;
+        if (len > 0) {
+            int n = parse(src, off, len);
+            buildCodes();
+            if (scratch == null || scratch.length < maxCompressedBlockSize(blockSize)) {
+                scratch = new byte[maxCompressedBlockSize(blockSize)];
+            }
+            compressedSize = encode(src, off, n, scratch, 0);
+        }
+        if (len < 2048 && compressedSize >= len) {
+            /*
+             * Store the block uncompressed. HU01Decompressor treats every block
+             * smaller than 2048 bytes whose compressed size equals its
+             * decompressed size as uncompressed.
+             */
+            System.arraycopy(src, off, dst, dstOff + BLOCK_HEADER_SIZE, len);
+            compressedSize = len;
+        } else {
+            System.arraycopy(scratch, 0, dst, dstOff + BLOCK_HEADER_SIZE, compressedSize);
+        }
+        putInt(dst, dstOff, 0x48424353); // SCBH
+        putInt(dst, dstOff + 4, BLOCK_HEADER_SIZE);
+        putInt(dst, dstOff + 8, len);
+        putInt(dst, dstOff + 12, (int) crc32.getValue());
+        putInt(dst, dstOff + 16, compressedSize);
+        return BLOCK_HEADER_SIZE + compressedSize;
+    }
+
+    /**
+     * Finds the LZ77 matches in the block and collects the symbol
+     * frequencies. Each token holds {@code symbol | (offset << 9)}. The match
+     * length of a token is kept in {@code lengths}.
+     *
+     * @return the number of tokens.
+     */
+    private int parse(byte[] src, int off, int len) {
+        if (prev == null || prev.length < blockSize) {
+            prev = new int[blockSize];
+            tokens = new int[blockSize];
+            lengths = new int[blockSize];
+        }
+        Arrays.fill(head, -1);
+        Arrays.fill(freqs, 0);
+
+        int n = 0;
+        int i = 0;
+        while (i < len) {
+            int bestLength = 0;
+            int bestOffset = 0;
+            if (i + MIN_MATCH <= len) {
+                int h = hash(src, off + i);
+                int candidate = head[h];
+                head[h] = i;
+                prev[i] = candidate;
+                int maxLength = Math.min(len - i, MAX_MATCH);
+                for (int chain = maxChain; candidate >= 0 && chain > 0; chain--) {
+                    if (src[off + candidate + bestLength] == src[off + i + bestLength]) {
+                        int l = 0;
+                        while (l < maxLength && src[off + candidate + l] == src[off + i + l]) {
+                            l++;
+                        }
+                        if (l > bestLength) {
+                            bestLength = l;
+                            bestOffset = i - candidate;
+                            if (l == maxLength) {
+                                break;
+                            }
+                        }
+                    }
+                    candidate = prev[candidate];
+                }
+            }
+
+            if (bestLength >= MIN_MATCH) {
+                int offsetBits = 31 - Integer.numberOfLeadingZeros(bestOffset);
+                int sym = 256 | (offsetBits << 4) | Math.min(bestLength - MIN_MATCH, 15);
+                freqs[sym]++;
+                tokens[n] = sym | (bestOffset << 9);
+                lengths[n++] = bestLength;
+                int end = i + bestLength;
+                if (level > 3) {
+                    // Insert the positions within the match to find more matches later on
+                    int last = Math.min(end, len - MIN_MATCH + 1);
+                    for (i++; i < last; i++) {
+                        int h = hash(src, off + i);
+                        prev[i] = head[h];
+                        head[h] = i;
+                    }
+                }
+                i = end;
+            } else {
+                int sym = src[off + i] & 0xff;
+                freqs[sym]++;
+                tokens[n++] = sym;
+                i++;
+            }
+        }
+        return n;
+    }
+
+    private static int hash(byte[] b, int i) {
+        int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+        return (v * 0x9e3779b1) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * Builds length limited Huffman codes from {@code freqs}. The codes are
+     * canonical: shorter codes come first and codes of the same length are
+     * assigned in symbol order. This is what
+     * {@link HU01#build_decompression_table(byte[], int, short[])} expects.
+     */
+    private void buildCodes() {
+        int used = 0;
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            if (freqs[i] > 0) {
+                used++;
+            }
+        }
+        if (used < 2) {
+            // The decoder needs at least two symbols. Add a dummy one.
+            freqs[freqs[0] == 0 ? 0 : 1]++;
+        }
+
+        int[] f = freqs.clone();
+        while (!huffmanLengths(f)) {
+            // Flatten the distribution until no code is longer than MAX_CODE_LENGTH
+            for (int i = 0; i < NUM_SYMBOLS; i++) {
+                if (f[i] > 0) {
+                    f[i] = (f[i] + 1) >> 1;
+                }
+            }
+        }
+
+        int[] count = new int[MAX_CODE_LENGTH + 1];
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            count[codeLengths[i]]++;
+        }
+        count[0] = 0;
+        int[] next = new int[MAX_CODE_LENGTH + 2];
+        int code = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            code = (code + count[len - 1]) << 1;
+            next[len] = code;
+        }
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            int len = codeLengths[i];
+            if (len != 0) {
+                codes[i] = next[len]++;
+            }
+        }
+    }
+
+    /**
+     * Computes the Huffman code lengths of the symbols with non-zero
+     * frequency into {@code codeLengths}.
+     *
+     * @return {@code false} if a code is longer than {@link #MAX_CODE_LENGTH}.
+     */
+    private boolean huffmanLengths(int[] f) {
+        // Nodes 0..511 are the symbols, internal nodes follow
+        long[] heap = new long[NUM_SYMBOLS];
+        int[] parent = new int[2 * NUM_SYMBOLS];
+        int size = 0;
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            if (f[i] > 0) {
+                size = push(heap, size, ((long) f[i] << 32) | i);
+            }
+        }
+        int nextNode = NUM_SYMBOLS;
+        while (size > 1) {
+            long a = heap[0];
+            size = pop(heap, size);
+            long b = heap[0];
+            size = pop(heap, size);
+            int node = nextNode++;
+            parent[(int) a] = node;
+            parent[(int) b] = node;
+            size = push(heap, size, (((a >>> 32) + (b >>> 32)) << 32) | node);
+        }
+        int root = nextNode - 1;
+
+        int[] depth = new int[2 * NUM_SYMBOLS];
+        for (int node = root - 1; node >= NUM_SYMBOLS; node--) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+        boolean ok = true;
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            int len = f[i] > 0 ? depth[parent[i]] + 1 : 0;
+            codeLengths[i] = len;
+            if (len > MAX_CODE_LENGTH) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private static int push(long[] heap, int size, long v) {
+        int i = size++;
+        while (i > 0) {
+            int p = (i - 1) >> 1;
+            if (heap[p] <= v) {
+                break;
+            }
+            heap[i] = heap[p];
+            i = p;
+        }
+        heap[i] = v;
+        return size;
+    }
+
+    private static int pop(long[] heap, int size) {
+        long v = heap[--size];
+        int i = 0;
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= size) {
+                break;
+            }
+            if (c + 1 < size && heap[c + 1] < heap[c]) {
+                c++;
+            }
+            if (v <= heap[c]) {
+                break;
+            }
+            heap[i] = heap[c];
+            i = c;
+        }
+        if (size > 0) {
+            heap[i] = v;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the code length table followed by the Huffman coded tokens.
+     *
+     * @return the number of bytes written.
+     */
+    private int encode(byte[] src, int off, int numTokens, byte[] dst, int dstOff) {
+        for (int i = 0; i < HU01.TABLE_SIZE; i++) {
+            dst[dstOff + i] = (byte) (codeLengths[2 * i] | (codeLengths[2 * i + 1] << 4));
+        }
+
+        out = dst;
+        outPos = dstOff + HU01.TABLE_SIZE;
+        bitBuf = 0;
+        bitCount = 0;
+        totalBits = 0;
+        int maxWords = (maxCompressedBlockSize(blockSize) + 1) / 2;
+        if (slots == null || slots.length < maxWords) {
+            slots = new int[maxWords];
+        }
+        wordsReserved = 0;
+        wordsWritten = 0;
+
+        for (int i = 0; i < numTokens; i++) {
+            int token = tokens[i];
+            int sym = token & 0x1ff;
+            putBits(codes[sym], codeLengths[sym]);
+            if (sym < 256) {
+                continue;
+            }
+
+            /*
+             * The decompressor reads the extra length bytes (if any) straight
+             * from the input right after reading the offset bits. At that point
+             * it has read exactly the 16-bit words needed to hold the bits up
+             * to and including the symbol plus 16 bits of lookahead.
+             */
+            int wordsRead = Math.max(2, (totalBits + 15) / 16 + 1);
+            int offsetBits = (sym >> 4) & 0x0f;
+            int offset = token >>> 9;
+            putBits(offset & ((1 << offsetBits) - 1), offsetBits);
+            if ((sym & 0x0f) == 15) {
+                while (wordsReserved < wordsRead) {
+                    reserveWord();
+                }
+                int length = lengths[i] - MIN_MATCH;
+                if (length - 15 < 0xff) {
+                    out[outPos++] = (byte) (length - 15);
+                } else {
+                    out[outPos++] = (byte) 0xff;
+                    out[outPos++] = (byte) length;
+                    out[outPos++] = (byte) (length >> 8);
+                }
+            }
+        }
+
+        // The decompressor needs 16 bits of lookahead after the last symbol
+        int words = Math.max(2, (totalBits + 15) / 16 + 1);
+        if (bitCount > 0) {
+            putBits(0, 16 - bitCount);
+        }
+        while (wordsWritten < words) {
+            putBits(0, 16);
+        }
+
+        out = null;
+        return outPos - dstOff;
+    }
+
+    private void putBits(int value, int n) {
+        bitBuf = (bitBuf << n) | value;
+        bitCount += n;
+        totalBits += n;
+        if (bitCount >= 16) {
+            bitCount -= 16;
+            writeWord(bitBuf >>> bitCount);
+        }
+    }
+
+    private void writeWord(int word) {
+        if (wordsWritten == wordsReserved) {
+            reserveWord();
+        }
+        int pos = slots[wordsWritten++];
+        out[pos] = (byte) word;
+        out[pos + 1] = (byte) (word >> 8);
+    }
+
+    private void reserveWord() {
+        slots[wordsReserved++] = outPos;
+        outPos += 2;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >> 8);
+        b[off + 2] = (byte) (v >> 16);
+        b[off + 3] = (byte) (v >> 24);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This class provides an implementation of {@code FilterOutputStream} that
+ * compresses data using the proprietary <i>HU01</i> algorithm. Basically it
+ * wraps a {@link HU01Compressor} and takes care of the buffering.
+ * <p>
+ * The HU01 header holds the total decompressed size. If the size is passed to
+ * the constructor the compressed blocks are written as soon as they fill up.
+ * Otherwise the compressed blocks are kept in memory until {@link #finish()}
+ * is called.
+ *
+ * @see HU01Compressor
+ */
+public class HU01CompressorOutputStream extends FilterOutputStream {
+
+    /**
+     * The {@link HU01Compressor} used by {@link HU01CompressorOutputStream}
+     * to compress data.
+     */
+    protected final HU01Compressor compressor;
+
+    /**
+     * The internal input buffer holding the bytes of the current block.
+     */
+    protected final byte[] buf;
+
+    private final byte[] block;
+    private final long size;
+    private final ByteArrayOutputStream blocks;
+    private int count;
+    private long written;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * Constructs an {@link HU01CompressorOutputStream} with the default
+     * {@link HU01Compressor} which buffers the compressed data until
+     * {@link #finish()} is called.
+     *
+     * @param out the output stream that {@link HU01CompressorOutputStream} will
+     *            write compressed data into.
+     */
+    public HU01CompressorOutputStream(OutputStream out) {
+        this(out, new HU01Compressor());
+    }
+
+    /**
+     * Constructs an {@link HU01CompressorOutputStream} with the specified
+     * {@link HU01Compressor} which buffers the compressed data until
+     * {@link #finish()} is called.
+     *
+     * @param out the output stream that {@link HU01CompressorOutputStream} will
+     *            write compressed data into.
+     * @param compressor the {@link HU01Compressor} used to compress data.
+     */
+    public HU01CompressorOutputStream(OutputStream out, HU01Compressor compressor) {
+        this(out, compressor, -1);
+    }
+
+    /**
+     * Constructs an {@link HU01CompressorOutputStream} with the specified
+     * {@link HU01Compressor} which will be written exactly {@code size}
+     * bytes. The compressed data is written to {@code out} one block at a
+     * time.
+     *
+     * @param out the output stream that {@link HU01CompressorOutputStream} will
+     *            write compressed data into.
+     * @param compressor the {@link HU01Compressor} used to compress data.
+     * @param size the total number of bytes which will be written or
+     *            <code>-1</code> if unknown.
+     */
+    public HU01CompressorOutputStream(OutputStream out, HU01Compressor compressor, long size) {
+        super(out);
+        if (null == out || null == compressor) {
+            throw new NullPointerException();
+        }
+        if (size < -1 || size > 0xffffffffL) {
+            throw new IllegalArgumentException();
+        }
+        this.compressor = compressor;
+        this.size = size;
+        buf = new byte[compressor.getBlockSize()];
+        block = new byte[HU01Compressor.maxCompressedBlockSize(buf.length)];
+        blocks = size == -1 ? new ByteArrayOutputStream() : null;
+    }
+
+    /**
+     * Writes remaining data into the output stream and closes the underlying
+     * output stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            finish();
+            out.close();
+            closed = true;
+        }
+    }
+
+    /**
+     * Finishes writing compressed data to the output stream without closing
+     * the underlying stream. No more data can be written after this.
+     *
+     * @throws IOException if the stream has been closed, the number of bytes
+     *             written differs from the size passed to the constructor or
+     *             some I/O error occurs.
+     */
+    public void finish() throws IOException {
+        checkClosed();
+        if (finished) {
+            return;
+        }
+        if (count > 0) {
+            compressBlock();
+        }
+        if (blocks == null) {
+            if (written != size) {
+                throw new IOException("Expected " + size + " bytes. Got " + written + ".");
+            }
+            if (written == 0) {
+                writeHeader(0);
+            }
+        } else {
+            writeHeader(written);
+            blocks.writeTo(out);
+            blocks.reset();
+        }
+        finished = true;
+        out.flush();
+    }
+
+    /**
+     * Writes a byte to the compressing output stream.
+     *
+     * @param b the byte to write.
+     * @throws IOException if the stream has been closed or some I/O error
+     *             occurs.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Writes bytes to the compressing output stream.
+     *
+     * @param b the byte array to write.
+     * @param off the offset in the byte array of the first byte to write.
+     * @param len the number of bytes to write.
+     * @throws IOException if the stream has been closed, more bytes than
+     *             the size passed to the constructor are written or some I/O
+     *             error occurs.
+     * @throws NullPointerException if the byte array is null.
+     * @throws IndexOutOfBoundsException if the off less than zero or len less
+     *             than zero or off + len is greater than the byte array length.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (null == b) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (finished) {
+            throw new IOException("Already finished");
+        }
+        while (len > 0) {
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buf.length) {
+                compressBlock();
+            }
+        }
+    }
+
+    private void compressBlock() throws IOException {
+        if (blocks == null) {
+            if (written + count > size) {
+                throw new IOException("Expected " + size + " bytes. Got at least "
+                        + (written + count) + ".");
+            }
+            if (written == 0) {
+                writeHeader(size);
+            }
+        }
+        int n = compressor.compressBlock(buf, 0, count, block, 0);
+        if (blocks == null) {
+            out.write(block, 0, n);
+        } else {
+            blocks.write(block, 0, n);
+        }
+        written += count;
+        count = 0;
+    }
+
+    private void writeHeader(long size) throws IOException {
+        byte[] header = new byte[HU01Compressor.HEADER_SIZE];
+        HU01Compressor.writeHeader(size, header, 0);
+        out.write(header);
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe, bounded cache of HU01 decode tables keyed by the 256 bytes of 
+ * code lengths at the beginning of every compressed block. Blocks which start 
+ * with the same code lengths as a recently decompressed block reuse the 
+ * decode table built for that block, and the multi-symbol table used by 
+ * {@link HU01Decompressor#setMultiSymbolDecoding(boolean)} if it has been 
+ * built. The least recently used table is evicted 
+ * when the cache is full. A single cache can be shared by any number of 
+ * {@link HU01Decompressor}s (see 
+ * {@link HU01Decompressor#setDecodeTableCache(HU01DecodeTableCache)}).
+ */
+public class HU01DecodeTableCache {
+    private final int maxEntries;
+    private final Map<Key, Tables> tables;
+    private long hits = 0;
+    private long misses = 0;
+    
+    /**
+     * Creates a new cache holding at most {@code maxEntries} decode tables.
+     * Each table uses about 4 kB, plus 16 kB for its multi-symbol table.
+     * 
+     * @param maxEntries the maximum number of tables.
+     */
+    @SuppressWarnings("serial")
+    public HU01DecodeTableCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries");
+        }
+        this.maxEntries = maxEntries;
+        this.tables = new LinkedHashMap<Key, Tables>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Tables> eldest) {
+                return size() > HU01DecodeTableCache.this.maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Returns the decode tables for the code lengths starting at index 
+     * {@code off} in {@code src}. The returned tables must not be modified.
+     * 
+     * @return the tables or {@code null} if the code lengths are invalid.
+     */
+    Tables get(ByteBuffer src, int off) {
+        byte[] bytes = new byte[HU01.TABLE_SIZE];
+        ByteBuffer b = src.duplicate();
+        b.position(off);
+        b.get(bytes);
+        Key key = new Key(bytes);
+        synchronized (tables) {
+            Tables t = tables.get(key);
+            if (t != null) {
+                hits++;
+                return t;
+            }
+            misses++;
+        }
+        short[] table = new short[HU01.DECODE_TABLE_SIZE];
+        if (!HU01.build_decompression_table(bytes, 0, table)) {
+            return null;
+        }
+        Tables t = new Tables(table);
+        synchronized (tables) {
+            tables.put(key, t);
+        }
+        return t;
+    }
+    
+    /**
+     * Returns the number of blocks which reused a cached decode table.
+     * 
+     * @return the number of hits.
+     */
+    public long getHitCount() {
+        synchronized (tables) {
+            return hits;
+        }
+    }
+    
+    /**
+     * Returns the number of blocks for which a new decode table had to be 
+     * built.
+     * 
+     * @return the number of misses.
+     */
+    public long getMissCount() {
+        synchronized (tables) {
+            return misses;
+        }
+    }
+    
+    /**
+     * Returns the number of decode tables currently in the cache.
+     * 
+     * @return the number of tables.
+     */
+    public int size() {
+        synchronized (tables) {
+            return tables.size();
+        }
+    }
+    
+    /**
+     * Removes all tables from the cache and resets the counters.
+     */
+    public void clear() {
+        synchronized (tables) {
+            tables.clear();
+            hits = 0;
+            misses = 0;
+        }
+    }
+    
+    /**
+     * The decode table of a block and the multi-symbol table built from it.
+     */
+    static class Tables {
+        final short[] table;
+        private volatile int[] multi;
+        
+        Tables(short[] table) {
+            this.table = table;
+        }
+        
+        /**
+         * Returns the table built by {@link HU01#build_multi_table(short[], int[])}. 
+         * It is built the first time it's needed.
+         */
+        int[] multi() {
+            int[] m = multi;
+            if (m == null) {
+                // Threads racing here build identical tables
+                m = new int[HU01.MULTI_TABLE_SIZE];
+                HU01.build_multi_table(table, m);
+                multi = m;
+            }
+            return m;
+        }
+    }
+    
+    private static class Key {
+        private final byte[] bytes;
+        private final int hash;
+        
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && hash == ((Key) obj).hash && Arrays.equals(bytes, ((Key) obj).bytes);
+        }
+    }
+}
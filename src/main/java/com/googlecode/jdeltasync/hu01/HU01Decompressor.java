@@ -17,6 +17,12 @@ package com.googlecode.jdeltasync.hu01;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 import java.util.zip.Inflater;
 
@@ -32,32 +38,278 @@ import java.util.zip.Inflater;
 public class HU01Decompressor {
     private static final int HU01_MAGIC = 0x31305548; // HU01 (LE)
     private static final int SCBH_MAGIC = 0x48424353; // SCBH (LE)
-    private static final int TABLE_SIZE = 256;
+    private static final int TABLE_SIZE = HU01.TABLE_SIZE;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    
+    /**
+     * The default maximum size of a single block. The blocks sent by the 
+     * DeltaSync servers decompress to at most 64 kB.
+     */
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1024 * 1024;
 
     private boolean inHeader = true;
     private long decompressedSize = 0;
     private long decompressedBytes = 0;
+    private final int maxBlockSize;
+    private final LinkedList<ByteBuffer> input = new LinkedList<ByteBuffer>();
     private ByteBuffer buffer;
     private ByteBuffer decoded;
-    private short[] table = new short[0x8000];
+    private ByteBuffer output;
+    private short[] table = new short[HU01.DECODE_TABLE_SIZE];
+    private long blockBytes = 0;
+    private ExecutorService executor;
+    private int maxBlocksInFlight;
+    private HU01DecodeTableCache tableCache;
+    private final CRC32 crc32 = new CRC32();
+    private boolean verifyCrc = true;
+    private int[] multi;
+    private HU01DirectBufferPool bufferPool;
+    private final LinkedList<BlockTask> pending = new LinkedList<BlockTask>();
+    private final LinkedList<ByteBuffer> spare = new LinkedList<ByteBuffer>();
+    
+    /**
+     * Decode tables used by the threads of executors set using 
+     * {@link #setExecutor(ExecutorService, int)}.
+     */
+    private static final ThreadLocal<short[]> TABLES = new ThreadLocal<short[]>() {
+        @Override
+        protected short[] initialValue() {
+            return new short[HU01.DECODE_TABLE_SIZE];
+        }
+    };
+    
+    /**
+     * {@link CRC32} instances used by the threads of executors set using 
+     * {@link #setExecutor(ExecutorService, int)}.
+     */
+    private static final ThreadLocal<CRC32> CRCS = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+    
+    /**
+     * Buffers used to compute the CRCs of blocks decompressed into direct
+     * buffers.
+     */
+    private static final ThreadLocal<byte[]> CRC_CHUNKS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HU01.CRC_CHUNK_SIZE];
+        }
+    };
+    
+    /**
+     * Copies of compressed blocks read from direct buffers. Blocks are 
+     * decoded from these by the array based decoder.
+     */
+    private static final ThreadLocal<byte[]> SRC_SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[0];
+        }
+    };
+    
+    /**
+     * Blocks decoded by the array based decoder before being copied to 
+     * direct buffers.
+     */
+    private static final ThreadLocal<byte[]> DST_SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[0];
+        }
+    };
     
     /**
-     * Creates a new instance using an initial buffer size of 4096 bytes.
+     * Multi-symbol tables used by the threads of executors set using 
+     * {@link #setExecutor(ExecutorService, int)}.
+     */
+    private static final ThreadLocal<int[]> MULTIS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[HU01.MULTI_TABLE_SIZE];
+        }
+    };
+    
+    /**
+     * Creates a new instance using an initial buffer size of 4096 bytes and
+     * the default maximum block size.
      */
     public HU01Decompressor() {
         this(4096);
     }
     
     /**
-     * Creates a new instance using the specified initial buffer size.
+     * Creates a new instance using the specified initial buffer size and
+     * the default maximum block size.
      * 
      * @param initialBufferSize the initail buffer size.
      */
     public HU01Decompressor(int initialBufferSize) {
+        this(initialBufferSize, DEFAULT_MAX_BLOCK_SIZE);
+    }
+    
+    /**
+     * Creates a new instance using the specified initial buffer size and
+     * maximum block size. Input is consumed a block at a time and only the 
+     * part of a block which hasn't been completely added yet is buffered 
+     * internally. The internal input buffer and the buffer holding 
+     * decompressed data not yet returned never grow beyond 
+     * {@code maxBlockSize} bytes each. Blocks declaring a compressed or 
+     * decompressed size larger than {@code maxBlockSize} are rejected with an
+     * {@link HU01Exception}.
+     * 
+     * @param initialBufferSize the initail buffer size.
+     * @param maxBlockSize the maximum size of a block (header and compressed
+     *        data) and of its decompressed data.
+     * @throws IllegalArgumentException if {@code initialBufferSize} is 
+     *         negative or larger than {@code maxBlockSize} or if 
+     *         {@code maxBlockSize} is smaller than 64 bytes.
+     */
+    public HU01Decompressor(int initialBufferSize, int maxBlockSize) {
+        if (maxBlockSize < 64) {
+            throw new IllegalArgumentException("maxBlockSize");
+        }
+        if (initialBufferSize < 0 || initialBufferSize > maxBlockSize) {
+            throw new IllegalArgumentException("initialBufferSize");
+        }
+        this.maxBlockSize = maxBlockSize;
         buffer = allocateBuffer(initialBufferSize);
         buffer.flip();
     }
     
+    /**
+     * Returns the maximum size of a block accepted by this decompressor.
+     * 
+     * @return the maximum block size.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+    
+    /**
+     * Sets the {@link ExecutorService} used to decompress blocks concurrently.
+     * Each block in a HU01 stream can be decompressed independently. When an 
+     * executor has been set complete blocks are handed over to it as soon as 
+     * they have been added while the decompressed data is still returned in 
+     * order by {@link #decompress(byte[], int, int)}. The buffers holding the 
+     * compressed and decompressed blocks are reused from block to block, or 
+     * taken from the {@link HU01DirectBufferPool} if one has been set. Pass 
+     * {@code null} to decompress blocks on the calling thread (the default).
+     * 
+     * @param executor the {@link ExecutorService} or {@code null}.
+     * @param maxBlocksInFlight the maximum number of blocks being decompressed
+     *        at the same time. This bounds the memory used for compressed and
+     *        decompressed blocks not yet returned by 
+     *        {@link #decompress(byte[], int, int)}.
+     * @throws IllegalArgumentException if {@code executor} isn't {@code null}
+     *         and {@code maxBlocksInFlight} is negative or 0.
+     * @throws IllegalStateException if blocks are being decompressed by a 
+     *         previously set executor.
+     */
+    public void setExecutor(ExecutorService executor, int maxBlocksInFlight) {
+        if (executor != null && maxBlocksInFlight <= 0) {
+            throw new IllegalArgumentException("maxBlocksInFlight");
+        }
+        if (!pending.isEmpty()) {
+            throw new IllegalStateException("Blocks are being decompressed");
+        }
+        this.executor = executor;
+        this.maxBlocksInFlight = executor != null ? maxBlocksInFlight : 0;
+        spare.clear();
+    }
+    
+    /**
+     * Sets the {@link HU01DecodeTableCache} used to look up the decode tables
+     * of the blocks being decompressed. Pass {@code null} to build the decode
+     * table of every block from scratch (the default).
+     * 
+     * @param tableCache the {@link HU01DecodeTableCache} or {@code null}.
+     */
+    public void setDecodeTableCache(HU01DecodeTableCache tableCache) {
+        this.tableCache = tableCache;
+    }
+    
+    /**
+     * Sets whether the CRC of every decompressed block is verified (the 
+     * default). Only turn this off when the integrity of the compressed data 
+     * is already guaranteed by other means, e.g. for bulk archival of data 
+     * received over TLS. Corrupted data which happens to decompress without 
+     * errors will then go unnoticed.
+     * 
+     * @param verifyCrc {@code false} to skip CRC verification.
+     */
+    public void setVerifyCrc(boolean verifyCrc) {
+        this.verifyCrc = verifyCrc;
+    }
+    
+    /**
+     * Sets whether blocks are decoded using an additional 12 bits wide table
+     * which decodes two literals with a single lookup whenever their combined
+     * code length is at most 12 bits. This may speed up decompression of data
+     * dominated by short literal codes but a 4096 entries table has to be 
+     * built for every block, unless the block's decode table comes from the 
+     * {@link HU01DecodeTableCache} set using 
+     * {@link #setDecodeTableCache(HU01DecodeTableCache)} which keeps the 
+     * 4096 entries table along with it. Measure before turning it on. The decompressed 
+     * data is the same in both modes. The default is single symbol decoding.
+     * 
+     * @param multiSymbol {@code true} to decode two literals per lookup.
+     */
+    public void setMultiSymbolDecoding(boolean multiSymbol) {
+        this.multi = multiSymbol ? new int[HU01.MULTI_TABLE_SIZE] : null;
+    }
+    
+    /**
+     * Sets the {@link HU01DirectBufferPool} the internal input buffer and the
+     * buffer holding decompressed data not yet returned are acquired from.
+     * The buffers are returned to the pool by {@link #end()}. Pass 
+     * {@code null} to use heap buffers (the default). Any buffers acquired
+     * from a previously set pool are returned to it first.
+     * <p>
+     * Blocks decompressed from or into a direct buffer are copied to and 
+     * from per-thread arrays of up to the maximum block size and decoded 
+     * there. Use this for large messages written to a 
+     * {@link java.nio.channels.WritableByteChannel} (see 
+     * {@link HU01DecompressorWritableByteChannel}) where keeping the data 
+     * off-heap matters more than the extra copies.
+     * 
+     * @param bufferPool the {@link HU01DirectBufferPool} or {@code null}.
+     * @throws IllegalStateException if blocks are being decompressed by an
+     *         executor.
+     */
+    public void setBufferPool(HU01DirectBufferPool bufferPool) {
+        if (bufferPool == this.bufferPool) {
+            return;
+        }
+        if (!pending.isEmpty()) {
+            throw new IllegalStateException("Blocks are being decompressed");
+        }
+        end();
+        this.bufferPool = bufferPool;
+    }
+    
+    /**
+     * Returns the internal buffers to the {@link HU01DirectBufferPool} set 
+     * using {@link #setBufferPool(HU01DirectBufferPool)}. Does nothing if no 
+     * pool has been set. Any input and decompressed data not yet returned is 
+     * discarded, just like {@link #reset()} does. The decompressor can still 
+     * be used afterwards. New buffers are acquired when needed.
+     */
+    public void end() {
+        if (bufferPool == null) {
+            return;
+        }
+        reset();
+        bufferPool.release(buffer);
+        bufferPool.release(decoded);
+        buffer = EMPTY.duplicate();
+        decoded = null;
+        spare.clear();
+    }
+    
     /**
      * Resets the {@code HU01Decompressor}. Should be called prior to inflating a new
      * set of data.
@@ -66,6 +318,16 @@ public class HU01Decompressor {
         inHeader = true;
         decompressedSize = 0;
         decompressedBytes = 0;
+        blockBytes = 0;
+        for (BlockTask task : pending) {
+            // Waits for the task if it's running so that its buffers can be reused
+            task.cancel();
+            releaseBlockBuffer(task.block);
+            releaseBlockBuffer(task.dst);
+        }
+        pending.clear();
+        input.clear();
+        output = null;
         buffer.position(0);
         buffer.limit(0);
         if (decoded != null) {
@@ -117,35 +379,153 @@ public class HU01Decompressor {
             return -1;
         }
         
-        if (inHeader) {
-            long ret = header();
-            if (ret == -1) {
-                return 0;
+        if (off < 0 || nbytes < 0 || off > buf.length - nbytes) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        ByteBuffer dst = output;
+        if (dst == null || dst.array() != buf) {
+            // Callers typically pass the same array every time. Reuse the wrapper.
+            dst = output = ByteBuffer.wrap(buf);
+        }
+        dst.limit(off + nbytes);
+        dst.position(off);
+        do {
+            ByteBuffer src = input.isEmpty() ? EMPTY : input.getFirst();
+            decompress(src, dst);
+            if (!src.hasRemaining() && !input.isEmpty()) {
+                input.removeFirst();
             }
-            inHeader = false;
-            decompressedSize = ret;
+        } while (dst.hasRemaining() && !finished() && !input.isEmpty());
+        
+        return dst.position() - off;
+    }
+    
+    /**
+     * Decompresses bytes from {@code src} (and any input previously added 
+     * using one of the {@code addInput()} methods) into {@code dst}. Complete 
+     * blocks are decompressed directly from {@code src}, and directly into 
+     * {@code dst} when {@code dst} has room for the entire decompressed block.
+     * Only the bytes of a header or block which isn't complete in {@code src} 
+     * are copied to the internal input buffer until the rest of it is provided 
+     * in a later call. Both heap and direct buffers are supported.
+     * <p>
+     * The position of {@code src} is advanced by the number of bytes 
+     * consumed. All remaining bytes of {@code src} are consumed unless 
+     * {@code dst} fills up or the end of the compressed stream is reached. 
+     * The position of {@code dst} is advanced by the number of bytes written.
+     *
+     * @param src the compressed input.
+     * @param dst the buffer to write decompressed bytes to.
+     * @throws HU01Exception if the underlying stream is corrupted.
+     * @return the number of bytes decompressed. Returns 0 if more data is 
+     *         needed or if {@code dst} is full. Returns -1 if the entire 
+     *         stream has already been decompressed.
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws HU01Exception {
+        if (finished()) {
+            return -1;
         }
         
-        if (decoded == null || !decoded.hasRemaining()) {
-            if (block() == 0) {
-                return 0;
+        int start = dst.position();
+        while (dst.hasRemaining() && !finished()) {
+            if (decoded != null && decoded.hasRemaining()) {
+                int n = Math.min(dst.remaining(), decoded.remaining());
+                int limit = decoded.limit();
+                decoded.limit(decoded.position() + n);
+                dst.put(decoded);
+                decoded.limit(limit);
+                decompressedBytes += n;
+                continue;
+            }
+            
+            if (executor != null && !inHeader) {
+                if (!parallelBlock(src)) {
+                    break;
+                }
+                continue;
+            }
+            
+            ByteBuffer in = input(src);
+            if (in == null) {
+                break;
             }
+            if (inHeader) {
+                decompressedSize = header(in);
+                inHeader = false;
+                continue;
+            }
+            
+            int blockSize = blockSize(in);
+            int decompressedBlockSize = getInt(in, in.position() + 8);
+            blockBytes += decompressedBlockSize;
+            if (dst.remaining() >= decompressedBlockSize) {
+                decodeBlock(in, in.position(), table, multi, tableCache, verifyCrc ? crc32 : null, dst, dst.position());
+                dst.position(dst.position() + decompressedBlockSize);
+                decompressedBytes += decompressedBlockSize;
+            } else {
+                ensureDecodedCapacity(decompressedBlockSize);
+                decodeBlock(in, in.position(), table, multi, tableCache, verifyCrc ? crc32 : null, decoded, 0);
+                decoded.position(0);
+                decoded.limit(decompressedBlockSize);
+            }
+            in.position(in.position() + blockSize);
         }
         
-        if (decoded.hasRemaining()) {
-            int n = Math.min(nbytes, decoded.remaining());
-            decoded.get(buf, off, n);
-            decompressedBytes += n;
-            return n;
+        return dst.position() - start;
+    }
+    
+    /**
+     * Returns the buffer holding the next complete header or block. This is 
+     * {@code src} itself unless part of the header or block has been added 
+     * to the internal input buffer. Returns {@code null} if more input is 
+     * needed. In that case the remaining bytes of {@code src} have been 
+     * added to the internal input buffer.
+     */
+    private ByteBuffer input(ByteBuffer src) throws HU01Exception {
+        if (buffer.hasRemaining()) {
+            // Complete the partial header or block in the internal input buffer first
+            int missing;
+            while ((missing = unitSize(buffer) - buffer.remaining()) > 0 && src.hasRemaining()) {
+                stage(src, Math.min(missing, src.remaining()));
+            }
+            return missing <= 0 ? buffer : null;
+        }
+        if (unitSize(src) <= src.remaining()) {
+            return src;
+        }
+        // Keep the partial header or block until the rest of it is provided
+        stage(src, src.remaining());
+        return null;
+    }
+    
+    /**
+     * Adds the remaining bytes of {@code src} as input to be decompressed. 
+     * The position of {@code src} is advanced to its limit. This method 
+     * should be called if {@link #decompress(byte[])} or 
+     * {@link #decompress(byte[], int, int)} return 0. There's no need to 
+     * call this method when using {@link #decompress(ByteBuffer, ByteBuffer)}.
+     * <p>
+     * The bytes are copied so {@code src} may be reused as soon as this 
+     * method returns.
+     *
+     * @param src the input buffer.
+     */
+    public void addInput(ByteBuffer src) {
+        if (src.hasRemaining()) {
+            ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+            copy.put(src);
+            copy.flip();
+            input.addLast(copy);
         }
-
-        return 0;
     }
     
     /**
      * Adds input to be decompressed. This method should be
      * called if {@link #decompress(byte[])} or 
      * {@link #decompress(byte[], int, int)} return 0.
+     * <p>
+     * The bytes are copied so {@code buf} may be reused as soon as this 
+     * method returns.
      *
      * @param buf the input buffer.
      */
@@ -157,140 +537,460 @@ public class HU01Decompressor {
      * Adds input to be decompressed. This method should be
      * called if {@link #decompress(byte[])} or 
      * {@link #decompress(byte[], int, int)} return 0.
+     * <p>
+     * The bytes are copied so {@code buf} may be reused as soon as this 
+     * method returns.
      *
      * @param buf the input buffer.
      * @param off the offset to read from the input buffer.
      * @param nbytes the number of bytes to read.
      */
     public void addInput(byte[] buf, int off, int len) {
+        checkInput(buf, off, len);
+        if (len > 0) {
+            byte[] copy = new byte[len];
+            System.arraycopy(buf, off, copy, 0, len);
+            input.addLast(ByteBuffer.wrap(copy));
+        }
+    }
+    
+    /**
+     * Like {@link #addInput(byte[], int, int)} but without copying the 
+     * bytes. {@code buf} is referenced until it has been consumed, so its 
+     * contents must not be modified until {@link #decompress(byte[])} or 
+     * {@link #decompress(byte[], int, int)} has returned 0 or -1. At that 
+     * point any partial header or block has been copied to the internal 
+     * input buffer. {@link HU01DecompressorInputStream} and 
+     * {@link HU01DecompressorOutputStream} always drain the decompressor 
+     * before refilling their buffers, which is why they can use this.
+     *
+     * @param buf the input buffer.
+     * @param off the offset to read from the input buffer.
+     * @param len the number of bytes to read.
+     */
+    void addInputNoCopy(byte[] buf, int off, int len) {
+        checkInput(buf, off, len);
+        if (len > 0) {
+            input.addLast(ByteBuffer.wrap(buf, off, len));
+        }
+    }
+    
+    private static void checkInput(byte[] buf, int off, int len) {
         if (buf == null) {
             throw new NullPointerException();
         }
         if (off < 0 || len < 0 || off > buf.length - len) {
             throw new ArrayIndexOutOfBoundsException();
         }
-        ensureCapacity(len);
-        int position = buffer.position();
+    }
+    
+    /**
+     * Copies {@code len} bytes from {@code src} to the internal input buffer.
+     * The internal input buffer never holds more than a single header or 
+     * block (at most {@code maxBlockSize} bytes) so it never has to be 
+     * compacted. It only grows when a larger block comes along.
+     */
+    private void stage(ByteBuffer src, int len) {
+        if (!buffer.hasRemaining()) {
+            buffer.position(0);
+            buffer.limit(0);
+        } else if (buffer.position() != 0) {
+            buffer.compact();
+            buffer.flip();
+        }
         int limit = buffer.limit();
-        buffer.limit(buffer.capacity());
-        buffer.position(limit);
-        buffer.put(buf, off, len);
-        buffer.position(position);
+        if (limit + len > buffer.capacity()) {
+            int newCapacity = Math.max(limit + len, Math.min(maxBlockSize, buffer.capacity() * 2));
+            ByteBuffer newBuffer = allocateBuffer(newCapacity);
+            newBuffer.put(buffer);
+            newBuffer.flip();
+            releaseBuffer(buffer);
+            buffer = newBuffer;
+        }
+        int srcLimit = src.limit();
+        src.limit(src.position() + len);
         buffer.limit(limit + len);
+        buffer.position(limit);
+        buffer.put(src);
+        buffer.position(0);
+        src.limit(srcLimit);
     }
     
     private ByteBuffer allocateBuffer(int len) {
+        if (bufferPool != null) {
+            return bufferPool.acquire(len);
+        }
         ByteBuffer b = ByteBuffer.wrap(new byte[len]);
         b.order(ByteOrder.LITTLE_ENDIAN);
         return b;
     }
     
-    private void ensureCapacity(int n) {
-        if (n > buffer.capacity() - buffer.limit()) {
-            // There's not room for n bytes after the current limit
-            if (buffer.position() != 0 && n < buffer.capacity() - buffer.remaining()) {
-                // The bytes will fit if we shift the contents of buffer to position 0
-                buffer.compact();
-                buffer.flip();
-            } else {
-                // Create a new ByteBuffer big enough for the remaining data in buffer and n new bytes
-                int newCapacity = buffer.capacity() * 2;
-                while (newCapacity < buffer.remaining() + n) {
-                    newCapacity *= 2;
-                }
-                ByteBuffer newBuffer = allocateBuffer(newCapacity);
-                newBuffer.put(buffer);
-                newBuffer.flip();
-                buffer = newBuffer;
-            }
+    private void releaseBuffer(ByteBuffer b) {
+        if (bufferPool != null) {
+            bufferPool.release(b);
         }
     }
     
-    private long header() throws HU01Exception {
-        ByteBuffer b = buffer.slice(); // slice to prevent changing buffer until we now we've got the full header 
-        b.order(buffer.order());
-        if (b.remaining() < 36) {
-            // We need at least 36 bytes
-            return -1;
+    /**
+     * Returns the size of the header or block at the current position of 
+     * {@code in}. If there aren't enough bytes in {@code in} to determine the 
+     * size the number of bytes needed to do so is returned.
+     */
+    private int unitSize(ByteBuffer in) throws HU01Exception {
+        int pos = in.position();
+        if (inHeader) {
+            if (in.remaining() < 36) {
+                // We need at least 36 bytes
+                return 36;
+            }
+            int magic = getInt(in, pos);
+            if (magic != HU01_MAGIC) {
+                char[] chars = new char[] {(char) (magic & 0xff), (char) ((magic >> 8) & 0xff), (char) ((magic >> 16) & 0xff), (char) ((magic >> 24) & 0xff)};
+                throw new HU01Exception("Bad header: 'HU01' expected at beginning of header (was " + new String(chars) + ")");
+            }
+            int headerSize = getInt(in, pos + 4);
+            if (headerSize < 0x28) {
+                throw new HU01Exception("Bad header: Header size must be at least 0x28 bytes (was 0x" + Integer.toHexString(headerSize) + ")");
+            }
+            if (headerSize > maxBlockSize) {
+                throw new HU01Exception("Bad header: Header size " + headerSize 
+                        + " exceeds the maximum block size " + maxBlockSize);
+            }
+            return headerSize;
         }
-        int magic = b.getInt(0);
-        if (magic != HU01_MAGIC) {
+        
+        if (in.remaining() < 20) {
+            // We need at least 20 bytes for the header
+            return 20;
+        }
+        int magic = getInt(in, pos);
+        if (magic != SCBH_MAGIC) {
             char[] chars = new char[] {(char) (magic & 0xff), (char) ((magic >> 8) & 0xff), (char) ((magic >> 16) & 0xff), (char) ((magic >> 24) & 0xff)};
-            throw new HU01Exception("Bad header: 'HU01' expected at beginning of header (was " + new String(chars) + ")");
+            throw new HU01Exception("Bad block header: 'SCBH' expected at beginning of block header (was " + new String(chars) + ")");
         }
-        int headerSize = b.getInt(4);
-        if (headerSize < 0x28) {
-            throw new HU01Exception("Bad header: Header size must be at least 0x28 bytes (was 0x" + Integer.toHexString(headerSize) + ")");
+        int headerSize = getInt(in, pos + 4);
+        int decompressedBlockSize = getInt(in, pos + 8);
+        int compressedBlockSize = getInt(in, pos + 16);
+        if (headerSize < 20 || decompressedBlockSize < 0 || compressedBlockSize < 0 
+                || compressedBlockSize > Integer.MAX_VALUE - headerSize) {
+            throw new HU01Exception("Bad block header: Invalid sizes (header size " + headerSize 
+                    + ", compressed size " + compressedBlockSize + ", decompressed size " 
+                    + decompressedBlockSize + ")");
         }
-        
-        if (b.remaining() < headerSize) {
+        if (headerSize + compressedBlockSize > maxBlockSize || decompressedBlockSize > maxBlockSize) {
+            throw new HU01Exception("Bad block header: Block size (header size " + headerSize 
+                    + ", compressed size " + compressedBlockSize + ", decompressed size " 
+                    + decompressedBlockSize + ") exceeds the maximum block size " + maxBlockSize);
+        }
+        return headerSize + compressedBlockSize;
+    }
+    
+    private long header(ByteBuffer in) throws HU01Exception {
+        int headerSize = unitSize(in);
+        if (in.remaining() < headerSize) {
             return -1;
         }
-        
-        long size = b.getInt(32) & 0xffffffffL;
-        buffer.position(headerSize);
+        long size = getInt(in, in.position() + 32) & 0xffffffffL;
+        in.position(in.position() + headerSize);
         return size;
     }
     
-    private int block() throws HU01Exception {
-        ByteBuffer b = buffer.slice(); // slice to prevent changing buffer until we now we've got a full block 
-        b.order(buffer.order());
-        if (b.remaining() < 20) {
-            // We need at least 20 bytes for the header
-            return 0;
+    /**
+     * Returns the total size (header and compressed data) of the block at the
+     * current position in {@code in} or 0 if the entire block hasn't been
+     * added yet.
+     */
+    private int blockSize(ByteBuffer in) throws HU01Exception {
+        int blockSize = unitSize(in);
+        return in.remaining() < blockSize ? 0 : blockSize;
+    }
+    
+    private void ensureDecodedCapacity(int n) {
+        if (decoded == null || decoded.capacity() < n) {
+            releaseBuffer(decoded);
+            decoded = allocateBuffer(n);
         }
-        int magic = b.getInt(0);
-        if (magic != SCBH_MAGIC) {
-            char[] chars = new char[] {(char) (magic & 0xff), (char) ((magic >> 8) & 0xff), (char) ((magic >> 16) & 0xff), (char) ((magic >> 24) & 0xff)};
-            throw new HU01Exception("Bad block header: 'SCBH' expected at beginning of block header (was " + new String(chars) + ")");
+    }
+    
+    /**
+     * Hands the complete blocks in {@code src} over to the executor until 
+     * {@code maxBlocksInFlight} blocks are pending. Then makes the 
+     * decompressed data of the first pending block available in 
+     * {@code decoded}, waiting for it if necessary.
+     * 
+     * @return {@code true} if {@code decoded} has been updated, 
+     *         {@code false} if more input is needed.
+     */
+    private boolean parallelBlock(ByteBuffer src) throws HU01Exception {
+        ByteBuffer in = null;
+        while (pending.size() < maxBlocksInFlight && (in = input(src)) != null) {
+            int blockSize = blockSize(in);
+            int decompressedBlockSize = getInt(in, in.position() + 8);
+            ByteBuffer block = acquireBlockBuffer(blockSize);
+            int limit = in.limit();
+            in.limit(in.position() + blockSize);
+            block.put(in);
+            in.limit(limit);
+            block.flip();
+            ByteBuffer dst = acquireBlockBuffer(decompressedBlockSize);
+            dst.limit(decompressedBlockSize);
+            blockBytes += decompressedBlockSize;
+            BlockTask task = new BlockTask(block, dst, tableCache, verifyCrc, multi != null);
+            task.future = executor.submit(task);
+            pending.addLast(task);
         }
-        int headerSize = b.getInt(4);
-        int decompressedBlockSize = b.getInt(8);
-        long crc = b.getInt(12) & 0xffffffffL;
-        int compressedBlockSize = b.getInt(16);
-        if (b.remaining() < headerSize + compressedBlockSize) {
-            // We need at least headerSize+compressedBlockSize bytes for the entire block
-            return 0;
+        if (pending.isEmpty()) {
+            return false;
+        }
+        BlockTask head = pending.getFirst();
+        if (!head.future.isDone() && pending.size() < maxBlocksInFlight && blockBytes < decompressedSize) {
+            /*
+             * Return and ask for more input rather than waiting for the head 
+             * block. More input lets us decompress more blocks concurrently.
+             */
+            return false;
+        }
+        pending.removeFirst();
+        try {
+            head.future.get();
+        } catch (ExecutionException e) {
+            releaseBlockBuffer(head.block);
+            releaseBlockBuffer(head.dst);
+            if (e.getCause() instanceof HU01Exception) {
+                throw (HU01Exception) e.getCause();
+            }
+            throw new HU01Exception("Block decompression failed", e.getCause());
+        } catch (InterruptedException e) {
+            head.cancel();
+            releaseBlockBuffer(head.block);
+            releaseBlockBuffer(head.dst);
+            Thread.currentThread().interrupt();
+            throw new HU01Exception("Interrupted while waiting for block to be decompressed", e);
         }
+        releaseBlockBuffer(head.block);
+        releaseBlockBuffer(decoded);
+        decoded = head.dst;
+        return true;
+    }
+    
+    /**
+     * Returns a buffer for a block handed over to the executor. The buffer 
+     * comes from the {@link HU01DirectBufferPool}, if set, or else is one 
+     * of the heap buffers of earlier blocks if one is large enough.
+     */
+    private ByteBuffer acquireBlockBuffer(int len) {
+        for (Iterator<ByteBuffer> it = spare.iterator(); it.hasNext();) {
+            ByteBuffer b = it.next();
+            if (b.capacity() >= len) {
+                it.remove();
+                b.clear();
+                return b;
+            }
+        }
+        return allocateBuffer(len);
+    }
+    
+    /**
+     * Returns a buffer acquired using {@link #acquireBlockBuffer(int)} to the
+     * {@link HU01DirectBufferPool}, if set, or else keeps it for the next 
+     * blocks. Enough heap buffers are kept for the compressed and 
+     * decompressed data of {@code maxBlocksInFlight} blocks.
+     */
+    private void releaseBlockBuffer(ByteBuffer b) {
+        if (b == null) {
+            return;
+        }
+        if (bufferPool != null) {
+            bufferPool.release(b);
+            return;
+        }
+        spare.addFirst(b);
+        if (spare.size() > 2 * maxBlocksInFlight) {
+            spare.removeLast();
+        }
+    }
+    
+    /**
+     * Decompresses the block (header and compressed data) starting at index
+     * {@code off} in {@code src} into {@code dst} starting at index 
+     * {@code dstOff}. The CRC of the block is verified using {@code crc32} 
+     * unless {@code crc32} is {@code null}. Two literals are decoded per 
+     * lookup using the {@code multi} table unless {@code multi} is 
+     * {@code null}. The positions and limits of the buffers are not changed.
+     */
+    private static void decodeBlock(ByteBuffer src, int off, short[] table, int[] multi, 
+            HU01DecodeTableCache tableCache, CRC32 crc32, ByteBuffer dst, int dstOff) throws HU01Exception {
         
-        if (decoded == null || decoded.capacity() < decompressedBlockSize) {
-            decoded = allocateBuffer(decompressedBlockSize);
+        int headerSize = getInt(src, off + 4);
+        int decompressedBlockSize = getInt(src, off + 8);
+        long crc = getInt(src, off + 12) & 0xffffffffL;
+        int compressedBlockSize = getInt(src, off + 16);
+        int dataOffset = off + headerSize;
+        if (crc32 != null) {
+            crc32.reset();
         }
-        decoded.clear();
         
         if (compressedBlockSize == decompressedBlockSize && decompressedBlockSize < 2048) {
             /*
              * Block isn't compressed. Just copy the bytes. We don't know how to properly check for 
              * uncompressed blocks. For now the check above seems to work.
              */
-            b.position(headerSize);
-            b.limit(headerSize + compressedBlockSize);
-            decoded.put(b);
+            ByteBuffer s = src.duplicate();
+            s.limit(dataOffset + compressedBlockSize);
+            s.position(dataOffset);
+            ByteBuffer d = dst.duplicate();
+            d.position(dstOff);
+            d.put(s);
+            update(crc32, dst, dstOff, decompressedBlockSize);
         } else {
             // Compressed block
-            b.position(headerSize);
-            b.limit(b.position() + TABLE_SIZE);
-            if (!HU01.build_decompression_table(b.slice(), table)) {
+            if (compressedBlockSize < TABLE_SIZE) {
+                throw new HU01Exception("Bad block: Compressed block size " + compressedBlockSize 
+                        + " is smaller than the block table");
+            }
+            // Direct buffers are decoded by way of per-thread arrays using the array based decoder
+            byte[] s;
+            int sOff;
+            if (src.hasArray()) {
+                s = src.array();
+                sOff = src.arrayOffset() + dataOffset;
+            } else {
+                s = scratch(SRC_SCRATCH, compressedBlockSize);
+                sOff = 0;
+                ByteBuffer b = src.duplicate();
+                b.limit(dataOffset + compressedBlockSize);
+                b.position(dataOffset);
+                b.get(s, 0, compressedBlockSize);
+            }
+            byte[] d;
+            int dOff;
+            if (dst.hasArray()) {
+                d = dst.array();
+                dOff = dst.arrayOffset() + dstOff;
+            } else {
+                d = scratch(DST_SCRATCH, decompressedBlockSize);
+                dOff = 0;
+            }
+            if (tableCache != null) {
+                HU01DecodeTableCache.Tables tables = tableCache.get(src, dataOffset);
+                if (tables == null) {
+                    throw new HU01Exception("Bad block table");
+                }
+                table = tables.table;
+                if (multi != null) {
+                    multi = tables.multi();
+                }
+            } else if (!HU01.build_decompression_table(s, sOff, table)) {
                 throw new HU01Exception("Bad block table");
+            } else if (multi != null) {
+                HU01.build_multi_table(table, multi);
+            }
+            // The CRC is updated as the block is being decoded
+            int n;
+            if (multi != null) {
+                n = HU01.decompress_hu01_block_multi(s, sOff + TABLE_SIZE, compressedBlockSize - TABLE_SIZE, 
+                        table, multi, d, dOff, decompressedBlockSize, crc32);
+            } else {
+                n = HU01.decompress_hu01_block(s, sOff + TABLE_SIZE, compressedBlockSize - TABLE_SIZE, 
+                        table, d, dOff, decompressedBlockSize, crc32);
+            }
+            if (!dst.hasArray()) {
+                ByteBuffer b = dst.duplicate();
+                b.position(dstOff);
+                b.put(d, 0, n);
+            }
+            if (n != decompressedBlockSize) {
+                // Don't let stale bytes in dst through when the CRC isn't checked
+                throw new HU01Exception("Bad block: Decompressed " + n + " bytes. Expected " 
+                        + decompressedBlockSize + ".");
             }
-        
-            b.position(headerSize + TABLE_SIZE);
-            b.limit(headerSize + compressedBlockSize);
-            HU01.decompress_hu01_block(b.slice(), table, decoded);
         }
         
-        decoded.position(0);
-        decoded.limit(decompressedBlockSize);
+        long actual = crc32 != null ? crc32.getValue() : crc;
+        if (actual != crc) {
+            throw new HU01Exception("CRC check failed for block. Expected " + Long.toHexString(crc) 
+                    + ". Was " + Long.toHexString(actual) + ".");
+        }
+    }
+    
+    /**
+     * Returns the array held by {@code scratch} for the current thread, 
+     * replacing it with a larger one if it's shorter than {@code len} bytes.
+     */
+    private static byte[] scratch(ThreadLocal<byte[]> scratch, int len) {
+        byte[] b = scratch.get();
+        if (b.length < len) {
+            b = new byte[len];
+            scratch.set(b);
+        }
+        return b;
+    }
+    
+    private static void update(CRC32 crc32, ByteBuffer b, int off, int len) {
+        if (crc32 == null) {
+            return;
+        }
+        if (b.hasArray()) {
+            crc32.update(b.array(), b.arrayOffset() + off, len);
+        } else {
+            // CRC32 can only read from arrays. Copy a small chunk at a time.
+            byte[] chunk = CRC_CHUNKS.get();
+            ByteBuffer d = b.duplicate();
+            d.limit(off + len);
+            d.position(off);
+            while (d.hasRemaining()) {
+                int n = Math.min(chunk.length, d.remaining());
+                d.get(chunk, 0, n);
+                crc32.update(chunk, 0, n);
+            }
+        }
+    }
+    
+    /**
+     * Reads a little-endian int at the specified index regardless of the 
+     * byte order of the buffer.
+     */
+    private static int getInt(ByteBuffer b, int index) {
+        return (b.get(index) & 0xff) | ((b.get(index + 1) & 0xff) << 8) 
+            | ((b.get(index + 2) & 0xff) << 16) | ((b.get(index + 3) & 0xff) << 24);
+    }
+    
+    /**
+     * Decompresses a single block on one of the executor's threads.
+     */
+    private static class BlockTask implements Callable<Void> {
+        private final ByteBuffer block;
+        private final ByteBuffer dst;
+        private final HU01DecodeTableCache tableCache;
+        private final boolean verifyCrc;
+        private final boolean multiSymbol;
+        private Future<Void> future;
+        private boolean cancelled = false;
         
-        buffer.position(buffer.position() + headerSize + compressedBlockSize);
+        BlockTask(ByteBuffer block, ByteBuffer dst, HU01DecodeTableCache tableCache, 
+                boolean verifyCrc, boolean multiSymbol) {
+            
+            this.block = block;
+            this.dst = dst;
+            this.tableCache = tableCache;
+            this.verifyCrc = verifyCrc;
+            this.multiSymbol = multiSymbol;
+        }
         
-        CRC32 crc32 = new CRC32();
-        crc32.update(decoded.array(), decoded.position(), decoded.limit());
-        if (crc32.getValue() != crc) {
-            throw new HU01Exception("CRC check failed for block. Expected " + Long.toHexString(crc) 
-                    + ". Was " + Long.toHexString(crc32.getValue()) + ".");
+        public synchronized Void call() throws HU01Exception {
+            if (!cancelled) {
+                decodeBlock(block, 0, TABLES.get(), multiSymbol ? MULTIS.get() : null, tableCache, 
+                        verifyCrc ? CRCS.get() : null, dst, 0);
+            }
+            return null;
         }
         
-        return decompressedBlockSize;
+        /**
+         * Cancels the task. Waits for it to finish if it's already running.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            future.cancel(false);
+        }
     }
 }
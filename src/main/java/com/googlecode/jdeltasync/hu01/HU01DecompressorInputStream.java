@@ -205,7 +205,7 @@ public class HU01DecompressorInputStream extends FilterInputStream {
             throw new IOException("Stream is closed");
         }
         if ((len = in.read(buf)) > 0) {
-            decompressor.addInput(buf, 0, len);
+            decompressor.addInputNoCopy(buf, 0, len);
         }
     }
 
@@ -267,7 +267,8 @@ public class HU01DecompressorInputStream extends FilterInputStream {
     }
 
     /**
-     * Closes the input stream.
+     * Closes the input stream. Any buffers the decompressor has acquired from
+     * a {@link HU01DirectBufferPool} are returned to it.
      *
      * @throws IOException
      *             If an error occurs closing the input stream.
@@ -277,6 +278,7 @@ public class HU01DecompressorInputStream extends FilterInputStream {
         if (!closed) {
             closed = true;
             eof = true;
+            decompressor.end();
             super.close();
         }
     }
@@ -99,14 +99,19 @@ public class HU01DecompressorOutputStream extends FilterOutputStream {
 
     /**
      * Writes remaining data into the output stream and closes the underlying
-     * output stream data.
+     * output stream data. Any buffers the decompressor has acquired from a 
+     * {@link HU01DirectBufferPool} are returned to it.
      */
     @Override
     public void close() throws IOException {
         if (!closed) {
-            finish();
-            out.close();
-            closed = true;
+            try {
+                finish();
+                out.close();
+                closed = true;
+            } finally {
+                decompressor.end();
+            }
         }
     }
 
@@ -171,7 +176,7 @@ public class HU01DecompressorOutputStream extends FilterOutputStream {
             throw new IndexOutOfBoundsException();
         }
 
-        decompressor.addInput(b, off, len);
+        decompressor.addInputNoCopy(b, off, len);
         write();
     }
 
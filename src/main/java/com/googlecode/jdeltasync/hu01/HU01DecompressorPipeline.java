@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Overlaps reading HU01 compressed data with decompressing it. The calling
+ * thread reads the compressed data into a bounded queue of buffers while a
+ * task running on an {@link ExecutorService} writes the buffers to an
+ * {@link OutputStream}, typically a {@link HU01DecompressorOutputStream}.
+ * When the input is read from the network the decompression time is hidden
+ * behind the time spent waiting for the network.
+ * <p>
+ * The buffers are pooled and reused by later transfers. Instances of this
+ * class are thread-safe and can be shared by concurrent transfers.
+ */
+public class HU01DecompressorPipeline {
+    /**
+     * The default size of the buffers.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private static final Chunk EOF = new Chunk(null, -1);
+
+    private final ExecutorService executor;
+    private final int queueDepth;
+    private final int bufferSize;
+    private final LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+
+    /**
+     * Creates a new {@link HU01DecompressorPipeline} using buffers of
+     * {@link #DEFAULT_BUFFER_SIZE} bytes.
+     *
+     * @param executor the {@link ExecutorService} running the decompression
+     *        tasks. Must not run the tasks on the submitting thread.
+     * @param queueDepth the maximum number of buffers read but not yet
+     *        decompressed by a single transfer.
+     */
+    public HU01DecompressorPipeline(ExecutorService executor, int queueDepth) {
+        this(executor, queueDepth, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new {@link HU01DecompressorPipeline}.
+     *
+     * @param executor the {@link ExecutorService} running the decompression
+     *        tasks. Must not run the tasks on the submitting thread.
+     * @param queueDepth the maximum number of buffers read but not yet
+     *        decompressed by a single transfer.
+     * @param bufferSize the size of the buffers.
+     */
+    public HU01DecompressorPipeline(ExecutorService executor, int queueDepth, int bufferSize) {
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("queueDepth");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize");
+        }
+        this.executor = executor;
+        this.queueDepth = queueDepth;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the maximum number of buffers read but not yet decompressed by a
+     * single transfer.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Reads {@code in} until the end of the stream on the calling thread and
+     * writes the data to {@code out} on the executor. Returns when all data
+     * has been written to {@code out}. If writing to {@code out} fails
+     * reading stops and the exception thrown by {@code out} (e.g. an
+     * {@link IOException} caused by a {@link HU01Exception}) is rethrown.
+     *
+     * @param in the stream to read from.
+     * @param out the stream to write to.
+     * @throws IOException if reading from {@code in} or writing to
+     *         {@code out} fails.
+     */
+    public void transfer(InputStream in, final OutputStream out) throws IOException {
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(queueDepth);
+        // One extra slot for EOF
+        final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(queueDepth + 1);
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < queueDepth; i++) {
+            free.add(borrow());
+        }
+
+        Future<Void> future = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                Chunk chunk = null;
+                while ((chunk = full.take()) != EOF) {
+                    synchronized (failure) {
+                        if (failure[0] != null) {
+                            // Keep draining the queue until the reader notices the failure
+                            free.put(chunk.buffer);
+                            continue;
+                        }
+                    }
+                    try {
+                        out.write(chunk.buffer, 0, chunk.length);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                    free.put(chunk.buffer);
+                }
+                return null;
+            }
+        });
+
+        IOException readFailure = null;
+        try {
+            try {
+                while (true) {
+                    synchronized (failure) {
+                        if (failure[0] != null) {
+                            break;
+                        }
+                    }
+                    byte[] buffer = free.take();
+                    int n = in.read(buffer);
+                    if (n == -1) {
+                        free.put(buffer);
+                        break;
+                    }
+                    full.put(new Chunk(buffer, n));
+                }
+            } catch (IOException e) {
+                readFailure = e;
+            } finally {
+                full.put(EOF);
+            }
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException().initCause(e.getCause());
+        }
+
+        // All buffers are back in the free queue once the task has finished
+        release(free);
+        if (readFailure != null) {
+            throw readFailure;
+        }
+        Throwable t = failure[0];
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    private byte[] borrow() {
+        synchronized (buffers) {
+            if (!buffers.isEmpty()) {
+                return buffers.removeFirst();
+            }
+        }
+        return new byte[bufferSize];
+    }
+
+    private void release(BlockingQueue<byte[]> free) {
+        synchronized (buffers) {
+            free.drainTo(buffers);
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] buffer;
+        private final int length;
+
+        public Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
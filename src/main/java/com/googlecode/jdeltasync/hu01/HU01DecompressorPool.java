@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.util.LinkedList;
+
+/**
+ * Thread-safe pool of {@link HU01Decompressor} instances. Decompressors are
+ * {@link HU01Decompressor#reset() reset} when released and keep their decode 
+ * table, input buffer and decompressed data buffer so that decompressing a 
+ * stream using a pooled decompressor doesn't allocate anything once the 
+ * buffers have grown to the size of the blocks being decompressed.
+ * <p>
+ * At most {@code maxIdle} decompressors are kept in the pool. Each idle 
+ * decompressor holds on to at most twice its maximum block size worth of 
+ * buffers.
+ */
+public class HU01DecompressorPool {
+    private final int maxIdle;
+    private final int initialBufferSize;
+    private final int maxBlockSize;
+    private final LinkedList<HU01Decompressor> idle = new LinkedList<HU01Decompressor>();
+    private long borrowed = 0;
+    private long created = 0;
+    
+    /**
+     * Creates a new pool keeping at most {@code maxIdle} decompressors 
+     * created using {@link HU01Decompressor#HU01Decompressor()}.
+     * 
+     * @param maxIdle the maximum number of idle decompressors.
+     */
+    public HU01DecompressorPool(int maxIdle) {
+        this(maxIdle, 4096, HU01Decompressor.DEFAULT_MAX_BLOCK_SIZE);
+    }
+    
+    /**
+     * Creates a new pool keeping at most {@code maxIdle} decompressors 
+     * created using {@link HU01Decompressor#HU01Decompressor(int, int)}.
+     * 
+     * @param maxIdle the maximum number of idle decompressors.
+     * @param initialBufferSize the initial buffer size of new decompressors.
+     * @param maxBlockSize the maximum block size of new decompressors.
+     */
+    public HU01DecompressorPool(int maxIdle, int initialBufferSize, int maxBlockSize) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle");
+        }
+        // Fail early on bad buffer sizes
+        new HU01Decompressor(initialBufferSize, maxBlockSize);
+        this.maxIdle = maxIdle;
+        this.initialBufferSize = initialBufferSize;
+        this.maxBlockSize = maxBlockSize;
+    }
+    
+    /**
+     * Borrows a decompressor from the pool. A new decompressor is created if
+     * the pool is empty. The decompressor must be returned using 
+     * {@link #release(HU01Decompressor)} when done.
+     * 
+     * @return the {@link HU01Decompressor}.
+     */
+    public HU01Decompressor borrow() {
+        synchronized (idle) {
+            borrowed++;
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+            created++;
+        }
+        return new HU01Decompressor(initialBufferSize, maxBlockSize);
+    }
+    
+    /**
+     * Returns a decompressor to the pool. The decompressor is reset, its
+     * buffers are returned to its {@link HU01DirectBufferPool} (if any), its
+     * executor, decode table cache and buffer pool are cleared, CRC 
+     * verification is turned back on and multi-symbol decoding is turned 
+     * off. The decompressor is discarded if the pool is full.
+     * The decompressor must not be used by the caller after it has been 
+     * released.
+     * 
+     * @param decompressor the {@link HU01Decompressor} to return.
+     */
+    public void release(HU01Decompressor decompressor) {
+        decompressor.reset();
+        decompressor.setBufferPool(null);
+        decompressor.setExecutor(null, 0);
+        decompressor.setDecodeTableCache(null);
+        decompressor.setVerifyCrc(true);
+        decompressor.setMultiSymbolDecoding(false);
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                // Most recently used first. Its buffers are most likely to be in the CPU caches.
+                idle.addFirst(decompressor);
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of times {@link #borrow()} has been called.
+     * 
+     * @return the number of borrowed decompressors.
+     */
+    public long getBorrowCount() {
+        synchronized (idle) {
+            return borrowed;
+        }
+    }
+    
+    /**
+     * Returns the number of decompressors created by {@link #borrow()} 
+     * because the pool was empty.
+     * 
+     * @return the number of created decompressors.
+     */
+    public long getCreateCount() {
+        synchronized (idle) {
+            return created;
+        }
+    }
+    
+    /**
+     * Returns the number of idle decompressors currently in the pool.
+     * 
+     * @return the number of idle decompressors.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+}
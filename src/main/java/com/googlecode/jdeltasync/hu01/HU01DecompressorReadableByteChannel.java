@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link ReadableByteChannel} which decompresses the <i>HU01</i> compressed 
+ * data read from another {@link ReadableByteChannel}. Blocks are decompressed
+ * straight into the buffers passed to {@link #read(ByteBuffer)} whenever they
+ * have room for an entire decompressed block.
+ *
+ * @see HU01Decompressor#decompress(ByteBuffer, ByteBuffer)
+ */
+public class HU01DecompressorReadableByteChannel implements ReadableByteChannel {
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+    
+    private final ReadableByteChannel in;
+    private final HU01Decompressor decompressor;
+    private final ByteBuffer buf;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a new {@link HU01DecompressorReadableByteChannel} using a new 
+     * {@link HU01Decompressor} and a 4096 bytes heap input buffer.
+     * 
+     * @param in the channel to read compressed data from.
+     */
+    public HU01DecompressorReadableByteChannel(ReadableByteChannel in) {
+        this(in, new HU01Decompressor(), ByteBuffer.allocate(DEFAULT_BUFFER_SIZE));
+    }
+    
+    /**
+     * Creates a new {@link HU01DecompressorReadableByteChannel} using the 
+     * specified {@link HU01Decompressor} and input buffer. Pass a direct 
+     * buffer to read from the underlying channel without intermediate copies.
+     * 
+     * @param in the channel to read compressed data from.
+     * @param decompressor the {@link HU01Decompressor}.
+     * @param buf the buffer compressed data is read into. Must not be used
+     *        by anyone else.
+     */
+    public HU01DecompressorReadableByteChannel(ReadableByteChannel in, 
+            HU01Decompressor decompressor, ByteBuffer buf) {
+        
+        if (in == null || decompressor == null || buf == null) {
+            throw new NullPointerException();
+        }
+        if (buf.capacity() == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.in = in;
+        this.decompressor = decompressor;
+        this.buf = buf;
+        buf.clear();
+        buf.flip();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        try {
+            while (true) {
+                int n = decompressor.decompress(buf, dst);
+                if (n != 0) {
+                    return n;
+                }
+                if (eof) {
+                    throw new EOFException("Unexpected end of HU01 stream");
+                }
+                buf.clear();
+                int read = in.read(buf);
+                buf.flip();
+                if (read == -1) {
+                    eof = true;
+                } else if (read == 0) {
+                    // Non-blocking channel without data available
+                    return 0;
+                }
+            }
+        } catch (HU01Exception e) {
+            throw (IOException) new IOException().initCause(e);
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes this channel and the underlying channel. Any buffers the 
+     * decompressor has acquired from a {@link HU01DirectBufferPool} are 
+     * returned to it.
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            decompressor.end();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link WritableByteChannel} which decompresses the <i>HU01</i> compressed 
+ * data written to it and writes the decompressed data to another 
+ * {@link WritableByteChannel}, e.g. a {@code FileChannel}. Compressed data is 
+ * decompressed straight from the buffers passed to {@link #write(ByteBuffer)}. 
+ * Only blocks which span several writes are buffered.
+ *
+ * @see HU01Decompressor#decompress(ByteBuffer, ByteBuffer)
+ */
+public class HU01DecompressorWritableByteChannel implements WritableByteChannel {
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    
+    private final WritableByteChannel out;
+    private final HU01Decompressor decompressor;
+    private final ByteBuffer buf;
+    private boolean closed = false;
+
+    /**
+     * Creates a new {@link HU01DecompressorWritableByteChannel} using a new
+     * {@link HU01Decompressor} and a 64 kB heap output buffer.
+     * 
+     * @param out the channel decompressed data will be written to.
+     */
+    public HU01DecompressorWritableByteChannel(WritableByteChannel out) {
+        this(out, new HU01Decompressor(), ByteBuffer.allocate(DEFAULT_BUFFER_SIZE));
+    }
+    
+    /**
+     * Creates a new {@link HU01DecompressorWritableByteChannel} using the 
+     * specified {@link HU01Decompressor} and output buffer. Pass a direct 
+     * buffer to write to the underlying channel without intermediate copies.
+     * Blocks fitting in the output buffer are decompressed directly into it.
+     * 
+     * @param out the channel decompressed data will be written to.
+     * @param decompressor the {@link HU01Decompressor}.
+     * @param buf the buffer decompressed data is written to before being 
+     *        written to {@code out}. Must not be used by anyone else.
+     */
+    public HU01DecompressorWritableByteChannel(WritableByteChannel out, 
+            HU01Decompressor decompressor, ByteBuffer buf) {
+        
+        if (out == null || decompressor == null || buf == null) {
+            throw new NullPointerException();
+        }
+        if (buf.capacity() == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.out = out;
+        this.decompressor = decompressor;
+        this.buf = buf;
+    }
+
+    /**
+     * Decompresses all remaining bytes of {@code src} and writes the 
+     * decompressed data to the underlying channel.
+     * 
+     * @return the number of compressed bytes consumed from {@code src}.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int start = src.position();
+        try {
+            do {
+                buf.clear();
+                int n = decompressor.decompress(src, buf);
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                if (n <= 0) {
+                    break;
+                }
+            } while (true);
+        } catch (HU01Exception e) {
+            throw (IOException) new IOException().initCause(e);
+        }
+        // Ignore any trailing bytes after the end of the stream
+        src.position(src.limit());
+        return src.position() - start;
+    }
+
+    /**
+     * Returns {@code true} if the entire compressed stream has been written 
+     * to this channel.
+     */
+    public boolean finished() {
+        return decompressor.finished();
+    }
+    
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes this channel and the underlying channel. Any buffers the 
+     * decompressor has acquired from a {@link HU01DirectBufferPool} are 
+     * returned to it.
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            decompressor.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync.hu01;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Thread-safe pool of direct (off-heap) {@link ByteBuffer}s used as the
+ * internal buffers of {@link HU01Decompressor}s (see
+ * {@link HU01Decompressor#setBufferPool(HU01DirectBufferPool)}) and as the
+ * output buffers of {@link HU01DecompressorWritableByteChannel}s. Keeping the
+ * buffers of large messages off-heap and reusing them avoids promoting
+ * multi-megabyte buffers to the old generation.
+ * <p>
+ * Buffer capacities are rounded up to a power of two (at least 4 kB) so that
+ * released buffers can be reused for requests of similar size. The total
+ * capacity of the direct buffers allocated by the pool, in use or idle, never
+ * exceeds the budget passed to the constructor. Idle buffers of other sizes
+ * are discarded to make room for a new buffer. When that isn't enough a heap
+ * buffer is returned instead.
+ */
+public class HU01DirectBufferPool {
+    private static final int MIN_CAPACITY = 4096;
+
+    private final long maxBytes;
+    private final Map<Integer, LinkedList<ByteBuffer>> idle = new HashMap<Integer, LinkedList<ByteBuffer>>();
+    private final Map<ByteBuffer, Boolean> inUse = new IdentityHashMap<ByteBuffer, Boolean>();
+    private long allocatedBytes = 0;
+    private long idleBytes = 0;
+    private long heapCount = 0;
+
+    /**
+     * Creates a new pool which allocates at most {@code maxBytes} bytes of
+     * direct buffers.
+     *
+     * @param maxBytes the off-heap budget in bytes.
+     */
+    public HU01DirectBufferPool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cleared little-endian buffer with a capacity of at least
+     * {@code capacity} bytes. The buffer is direct unless the off-heap budget
+     * has been exhausted. The buffer must be returned using
+     * {@link #release(ByteBuffer)} when done.
+     *
+     * @param capacity the minimum capacity.
+     * @return the buffer.
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity");
+        }
+        int size = MIN_CAPACITY;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ByteBuffer b = null;
+        synchronized (inUse) {
+            LinkedList<ByteBuffer> list = idle.get(size);
+            if (list != null && !list.isEmpty()) {
+                b = list.removeFirst();
+                idleBytes -= size;
+            } else {
+                evict(size);
+                if (allocatedBytes + size <= maxBytes) {
+                    allocatedBytes += size;
+                    b = ByteBuffer.allocateDirect(size);
+                }
+            }
+            if (b != null) {
+                inUse.put(b, Boolean.TRUE);
+            } else {
+                heapCount++;
+            }
+        }
+        if (b == null) {
+            b = ByteBuffer.allocate(capacity);
+        }
+        b.clear();
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        return b;
+    }
+
+    /**
+     * Returns a buffer acquired using {@link #acquire(int)} to the pool.
+     * Buffers not allocated by this pool (e.g. heap buffers returned when the
+     * budget was exhausted) are ignored. The buffer must not be used by the
+     * caller after it has been released.
+     *
+     * @param b the buffer.
+     */
+    public void release(ByteBuffer b) {
+        if (b == null || !b.isDirect()) {
+            return;
+        }
+        synchronized (inUse) {
+            if (inUse.remove(b) == null) {
+                return;
+            }
+            Integer size = b.capacity();
+            LinkedList<ByteBuffer> list = idle.get(size);
+            if (list == null) {
+                list = new LinkedList<ByteBuffer>();
+                idle.put(size, list);
+            }
+            list.addFirst(b);
+            idleBytes += b.capacity();
+        }
+    }
+
+    /**
+     * Drops idle buffers of other sizes until a new buffer of {@code size}
+     * bytes fits within the budget. The memory of a dropped buffer is freed
+     * when the buffer is garbage collected.
+     */
+    private void evict(int size) {
+        if (allocatedBytes + size <= maxBytes || idleBytes == 0) {
+            return;
+        }
+        for (LinkedList<ByteBuffer> list : idle.values()) {
+            while (!list.isEmpty() && allocatedBytes + size > maxBytes) {
+                int capacity = list.removeLast().capacity();
+                idleBytes -= capacity;
+                allocatedBytes -= capacity;
+            }
+        }
+    }
+
+    /**
+     * Returns the total capacity of the direct buffers allocated by this pool
+     * which are either in use or idle.
+     *
+     * @return the number of off-heap bytes.
+     */
+    public long getAllocatedBytes() {
+        synchronized (inUse) {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * Returns the total capacity of the idle direct buffers in the pool.
+     *
+     * @return the number of idle off-heap bytes.
+     */
+    public long getIdleBytes() {
+        synchronized (inUse) {
+            return idleBytes;
+        }
+    }
+
+    /**
+     * Returns the number of heap buffers returned by {@link #acquire(int)}
+     * because the off-heap budget was exhausted.
+     *
+     * @return the number of heap buffers.
+     */
+    public long getHeapCount() {
+        synchronized (inUse) {
+            return heapCount;
+        }
+    }
+}
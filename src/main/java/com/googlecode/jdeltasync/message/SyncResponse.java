@@ -43,6 +43,7 @@ public class SyncResponse {
         
         private final String syncKey;
         private final Clazz clazz;
+        private final String collectionId;
         private final int status;
         private final List<Command> commands;
         private final boolean moreAvailable;
@@ -52,8 +53,16 @@ public class SyncResponse {
                 List<Command> commands, boolean moreAvailable, 
                 List<Response> responses) {
             
+            this(syncKey, clazz, null, status, commands, moreAvailable, responses);
+        }
+        
+        public Collection(String syncKey, Clazz clazz, String collectionId, 
+                int status, List<Command> commands, boolean moreAvailable, 
+                List<Response> responses) {
+            
             this.syncKey = syncKey;
             this.clazz = clazz;
+            this.collectionId = collectionId;
             this.status = status;
             this.commands = commands;
             this.moreAvailable = moreAvailable;
@@ -68,6 +77,17 @@ public class SyncResponse {
             return clazz;
         }
 
+        /**
+         * Returns the id of the folder this collection belongs to as 
+         * returned by the server.
+         * 
+         * @return the id or <code>null</code> if the server didn't return 
+         *         a <code>&lt;CollectionId&gt;</code>.
+         */
+        public String getCollectionId() {
+            return collectionId;
+        }
+
         public int getStatus() {
             return status;
         }
@@ -181,6 +181,9 @@ class PopHandler implements Runnable {
                 client.delete(getInbox(), getDeletedMessages());
                 logger.info("{} messages deleted from {}", deleted.size(), inbox.getName());
             }
+            if (client != null) {
+                store.flush(username);
+            }
             synchronized (connectedUsers) {
                 connectedUsers.remove(username);
             }            
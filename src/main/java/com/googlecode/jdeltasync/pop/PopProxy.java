@@ -38,6 +38,8 @@ import ch.qos.logback.core.util.StatusPrinter;
 import com.googlecode.jdeltasync.DeltaSyncClient;
 import com.googlecode.jdeltasync.DiskStore;
 import com.googlecode.jdeltasync.Store;
+import com.googlecode.jdeltasync.hu01.HU01DecodeTableCache;
+import com.googlecode.jdeltasync.hu01.HU01DecompressorPool;
 
 /**
  * POP3 proxy server which can be used to access Windows Live Hotmail accounts
@@ -189,9 +191,18 @@ public class PopProxy {
         
         log.info("Using datadir {}", datadir.getCanonicalPath());
         
+        DeltaSyncClient deltaSyncClient = new DeltaSyncClient(connManager);
+        deltaSyncClient.setDecompressorPool(new HU01DecompressorPool(connManager.getDefaultMaxPerRoute()));
+        deltaSyncClient.setDecodeTableCache(new HU01DecodeTableCache(256));
+        final DiskStore store = new DiskStore(datadir);
+        Runtime.getRuntime().addShutdownHook(new Thread("DiskStore-shutdown") {
+            @Override
+            public void run() {
+                store.close();
+            }
+        });
         PopProxy proxy = new PopProxy(new InetSocketAddress(bindTo, port), 
-                new DeltaSyncClient(connManager), new DiskStore(datadir),
-                Executors.newCachedThreadPool());
+                deltaSyncClient, store, Executors.newCachedThreadPool());
         
         try {
             proxy.start();
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the locking in {@link AbstractStore}, {@link InMemoryStore} and
+ * {@link DiskStore}.
+ */
+public class AbstractStoreTest {
+    private static final Folder INBOX = new Folder("ACTIVE", "Inbox");
+    private static final Folder DRAFTS = new Folder("drAfT", "Drafts");
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private File datadir;
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        if (datadir != null) {
+            for (File f : datadir.listFiles()) {
+                f.delete();
+            }
+            datadir.delete();
+        }
+    }
+
+    @Test
+    public void testUsersDontContend() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Store store = new InMemoryStore() {
+            @Override
+            protected void stateChanged(String username, State state) {
+                if ("slow".equals(username)) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        store.updateMessages("fast", INBOX, "1", messages("f", 0, 5), Collections.<String>emptyList());
+        Future<?> slow = executor.submit(new Runnable() {
+            public void run() {
+                store.updateMessages("slow", INBOX, "1", messages("s", 0, 5), Collections.<String>emptyList());
+            }
+        });
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        Future<Integer> fast = executor.submit(new Callable<Integer>() {
+            public Integer call() {
+                store.updateMessages("fast", INBOX, "2", messages("f", 5, 10), Collections.<String>emptyList());
+                return store.getMessages("fast", INBOX).size();
+            }
+        });
+        assertEquals(10, fast.get(5, TimeUnit.SECONDS).intValue());
+        assertFalse(slow.isDone());
+        release.countDown();
+        slow.get(5, TimeUnit.SECONDS);
+        assertEquals(5, store.getMessages("slow", INBOX).size());
+    }
+
+    @Test
+    public void testConcurrentDiskStore() throws Exception {
+        datadir = File.createTempFile("diskstore", "");
+        datadir.delete();
+        datadir.mkdirs();
+        final DiskStore store = new DiskStore(datadir);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int u = 0; u < 4; u++) {
+            for (final Folder folder : new Folder[] {INBOX, DRAFTS}) {
+                final String username = "user" + u;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < 50; i++) {
+                            store.updateMessages(username, folder, String.valueOf(i),
+                                    messages(folder.getId(), i * 20, i * 20 + 20),
+                                    Collections.<String>emptyList());
+                            store.getMessages(username, INBOX);
+                        }
+                    }
+                }));
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        store.flush();
+        store.awaitCompaction();
+
+        DiskStore reopened = new DiskStore(datadir);
+        for (int u = 0; u < 4; u++) {
+            for (Folder folder : new Folder[] {INBOX, DRAFTS}) {
+                assertEquals(1000, store.getMessages("user" + u, folder).size());
+                assertEquals(1000, reopened.getMessages("user" + u, folder).size());
+                assertEquals("49", reopened.getMessagesSyncKey("user" + u, folder));
+            }
+        }
+    }
+
+    private static List<Message> messages(String prefix, int from, int to) {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = from; i < to; i++) {
+            messages.add(new Message(prefix + i, new Date(i * 1000L), i, false,
+                    "Subject " + i, "from@example.com", false));
+        }
+        return messages;
+    }
+}
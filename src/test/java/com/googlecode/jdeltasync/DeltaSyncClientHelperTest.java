@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.googlecode.jdeltasync.message.SyncRequest;
+
+/**
+ * Tests {@link DeltaSyncClientHelper} against a stub {@link DeltaSyncClient}
+ * which answers <code>Sync</code> requests with canned responses.
+ */
+public class DeltaSyncClientHelperTest {
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+        + "<Sync xmlns=\"AirSync:\" xmlns:hmmail=\"HMMAIL:\" xmlns:email=\"EMAIL:\" "
+        + "xmlns:hmfolder=\"HMFOLDER:\"><Status>1</Status><Collections>";
+    private static final String FOOTER = "</Collections></Sync>";
+
+    private static final Folder INBOX = new Folder("ACTIVE", "Inbox");
+    private static final Folder DRAFTS = new Folder("drAfT", "Drafts");
+    private static final Folder SENT = new Folder("sAVeD", "Sent");
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stub {@link DeltaSyncClient} which never talks to a server.
+     */
+    private abstract static class StubClient extends DeltaSyncClient {
+        final AtomicInteger logins = new AtomicInteger();
+        final List<SyncRequest> requests = Collections.synchronizedList(new ArrayList<SyncRequest>());
+
+        @Override
+        public DeltaSyncSession login(String username, String password) {
+            logins.incrementAndGet();
+            return new DeltaSyncSession(username, password);
+        }
+
+        @Override
+        public void sync(DeltaSyncSession session, SyncRequest syncRequest, SyncHandler handler)
+                throws DeltaSyncException, IOException {
+
+            requests.add(syncRequest);
+            String xml = respond(session, syncRequest);
+            new SyncResponseParser(handler).parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        }
+
+        abstract String respond(DeltaSyncSession session, SyncRequest syncRequest)
+                throws DeltaSyncException, IOException;
+    }
+
+    @Test
+    public void testGetMessagesMultipleCollections() throws Exception {
+        StubClient client = new StubClient() {
+            String respond(DeltaSyncSession session, SyncRequest request) {
+                List<SyncRequest.Collection> collections = request.getCollections();
+                if (requests.size() == 1) {
+                    assertEquals(2, collections.size());
+                    assertEquals(INBOX.getId(), collections.get(0).getCollectionId());
+                    assertEquals(DRAFTS.getId(), collections.get(1).getCollectionId());
+                    assertEquals("0", collections.get(0).getSyncKey());
+                    // Collections in a different order than requested, Inbox has more
+                    return HEADER + collection(DRAFTS, "d1", 1, false, add("d", 0))
+                        + collection(INBOX, "i1", 1, true, add("i", 0) + add("i", 1)) + FOOTER;
+                }
+                // Only the Inbox is requested again, with its new sync key
+                assertEquals(1, collections.size());
+                assertEquals(INBOX.getId(), collections.get(0).getCollectionId());
+                assertEquals("i1", collections.get(0).getSyncKey());
+                return HEADER + collection(INBOX, "i2", 1, false,
+                        add("i", 2) + "<Delete><ServerId>i0</ServerId></Delete>") + FOOTER;
+            }
+        };
+        InMemoryStore store = new InMemoryStore();
+        DeltaSyncClientHelper helper = new DeltaSyncClientHelper(client, "foo@hotmail.com", "secret", store);
+        helper.login();
+
+        Map<Folder, Message[]> result = helper.getMessages(new Folder[] {INBOX, DRAFTS});
+        assertEquals(2, client.requests.size());
+        assertEquals(Arrays.asList(INBOX, DRAFTS), new ArrayList<Folder>(result.keySet()));
+        assertEquals(Arrays.asList("i1", "i2"), ids(result.get(INBOX)));
+        assertEquals(Arrays.asList("d0"), ids(result.get(DRAFTS)));
+        assertEquals("i2", store.getMessagesSyncKey("foo@hotmail.com", INBOX));
+        assertEquals("d1", store.getMessagesSyncKey("foo@hotmail.com", DRAFTS));
+    }
+
+    @Test
+    public void testGetMessagesMultipleCollectionsSessionExpired() throws Exception {
+        final DeltaSyncSession[] first = new DeltaSyncSession[1];
+        final CyclicBarrier bothExpired = new CyclicBarrier(2);
+        StubClient client = new StubClient() {
+            String respond(DeltaSyncSession session, SyncRequest request)
+                    throws DeltaSyncException, IOException {
+                if (session == first[0]) {
+                    try {
+                        bothExpired.await(5, TimeUnit.SECONDS);
+                        // Let the other sync renew the session first
+                        while (request.getCollections().size() > 1 && logins.get() < 2) {
+                            Thread.sleep(1);
+                        }
+                    } catch (Exception e) {
+                        throw new IOException();
+                    }
+                    throw new SessionExpiredException("expired");
+                }
+                if (request.getCollections().size() == 1) {
+                    return HEADER + collection(SENT, "s1", 1, false, add("s", 0)) + FOOTER;
+                }
+                return HEADER + collection(INBOX, "i1", 1, false, add("i", 0))
+                    + collection(DRAFTS, "d1", 1, false, "") + FOOTER;
+            }
+        };
+        final DeltaSyncClientHelper helper = new DeltaSyncClientHelper(client, "foo@hotmail.com", "secret");
+        helper.login();
+        first[0] = helper.getSession();
+
+        Future<Message[]> other = executor.submit(new Callable<Message[]>() {
+            public Message[] call() throws Exception {
+                return helper.getMessages(SENT);
+            }
+        });
+        Map<Folder, Message[]> result = helper.getMessages(new Folder[] {INBOX, DRAFTS});
+        assertEquals(Arrays.asList("s0"), ids(other.get(5, TimeUnit.SECONDS)));
+        // Both syncs saw the same expired session which is renewed only once
+        assertEquals(2, client.logins.get());
+        assertNotSame(first[0], helper.getSession());
+        assertEquals(Arrays.asList("i0"), ids(result.get(INBOX)));
+        assertEquals(0, result.get(DRAFTS).length);
+    }
+
+    @Test
+    public void testGetMessagesConcurrently() throws Exception {
+        final DeltaSyncSession[] first = new DeltaSyncSession[1];
+        final CyclicBarrier allExpired = new CyclicBarrier(3);
+        final CountDownLatch renewing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StubClient client = new StubClient() {
+            @Override
+            public DeltaSyncSession renew(DeltaSyncSession session)
+                    throws DeltaSyncException, IOException {
+                renewing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException();
+                }
+                return super.renew(session);
+            }
+
+            String respond(DeltaSyncSession session, SyncRequest request)
+                    throws DeltaSyncException, IOException {
+                if (session == first[0]) {
+                    // Make every folder see the expired session before any of them renews it
+                    try {
+                        allExpired.await(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IOException();
+                    }
+                    throw new SessionExpiredException("expired");
+                }
+                String id = request.getCollections().get(0).getCollectionId();
+                if (id.equals(DRAFTS.getId())) {
+                    return HEADER + collection(DRAFTS, "d1", 3, false, "") + FOOTER;
+                }
+                return HEADER + collection(new Folder(id, id), id + "1", 1, false,
+                        add(id, 0) + add(id, 1)) + FOOTER;
+            }
+        };
+        final DeltaSyncClientHelper helper = new DeltaSyncClientHelper(client, "foo@hotmail.com", "secret");
+        helper.login();
+        first[0] = helper.getSession();
+
+        Future<Map<Folder, Message[]>> sync = executor.submit(new Callable<Map<Folder, Message[]>>() {
+            public Map<Folder, Message[]> call() throws Exception {
+                return helper.getMessages(new Folder[] {INBOX, DRAFTS, SENT}, executor, 3);
+            }
+        });
+        assertTrue(renewing.await(5, TimeUnit.SECONDS));
+        // The helper itself isn't locked while the session is being renewed
+        Future<?> other = executor.submit(new Runnable() {
+            public void run() {
+                helper.setStoreExecutor(helper.getStoreExecutor());
+            }
+        });
+        other.get(5, TimeUnit.SECONDS);
+        release.countDown();
+
+        try {
+            sync.get(5, TimeUnit.SECONDS);
+            fail("FolderSyncException expected");
+        } catch (java.util.concurrent.ExecutionException e) {
+            FolderSyncException fse = (FolderSyncException) e.getCause();
+            // One renewal shared by all folders
+            assertEquals(2, client.logins.get());
+            assertEquals(Arrays.asList(DRAFTS), new ArrayList<Folder>(fse.getFailures().keySet()));
+            assertTrue(fse.getFailures().get(DRAFTS).getMessage().contains("status 3"));
+            assertSame(fse.getFailures().get(DRAFTS), fse.getCause());
+            assertEquals(Arrays.asList(INBOX, SENT), new ArrayList<Folder>(fse.getMessages().keySet()));
+            assertEquals(Arrays.asList(INBOX.getId() + "0", INBOX.getId() + "1"),
+                    ids(fse.getMessages().get(INBOX)));
+            assertEquals(Arrays.asList(SENT.getId() + "0", SENT.getId() + "1"),
+                    ids(fse.getMessages().get(SENT)));
+        }
+    }
+
+    @Test
+    public void testDownloadMessageContentsBatches() throws Exception {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        StubClient client = new StubClient() {
+            String respond(DeltaSyncSession session, SyncRequest request) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String[] downloadMessageContents(DeltaSyncSession session,
+                    List<String> messageIds, MessageSinkFactory sinkFactory) {
+
+                batches.add(new ArrayList<String>(messageIds));
+                List<String> ids = new ArrayList<String>(messageIds);
+                // m4 no longer exists on the server
+                ids.remove("m4");
+                return ids.toArray(new String[ids.size()]);
+            }
+        };
+        DeltaSyncClientHelper helper = new DeltaSyncClientHelper(client, "foo@hotmail.com", "secret");
+        helper.setMaxBatchSize(3);
+        helper.setMaxBatchBytes(1000);
+        helper.login();
+
+        long[] sizes = {100, 200, 300, 400, 50, 50, 2000, 10, 990};
+        Message[] messages = new Message[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            messages[i] = new Message("m" + i, new Date(), sizes[i], false, "Subject", "foo@example.com", false);
+        }
+        String[] ids = helper.downloadMessageContents(messages, null);
+
+        assertEquals(Arrays.asList(
+                Arrays.asList("m0", "m1", "m2"),
+                Arrays.asList("m3", "m4", "m5"),
+                Arrays.asList("m6"),
+                Arrays.asList("m7", "m8")), batches);
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m5", "m6", "m7", "m8"), Arrays.asList(ids));
+    }
+
+    private static String collection(Folder folder, String syncKey, int status,
+            boolean moreAvailable, String commands) {
+        return "<Collection><Class>Email</Class><SyncKey>" + syncKey + "</SyncKey>"
+            + "<CollectionId>" + folder.getId() + "</CollectionId><Status>" + status + "</Status>"
+            + (commands.length() > 0 ? "<Commands>" + commands + "</Commands>" : "")
+            + (moreAvailable ? "<MoreAvailable/>" : "") + "</Collection>";
+    }
+
+    private static String add(String prefix, int i) {
+        return "<Add><ServerId>" + prefix + i + "</ServerId>"
+            + "<ApplicationData><email:DateReceived>2011-02-03T04:05:06.007Z</email:DateReceived>"
+            + "<hmmail:Size>" + (100 + i) + "</hmmail:Size><email:Read>0</email:Read>"
+            + "<hmmail:HasAttachments>0</hmmail:HasAttachments>"
+            + "<email:Subject>Subject " + i + "</email:Subject>"
+            + "<email:From>foo@example.com</email:From></ApplicationData></Add>";
+    }
+
+    private static List<String> ids(Message[] messages) {
+        List<String> ids = new ArrayList<String>();
+        for (Message m : messages) {
+            ids.add(m.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link DeltaSyncClient} against a local HTTP server returning canned
+ * responses.
+ */
+public class DeltaSyncClientTest {
+    private static final String BOUNDARY = "--MIMEBoundary8cd2a1b1c1d9b40";
+    private static final String XOP = "xmlns:xop=\"http://www.w3.org/2004/08/xop/include\"";
+
+    private HttpServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private byte[] response;
+    private DeltaSyncClient client;
+    private DeltaSyncSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(new String(toByteArray(exchange.getRequestBody()), "UTF-8"));
+                exchange.getResponseHeaders().set("Content-Type", "application/xop+xml");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.start();
+        client = new DeltaSyncClient();
+        session = new DeltaSyncSession("foo@hotmail.com", "secret");
+        session.dsBaseUri = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        client.getConnectionManager().shutdown();
+    }
+
+    @Test
+    public void testDownloadMessageContentsByContentId() throws Exception {
+        // The contents arrive in a different order than requested
+        response = multipart("<Fetch><ServerId>a</ServerId><Status>1</Status>"
+                + "<Properties><A:Data><xop:Include " + XOP + " href=\"cid:1.urn:uuid:a\"/>"
+                + "</A:Data></Properties></Fetch>"
+                + "<Fetch><ServerId>b</ServerId><Status>4403</Status></Fetch>"
+                + "<Fetch><ServerId>c</ServerId><Status>1</Status>"
+                + "<Properties><A:Data><xop:Include " + XOP + " href=\"cid:2.urn%3Auuid%3Ac\"/>"
+                + "</A:Data></Properties></Fetch>",
+                "2.urn:uuid:c", resource("test2.hu01"), "1.urn:uuid:a", resource("test1.hu01"));
+        RecordingSinkFactory sinks = new RecordingSinkFactory();
+
+        String[] ids = client.downloadMessageContents(session, Arrays.asList("a", "b", "c"), sinks);
+
+        assertEquals(Arrays.asList("a", "c"), Arrays.asList(ids));
+        assertEquals(Arrays.asList("c", "a"), new ArrayList<String>(sinks.contents.keySet()));
+        assertArrayEquals(resource("test1.plain"), sinks.contents.get("a"));
+        assertArrayEquals(resource("test2.plain"), sinks.contents.get("c"));
+        assertEquals(Arrays.asList("c", "a"), sinks.completed);
+        assertEquals(1, requests.size());
+        String request = requests.get(0);
+        for (String id : ids) {
+            assertTrue(request.contains("<A:ServerId>" + id + "</A:ServerId>"));
+        }
+        assertTrue(request.contains("<A:ServerId>b</A:ServerId>"));
+    }
+
+    @Test
+    public void testDownloadMessageContentsByOrder() throws Exception {
+        // No ServerIds and no Content-IDs to match on
+        response = multipart("<Fetch><Status>1</Status></Fetch>"
+                + "<Fetch><Status>4403</Status></Fetch>"
+                + "<Fetch><Status>1</Status></Fetch>",
+                null, resource("test3.hu01"), null, resource("test4.hu01"));
+        RecordingSinkFactory sinks = new RecordingSinkFactory();
+
+        String[] ids = client.downloadMessageContents(session, Arrays.asList("a", "b", "c"), sinks);
+
+        assertEquals(Arrays.asList("a", "c"), Arrays.asList(ids));
+        assertArrayEquals(resource("test3.plain"), sinks.contents.get("a"));
+        assertArrayEquals(resource("test4.plain"), sinks.contents.get("c"));
+        assertFalse(sinks.contents.containsKey("b"));
+    }
+
+    @Test
+    public void testDownloadMessageContentsMissingContent() throws Exception {
+        response = multipart("<Fetch><ServerId>a</ServerId><Status>1</Status></Fetch>"
+                + "<Fetch><ServerId>b</ServerId><Status>1</Status></Fetch>",
+                null, resource("test1.hu01"));
+        try {
+            client.downloadMessageContents(session, Arrays.asList("a", "b"), new RecordingSinkFactory());
+            fail("DeltaSyncException expected");
+        } catch (DeltaSyncException e) {
+            assertTrue(e.getMessage().contains("message b"));
+        }
+    }
+
+    /**
+     * Collects the message contents in the order they arrive.
+     */
+    private static class RecordingSinkFactory implements MessageSinkFactory {
+        final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        final List<String> completed = new ArrayList<String>();
+
+        public OutputStream open(String messageId) {
+            return new ByteArrayOutputStream();
+        }
+
+        public void close(String messageId, OutputStream out, boolean complete) {
+            contents.put(messageId, ((ByteArrayOutputStream) out).toByteArray());
+            if (complete) {
+                completed.add(messageId);
+            }
+        }
+    }
+
+    /**
+     * Builds an MTOM <code>ItemOperations</code> response from the
+     * <code>&lt;Fetch&gt;</code> responses and pairs of Content-ID and
+     * content.
+     */
+    private static byte[] multipart(String fetches, Object ... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/related; type=\"application/xop+xml\"; "
+            + "boundary=\"" + BOUNDARY + "\"; start=\"<0.urn:uuid:0>\"\r\n"
+            + "\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-ID: <0.urn:uuid:0>\r\n"
+            + "Content-Type: application/xop+xml; charset=utf-8; type=\"text/xml\"\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<ItemOperations xmlns=\"ItemOperations:\" xmlns:A=\"HMMAIL:\">"
+            + "<Status>1</Status><Responses>" + fetches + "</Responses></ItemOperations>"
+            + "\r\n").getBytes("UTF-8"));
+        for (int i = 0; i < parts.length; i += 2) {
+            out.write(("--" + BOUNDARY + "\r\n"
+                + (parts[i] != null ? "Content-ID: <" + parts[i] + ">\r\n" : "")
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Transfer-Encoding: binary\r\n"
+                + "\r\n").getBytes("UTF-8"));
+            out.write((byte[]) parts[i + 1]);
+            out.write("\r\n".getBytes("UTF-8"));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+        return out.toByteArray();
+    }
+
+    private byte[] resource(String name) throws IOException {
+        return toByteArray(getClass().getResourceAsStream("hu01/" + name));
+    }
+
+    private static byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n = 0;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link DiskStore}.
+ */
+public class DiskStoreTest {
+    private static final String USERNAME = "foo@hotmail.com";
+    private static final Folder INBOX = new Folder("ACTIVE", "Inbox");
+    private static final Folder DRAFTS = new Folder("drAfT", "Drafts");
+
+    private File datadir;
+
+    @Before
+    public void setUp() throws Exception {
+        datadir = File.createTempFile("diskstore", "");
+        datadir.delete();
+        datadir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : datadir.listFiles()) {
+            f.delete();
+        }
+        datadir.delete();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        store.updateFolders(USERNAME, "f1", Arrays.asList(INBOX, DRAFTS), Collections.<String>emptyList());
+        store.updateMessages(USERNAME, INBOX, "1", messages(0, 3), Collections.<String>emptyList());
+        store.updateMessages(USERNAME, INBOX, "2", messages(3, 5), Arrays.asList("m1"));
+        store.updateMessages(USERNAME, DRAFTS, "5", messages(10, 11), Collections.<String>emptyList());
+        store.resetMessages(USERNAME, DRAFTS);
+        store.setWindowSize(USERNAME, INBOX, 512);
+        assertFalse(new File(datadir, "foo%40hotmail.com.dat").exists());
+        store.flush(USERNAME);
+
+        DiskStore reopened = new DiskStore(datadir);
+        assertEquals("f1", reopened.getFoldersSyncKey(USERNAME));
+        assertEquals(2, reopened.getFolders(USERNAME).size());
+        assertEquals("2", reopened.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals(Arrays.asList("m0", "m2", "m3", "m4"), ids(reopened.getMessages(USERNAME, INBOX)));
+        assertEquals("0", reopened.getMessagesSyncKey(USERNAME, DRAFTS));
+        assertTrue(reopened.getMessages(USERNAME, DRAFTS).isEmpty());
+        assertEquals(512, reopened.getWindowSize(USERNAME, INBOX));
+
+        Message m = find(reopened.getMessages(USERNAME, INBOX), "m3");
+        assertEquals(3000L, m.getDateReceived().getTime());
+        assertEquals(3L, m.getSize());
+        assertFalse(m.isRead());
+        assertTrue(m.hasAttachments());
+        assertEquals("Subject 3", m.getSubject());
+        assertNull(m.getFrom());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        long written = 0;
+        for (int i = 0; i < 50; i++) {
+            List<Message> messages = messages(i * 100, i * 100 + 100);
+            store.updateMessages(USERNAME, INBOX, String.valueOf(i), messages, Collections.<String>emptyList());
+            written += Journal.messages(INBOX.getId(), String.valueOf(i), messages,
+                    Collections.<String>emptyList()).length;
+        }
+        store.flush();
+        store.awaitCompaction();
+        File log = new File(datadir, "foo%40hotmail.com.log");
+        assertTrue(new File(datadir, "foo%40hotmail.com.dat").exists());
+        assertTrue(log.length() < written);
+
+        DiskStore reopened = new DiskStore(datadir);
+        assertEquals("49", reopened.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals(5000, reopened.getMessages(USERNAME, INBOX).size());
+    }
+
+    @Test
+    public void testCompactionAfterClose() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        store.close();
+        long written = 0;
+        for (int i = 0; i < 200; i++) {
+            List<Message> messages = messages(i * 10, i * 10 + 10);
+            store.updateMessages(USERNAME, INBOX, String.valueOf(i), messages, Collections.<String>emptyList());
+            written += Journal.messages(INBOX.getId(), String.valueOf(i), messages,
+                    Collections.<String>emptyList()).length;
+        }
+        // Compacted synchronously
+        assertTrue(written > 64 * 1024);
+        assertTrue(new File(datadir, "foo%40hotmail.com.dat").exists());
+        assertTrue(new File(datadir, "foo%40hotmail.com.log").length() < written);
+
+        DiskStore reopened = new DiskStore(datadir);
+        assertEquals("199", reopened.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals(2000, reopened.getMessages(USERNAME, INBOX).size());
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        store.setMaxStaleness(0);
+        store.updateMessages(USERNAME, INBOX, "1", messages(0, 2), Collections.<String>emptyList());
+        File log = new File(datadir, "foo%40hotmail.com.log");
+        long length = log.length();
+        byte[] record = Journal.messages(INBOX.getId(), "2", messages(2, 4), Collections.<String>emptyList());
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(record, 0, record.length - 3);
+        out.close();
+
+        DiskStore reopened = new DiskStore(datadir);
+        assertEquals("1", reopened.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals(2, reopened.getMessages(USERNAME, INBOX).size());
+        assertEquals(length, log.length());
+        reopened.updateMessages(USERNAME, INBOX, "2", messages(2, 3), Collections.<String>emptyList());
+        reopened.close();
+        assertEquals(3, new DiskStore(datadir).getMessages(USERNAME, INBOX).size());
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        store.setMaxStaleness(0);
+        store.updateMessages(USERNAME, INBOX, "1", messages(0, 3), Collections.<String>emptyList());
+        store.updateMessages(USERNAME, DRAFTS, "4", messages(3, 5), Collections.<String>emptyList());
+        FileOutputStream out = new FileOutputStream(new File(datadir, "foo%40hotmail.com.dat"));
+        out.write(new byte[] {'J', 'D', 'S', 'S', 0, 0, 0, 1, 0, 0});
+        out.close();
+
+        // The journal isn't replayed on top of an empty State
+        DiskStore reopened = new DiskStore(datadir);
+        assertEquals("0", reopened.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals("0", reopened.getMessagesSyncKey(USERNAME, DRAFTS));
+        assertTrue(reopened.getMessages(USERNAME, INBOX).isEmpty());
+        assertFalse(new File(datadir, "foo%40hotmail.com.dat").exists());
+        assertFalse(new File(datadir, "foo%40hotmail.com.log").exists());
+        assertTrue(new File(datadir, "foo%40hotmail.com.dat.corrupt").exists());
+        assertTrue(new File(datadir, "foo%40hotmail.com.log.corrupt").exists());
+
+        reopened.updateMessages(USERNAME, INBOX, "1", messages(0, 1), Collections.<String>emptyList());
+        reopened.close();
+        DiskStore third = new DiskStore(datadir);
+        assertEquals("1", third.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals(1, third.getMessages(USERNAME, INBOX).size());
+        assertEquals("0", third.getMessagesSyncKey(USERNAME, DRAFTS));
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        store.setMaxStaleness(200);
+        store.setMaxPendingChanges(3);
+        File log = new File(datadir, "foo%40hotmail.com.log");
+        store.updateMessages(USERNAME, INBOX, "1", messages(0, 2), Collections.<String>emptyList());
+        store.updateMessages(USERNAME, INBOX, "2", messages(2, 4), Collections.<String>emptyList());
+        assertFalse(log.exists());
+        assertEquals(4, store.getMessages(USERNAME, INBOX).size());
+
+        // Written after maxStaleness
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!log.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("2", new DiskStore(datadir).getMessagesSyncKey(USERNAME, INBOX));
+
+        // Written once maxPendingChanges has been reached
+        store.setMaxStaleness(60000);
+        long length = log.length();
+        store.updateMessages(USERNAME, INBOX, "3", messages(4, 5), Collections.<String>emptyList());
+        store.updateMessages(USERNAME, INBOX, "4", messages(5, 6), Collections.<String>emptyList());
+        assertEquals(length, log.length());
+        store.updateMessages(USERNAME, INBOX, "5", messages(6, 7), Collections.<String>emptyList());
+        deadline = System.currentTimeMillis() + 5000;
+        while (log.length() == length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("5", new DiskStore(datadir).getMessagesSyncKey(USERNAME, INBOX));
+
+        // Written by flush(String) and close()
+        store.updateMessages(USERNAME, INBOX, "6", messages(7, 8), Collections.<String>emptyList());
+        store.flush(USERNAME);
+        assertEquals("6", new DiskStore(datadir).getMessagesSyncKey(USERNAME, INBOX));
+        store.updateMessages(USERNAME, INBOX, "7", messages(8, 9), Collections.<String>emptyList());
+        store.close();
+        assertEquals("7", new DiskStore(datadir).getMessagesSyncKey(USERNAME, INBOX));
+        store.updateMessages(USERNAME, INBOX, "8", messages(9, 10), Collections.<String>emptyList());
+        assertEquals("8", new DiskStore(datadir).getMessagesSyncKey(USERNAME, INBOX));
+    }
+
+    @Test
+    public void testCacheEviction() throws Exception {
+        DiskStore store = new DiskStore(datadir);
+        store.setMaxStaleness(60000);
+        store.updateMessages("a", INBOX, "1", messages(0, 100), Collections.<String>emptyList());
+        store.updateMessages("b", INBOX, "1", messages(0, 100), Collections.<String>emptyList());
+        assertEquals(2, store.getCacheMissCount());
+        long weight = store.getCacheWeight();
+        store.setMaxCacheWeight(weight);
+
+        // a is evicted before its change has been written
+        store.updateMessages("b", INBOX, "2", messages(100, 110), Collections.<String>emptyList());
+        assertEquals(1, store.getCacheEvictionCount());
+        assertTrue(store.getCacheWeight() < weight);
+        assertFalse(new File(datadir, "a.log").exists());
+        assertEquals(100, store.getMessages("a", INBOX).size());
+        assertTrue(new File(datadir, "a.log").exists());
+        assertEquals(3, store.getCacheMissCount());
+        assertEquals(1, store.getCacheHitCount());
+
+        // Loading a evicted b, whose change is written before it is read back
+        assertEquals(2, store.getCacheEvictionCount());
+        assertEquals(110, store.getMessages("b", INBOX).size());
+        assertEquals(4, store.getCacheMissCount());
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        AbstractStore.State state = new AbstractStore.State();
+        state.foldersSyncKey = "f1";
+        state.folders.put(INBOX.getId(), INBOX);
+        state.messagesSyncKeys.put(INBOX.getId(), "7");
+        Map<String, Message> messages = new HashMap<String, Message>();
+        for (Message m : messages(0, 10)) {
+            messages.put(m.getId(), m);
+        }
+        state.messages.put(INBOX.getId(), messages);
+        File bin = new File(datadir, "foo%40hotmail.com.bin");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(bin));
+        out.writeObject(state);
+        out.close();
+
+        DiskStore store = new DiskStore(datadir);
+        assertEquals("f1", store.getFoldersSyncKey(USERNAME));
+        assertEquals("Inbox", store.getFolders(USERNAME).iterator().next().getName());
+        assertEquals("7", store.getMessagesSyncKey(USERNAME, INBOX));
+        assertEquals(10, store.getMessages(USERNAME, INBOX).size());
+        assertFalse(bin.exists());
+        assertTrue(new File(datadir, "foo%40hotmail.com.dat").exists());
+
+        Message m = find(new DiskStore(datadir).getMessages(USERNAME, INBOX), "m4");
+        assertEquals(4000L, m.getDateReceived().getTime());
+        assertTrue(m.isRead());
+        assertFalse(m.hasAttachments());
+        assertEquals("from4@example.com", m.getFrom());
+    }
+
+    @Test
+    public void testStateFile() throws Exception {
+        AbstractStore.State state = new AbstractStore.State();
+        state.messagesSyncKeys.put("orphan", "3");
+        state.windowSizes.put("orphan", 128);
+        state.messages.put("orphan", new HashMap<String, Message>());
+        state.messages.get("orphan").put("x", new Message("x", null, 1, false, null, null, false));
+        File f = new File(datadir, "state.dat");
+        StateFile.write(f, state);
+
+        AbstractStore.State read = StateFile.read(f);
+        assertEquals("0", read.foldersSyncKey);
+        assertTrue(read.folders.isEmpty());
+        assertEquals("3", read.messagesSyncKeys.get("orphan"));
+        assertEquals(128, read.windowSizes.get("orphan").intValue());
+        Message x = read.messages.get("orphan").get("x");
+        assertNull(x.getDateReceived());
+        assertNull(x.getSubject());
+        assertEquals(1, x.getSize());
+    }
+
+    @Test
+    public void testCorruptStateFile() throws Exception {
+        AbstractStore.State state = new AbstractStore.State();
+        state.foldersSyncKey = "f1";
+        state.folders.put(INBOX.getId(), INBOX);
+        state.messagesSyncKeys.put(INBOX.getId(), "7");
+        state.messages.put(INBOX.getId(), new HashMap<String, Message>());
+        for (Message m : messages(0, 10)) {
+            state.messages.get(INBOX.getId()).put(m.getId(), m);
+        }
+        File f = new File(datadir, "state.dat");
+        StateFile.write(f, state);
+        byte[] good = readFile(f);
+
+        // A flipped bit anywhere is caught by the checksum
+        byte[] bytes = good.clone();
+        bytes[bytes.length / 2] ^= 1;
+        assertCorrupt(f, bytes);
+        assertCorrupt(f, Arrays.copyOf(good, good.length - 10));
+
+        // Counts are checked even if the checksum matches
+        bytes = good.clone();
+        ByteBuffer.wrap(bytes).putInt(12, -5);
+        assertCorrupt(f, checksummed(bytes));
+        bytes = good.clone();
+        ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE);
+        assertCorrupt(f, checksummed(bytes));
+        bytes = good.clone();
+        ByteBuffer.wrap(bytes).putInt(20, 11);
+        assertCorrupt(f, checksummed(bytes));
+
+        // Version 1 files have no checksum
+        bytes = Arrays.copyOf(good, good.length - 4);
+        ByteBuffer.wrap(bytes).putInt(4, 1);
+        writeFile(f, bytes);
+        assertEquals(10, StateFile.read(f).messages.get(INBOX.getId()).size());
+        ByteBuffer.wrap(bytes).putInt(4, 3);
+        assertCorrupt(f, bytes);
+    }
+
+    private static void assertCorrupt(File f, byte[] bytes) throws Exception {
+        writeFile(f, bytes);
+        try {
+            StateFile.read(f);
+            fail("IOException expected");
+        } catch (IOException e) {
+        }
+    }
+
+    private static byte[] checksummed(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4, (int) crc.getValue());
+        return bytes;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File f, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<Message> messages(int from, int to) {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = from; i < to; i++) {
+            messages.add(new Message("m" + i, new Date(i * 1000L), i, i % 2 == 0,
+                    "Subject " + i, i % 3 == 0 ? null : "from" + i + "@example.com", i % 3 == 0));
+        }
+        return messages;
+    }
+
+    private static List<String> ids(Collection<Message> messages) {
+        List<String> ids = new ArrayList<String>();
+        for (Message m : messages) {
+            ids.add(m.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static Message find(Collection<Message> messages, String id) {
+        Map<String, Message> map = new HashMap<String, Message>();
+        for (Message m : messages) {
+            map.put(m.getId(), m);
+        }
+        return map.get(id);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * Tests {@link MultipartParser}.
+ */
+public class MultipartParserTest {
+    private static final String BOUNDARY = "--MIMEBoundary8cd2a1b1c1d9b40";
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+        + "<ItemOperations xmlns=\"ItemOperations:\"><Status>1</Status></ItemOperations>";
+
+    @Test
+    public void testParse() throws Exception {
+        byte[] binary = binary(100000);
+        byte[] response = response(binary, "binary", "\r\n");
+        for (int chunk : new int[] {1, 7, 100, 100000}) {
+            List<Object[]> parts = parse(new ChunkedInputStream(response, chunk));
+            assertEquals(2, parts.size());
+            assertEquals("application/xop+xml", parts.get(0)[0]);
+            assertEquals(XML, new String((byte[]) parts.get(0)[1], "UTF-8"));
+            assertEquals("application/octet-stream", parts.get(1)[0]);
+            assertArrayEquals(binary, (byte[]) parts.get(1)[1]);
+            assertEquals("0.urn:uuid:1", parts.get(0)[2]);
+            assertEquals("1.urn:uuid:2", parts.get(1)[2]);
+        }
+    }
+
+    @Test
+    public void testParseLfLineEndings() throws Exception {
+        byte[] binary = binary(5000);
+        List<Object[]> parts = parse(new ByteArrayInputStream(response(binary, "binary", "\n")));
+        assertEquals(2, parts.size());
+        assertEquals(XML, new String((byte[]) parts.get(0)[1], "UTF-8"));
+        assertArrayEquals(binary, (byte[]) parts.get(1)[1]);
+    }
+
+    @Test
+    public void testParseBase64() throws Exception {
+        byte[] binary = binary(5000);
+        List<Object[]> parts = parse(new ByteArrayInputStream(response(binary, "base64", "\r\n")));
+        assertArrayEquals(binary, (byte[]) parts.get(1)[1]);
+    }
+
+    @Test
+    public void testParseNotMultipart() throws Exception {
+        byte[] response = ("Content-Type: text/xml\r\n\r\n" + XML).getBytes("UTF-8");
+        List<Object[]> parts = parse(new ByteArrayInputStream(response));
+        assertEquals(1, parts.size());
+        assertEquals("text/xml", parts.get(0)[0]);
+        assertEquals(XML, new String((byte[]) parts.get(0)[1], "UTF-8"));
+    }
+
+    @Test
+    public void testParseTruncated() throws Exception {
+        byte[] response = response(binary(5000), "binary", "\r\n");
+        byte[] truncated = new byte[response.length - 200];
+        System.arraycopy(response, 0, truncated, 0, truncated.length);
+        try {
+            parse(new ByteArrayInputStream(truncated));
+            fail("DeltaSyncException expected");
+        } catch (DeltaSyncException e) {
+        }
+    }
+
+    @Test
+    public void testGetParameter() {
+        String contentType = "multipart/related; type=\"application/xop+xml\";"
+            + "boundary=\"" + BOUNDARY + "\"; start=\"<0.urn:uuid:1>\"";
+        assertEquals("multipart/related", MultipartParser.mimeType(contentType));
+        assertEquals(BOUNDARY, MultipartParser.getParameter(contentType, "boundary"));
+        assertEquals("application/xop+xml", MultipartParser.getParameter(contentType, "TYPE"));
+        assertEquals("abc", MultipartParser.getParameter("multipart/related; boundary=abc", "boundary"));
+        assertNull(MultipartParser.getParameter("multipart/related", "boundary"));
+    }
+
+    private static List<Object[]> parse(InputStream in) throws Exception {
+        final List<Object[]> parts = new ArrayList<Object[]>();
+        MultipartParser.parse(in, new MultipartParser.PartHandler() {
+            public void part(String mimeType, String contentId, InputStream body) throws IOException {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                MultipartParser.copy(body, baos);
+                parts.add(new Object[] {mimeType, baos.toByteArray(), contentId});
+            }
+        });
+        return parts;
+    }
+
+    /**
+     * Random bytes with lots of CRs, LFs and partial boundaries.
+     */
+    private static byte[] binary(int size) throws Exception {
+        Random random = new Random(size);
+        byte[] boundary = ("\r\n--" + BOUNDARY).getBytes("ISO-8859-1");
+        byte[] b = new byte[size];
+        random.nextBytes(b);
+        for (int i = 0; i < size - boundary.length; i += random.nextInt(200) + 1) {
+            int n = random.nextInt(boundary.length - 1);
+            System.arraycopy(boundary, 0, b, i, n);
+            i += n;
+        }
+        return b;
+    }
+
+    private static byte[] response(byte[] binary, String transferEncoding, String eol) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("MIME-Version: 1.0" + eol
+            + "Content-Type: multipart/related; type=\"application/xop+xml\";" + eol
+            + "\tboundary=\"" + BOUNDARY + "\"; start=\"<0.urn:uuid:1>\"" + eol
+            + eol
+            + "--" + BOUNDARY + eol
+            + "Content-ID: <0.urn:uuid:1>" + eol
+            + "Content-Type: application/xop+xml; charset=utf-8; type=\"text/xml\"" + eol
+            + "Content-Transfer-Encoding: binary" + eol
+            + eol
+            + XML + eol
+            + "--" + BOUNDARY + eol
+            + "Content-ID: <1.urn:uuid:2>" + eol
+            + "Content-Type: application/octet-stream" + eol
+            + "Content-Transfer-Encoding: " + transferEncoding + eol
+            + eol).getBytes("UTF-8"));
+        if (transferEncoding.equals("base64")) {
+            out.write(Base64.encodeBase64Chunked(binary));
+        } else {
+            out.write(binary);
+        }
+        out.write((eol + "--" + BOUNDARY + "--" + eol).getBytes("UTF-8"));
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns at most {@code chunk} bytes per read.
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+        private final int chunk;
+
+        public ChunkedInputStream(byte[] data, int chunk) {
+            super(new ByteArrayInputStream(data));
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.googlecode.jdeltasync.message.Clazz;
+import com.googlecode.jdeltasync.message.Command;
+import com.googlecode.jdeltasync.message.EmailAddCommand;
+import com.googlecode.jdeltasync.message.EmailDeleteCommand;
+import com.googlecode.jdeltasync.message.FolderAddCommand;
+import com.googlecode.jdeltasync.message.SyncResponse;
+
+/**
+ * Tests {@link SyncResponseParser}.
+ */
+public class SyncResponseParserTest {
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+        + "<Sync xmlns=\"AirSync:\" xmlns:hmmail=\"HMMAIL:\" xmlns:email=\"EMAIL:\" "
+        + "xmlns:hmfolder=\"HMFOLDER:\">";
+
+    @Test
+    public void testParseEmail() throws Exception {
+        String xml = HEADER + "<Status>1</Status><Collections>"
+            + "<Collection><Class>Email</Class><SyncKey>key1</SyncKey><Status>1</Status>"
+            + "<Commands>"
+            + "<Add><ServerId>id1</ServerId><hmmail:FolderId>ACTIVE</hmmail:FolderId>"
+            + "<ApplicationData><email:DateReceived>2011-02-03T04:05:06.007Z</email:DateReceived>"
+            + "<hmmail:Size>1234</hmmail:Size><email:Read>1</email:Read>"
+            + "<hmmail:HasAttachments>0</hmmail:HasAttachments>"
+            + "<email:Subject> Re: a &amp; b </email:Subject>"
+            + "<email:From>\"Foo\" &lt;foo@example.com&gt;</email:From>"
+            + "</ApplicationData></Add>"
+            + "<Delete><ServerId>id2</ServerId></Delete>"
+            + "</Commands>"
+            + "<Responses><Delete><ServerId>id3</ServerId><Status>4403</Status></Delete></Responses>"
+            + "<MoreAvailable/>"
+            + "</Collection></Collections></Sync>";
+
+        Recorder recorder = parse(xml, "1");
+        assertEquals(1, recorder.collections.size());
+        SyncResponse.Collection collection = recorder.collections.get(0);
+        assertEquals("key1", collection.getSyncKey());
+        assertEquals(Clazz.Email, collection.getClazz());
+        assertEquals(1, collection.getStatus());
+        assertTrue(collection.isMoreAvailable());
+        assertTrue(collection.getCommands().isEmpty());
+
+        assertEquals(2, recorder.commands.size());
+        EmailAddCommand add = (EmailAddCommand) recorder.commands.get(0);
+        assertEquals("id1", add.getId());
+        assertEquals("ACTIVE", add.getFolderId());
+        assertEquals(1296705906007L, add.getDateReceived().getTime());
+        assertEquals(1234, add.getSize());
+        assertTrue(add.isRead());
+        assertFalse(add.hasAttachments());
+        assertEquals("Re: a & b", add.getSubject());
+        assertEquals("\"Foo\" <foo@example.com>", add.getFrom());
+        assertEquals("id2", ((EmailDeleteCommand) recorder.commands.get(1)).getId());
+
+        assertEquals(1, recorder.responses.size());
+        SyncResponse.Collection.EmailDeleteResponse response =
+            (SyncResponse.Collection.EmailDeleteResponse) recorder.responses.get(0);
+        assertEquals("id3", response.getId());
+        assertEquals(4403, response.getStatus());
+    }
+
+    @Test
+    public void testParseFolders() throws Exception {
+        String xml = HEADER + "<Status>1</Status><Collections>"
+            + "<Collection><Class>Folder</Class><SyncKey>key2</SyncKey><Status>1</Status>"
+            + "<Commands><Add><ServerId>f1</ServerId><ApplicationData>"
+            + "<hmfolder:DisplayName>ACTIVE</hmfolder:DisplayName></ApplicationData></Add></Commands>"
+            + "</Collection>"
+            + "<Collection><Class>Email</Class><SyncKey>key3</SyncKey><CollectionId>c3</CollectionId>"
+            + "<Status>4402</Status></Collection>"
+            + "</Collections></Sync>";
+
+        Recorder recorder = parse(xml, "1");
+        assertEquals(2, recorder.collections.size());
+        assertFalse(recorder.collections.get(0).isMoreAvailable());
+        assertEquals(4402, recorder.collections.get(1).getStatus());
+        assertNull(recorder.collections.get(0).getCollectionId());
+        assertEquals("c3", recorder.collections.get(1).getCollectionId());
+        assertEquals(1, recorder.commands.size());
+        FolderAddCommand add = (FolderAddCommand) recorder.commands.get(0);
+        assertEquals("f1", add.getId());
+        assertEquals("ACTIVE", add.getDisplayName());
+    }
+
+    @Test
+    public void testParseFault() throws Exception {
+        String xml = HEADER + "<Status>4104</Status>"
+            + "<Fault><Faultcode>4104</Faultcode><Faultstring>Invalid sync key</Faultstring></Fault>"
+            + "</Sync>";
+        SyncResponseParser parser = new SyncResponseParser(new Recorder());
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals("4104", parser.getStatus());
+        assertEquals("Invalid sync key", parser.getFaultstring());
+    }
+
+    @Test(expected = XmlException.class)
+    public void testParseMalformed() throws Exception {
+        parse(HEADER + "<Status>1</Status><Collections>", "1");
+    }
+
+    private static Recorder parse(String xml, String expectedStatus) throws Exception {
+        Recorder recorder = new Recorder();
+        SyncResponseParser parser = new SyncResponseParser(recorder);
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(expectedStatus, parser.getStatus());
+        assertNull(parser.getFaultstring());
+        return recorder;
+    }
+
+    private static class Recorder implements SyncHandler {
+        private final List<Command> commands = new ArrayList<Command>();
+        private final List<SyncResponse.Collection.Response> responses =
+            new ArrayList<SyncResponse.Collection.Response>();
+        private final List<SyncResponse.Collection> collections =
+            new ArrayList<SyncResponse.Collection>();
+
+        public void command(Command command) {
+            commands.add(command);
+        }
+
+        public void response(SyncResponse.Collection.Response response) {
+            responses.add(response);
+        }
+
+        public void collection(SyncResponse.Collection collection) {
+            collections.add(collection);
+        }
+    }
+}
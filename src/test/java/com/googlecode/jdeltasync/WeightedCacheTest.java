@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link WeightedCache}.
+ */
+public class WeightedCacheTest {
+
+    @Test
+    public void testWeightEviction() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<String, String>(100, 0);
+        cache.put("a", "A", 40, 0);
+        cache.put("b", "B", 40, 0);
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C", 40, 0);
+        // b is the least recently used
+        assertNull(cache.peek("b"));
+        assertEquals("A", cache.peek("a"));
+        assertEquals(80, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+
+        // Growing the most recently used value evicts others but never the value itself
+        assertEquals("A", cache.get("a"));
+        cache.setWeight("a", 500);
+        assertEquals(1, cache.size());
+        assertEquals("A", cache.peek("a"));
+        assertEquals(500, cache.getWeight());
+        assertEquals(2, cache.getEvictionCount());
+
+        cache.setWeight("gone", 10);
+        assertEquals(500, cache.getWeight());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<String, String>(1000, 50);
+        cache.put("a", "A", 1, 0);
+        Thread.sleep(30);
+        cache.put("b", "B", 1, 0);
+        Thread.sleep(30);
+        assertNull(cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        Thread.sleep(60);
+        cache.evictExpired();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertEquals(2, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testPeekIsNoUse() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<String, String>(100, 200);
+        cache.put("a", "A", 40, 0);
+        cache.put("b", "B", 40, 0);
+        assertEquals("A", cache.peek("a"));
+        cache.setWeight("a", 45);
+        // a is still the least recently used
+        cache.put("c", "C", 40, 0);
+        assertNull(cache.peek("a"));
+        assertEquals("B", cache.peek("b"));
+
+        Thread.sleep(120);
+        assertEquals("C", cache.get("c"));
+        Thread.sleep(120);
+        // Peeking at b doesn't keep it from expiring
+        assertEquals("B", cache.peek("b"));
+        cache.setWeight("b", 10);
+        cache.evictExpired();
+        assertNull(cache.peek("b"));
+        assertEquals("C", cache.peek("c"));
+        Thread.sleep(250);
+        assertEquals("C", cache.peek("c"));
+        cache.evictExpired();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<String, String>(1000, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", "A", 1, 15);
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.peek("a"));
+        assertNull(cache.get("b"));
+        cache.put("b", "B", 1, 5);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(20, cache.getLoadTime());
+        assertEquals(0, cache.getEvictionCount());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link WindowSizeController}.
+ */
+public class WindowSizeControllerTest {
+    private final WindowSizeController controller = new WindowSizeController(32, 2000, 2000);
+
+    @Test
+    public void testGrow() {
+        assertEquals(512, controller.adjust(256, 256, true, 300));
+        assertEquals(2000, controller.adjust(1024, 1024, true, 900));
+        assertEquals(2000, controller.adjust(2000, 2000, true, 100));
+    }
+
+    @Test
+    public void testKeep() {
+        // Not a full page, the last page or not fast enough
+        assertEquals(256, controller.adjust(256, 100, true, 100));
+        assertEquals(256, controller.adjust(256, 256, false, 100));
+        assertEquals(256, controller.adjust(256, 256, true, 1500));
+        // Slow but small. Shrinking won't help.
+        assertEquals(256, controller.adjust(256, 20, true, 5000));
+    }
+
+    @Test
+    public void testShrink() {
+        assertEquals(400, controller.adjust(500, 500, true, 2500));
+        assertEquals(250, controller.adjust(500, 500, true, 10000));
+        assertEquals(32, controller.adjust(40, 40, true, 10000));
+    }
+
+    @Test
+    public void testClamp() {
+        assertEquals(32, controller.clamp(1));
+        assertEquals(2000, controller.clamp(5000));
+        assertEquals(64, new WindowSizeController(64, 64, 2000).adjust(256, 256, true, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new WindowSizeController(100, 50, 2000);
+    }
+
+    @Test
+    public void testStore() {
+        Store store = new InMemoryStore();
+        Folder folder = new Folder("ACTIVE", "Inbox");
+        assertEquals(0, store.getWindowSize("foo@hotmail.com", folder));
+        store.setWindowSize("foo@hotmail.com", folder, 1024);
+        assertEquals(1024, store.getWindowSize("foo@hotmail.com", folder));
+        store.resetMessages("foo@hotmail.com", folder);
+        assertEquals(1024, store.getWindowSize("foo@hotmail.com", folder));
+        assertEquals(0, store.getWindowSize("bar@hotmail.com", folder));
+    }
+}
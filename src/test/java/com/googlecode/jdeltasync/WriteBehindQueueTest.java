@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests {@link WriteBehindQueue}.
+ */
+public class WriteBehindQueueTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+        WriteBehindQueue queue = new WriteBehindQueue(executor);
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            queue.submit(new Runnable() {
+                public void run() {
+                    if (n % 10 == 0) {
+                        Thread.yield();
+                    }
+                    applied.add(n);
+                }
+            });
+        }
+        queue.await();
+        assertEquals(100, applied.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, applied.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+        WriteBehindQueue queue = new WriteBehindQueue(executor);
+        queue.submit(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("disk full");
+            }
+        });
+        try {
+            queue.await();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        try {
+            queue.submit(new Runnable() {
+                public void run() {
+                    applied.add(1);
+                }
+            });
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+        }
+        assertTrue(queue.awaitQuietly() instanceof IllegalStateException);
+        assertTrue(applied.isEmpty());
+    }
+}
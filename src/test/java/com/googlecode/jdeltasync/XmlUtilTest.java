@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011, the JDeltaSync project. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.jdeltasync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests {@link XmlUtil}.
+ */
+public class XmlUtilTest {
+    private static final String XML = "<Sync xmlns=\"AirSync:\" xmlns:email=\"EMAIL:\">"
+        + "<Status>1</Status>"
+        + "<Collections>"
+        + "<Collection><SyncKey>a</SyncKey><Commands><Add><ServerId>1</ServerId></Add>"
+        + "<Add><ServerId>2</ServerId></Add></Commands></Collection>"
+        + "<Other><Collection><SyncKey>b</SyncKey><Commands><Add><ServerId>3</ServerId></Add>"
+        + "</Commands></Collection></Other>"
+        + "</Collections>"
+        + "<email:Subject> subject </email:Subject>"
+        + "<Plain xmlns=\"\">plain</Plain>"
+        + "</Sync>";
+
+    @Test
+    public void testPath() throws Exception {
+        Document doc = parse(XML);
+        XmlUtil.Path path = XmlUtil.compile("//airsync:Collection/airsync:Commands/airsync:Add/airsync:ServerId");
+        List<Element> ids = path.getElements(doc);
+        assertEquals(3, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(String.valueOf(i + 1), ids.get(i).getTextContent());
+        }
+        assertSame(ids.get(0), path.getElement(doc));
+        assertEquals("1", path.getTextContent(doc));
+
+        assertEquals("1", XmlUtil.compile("/airsync:Sync/airsync:Status").getTextContent(doc));
+        assertEquals("1", XmlUtil.compile("*:Status").getTextContent(doc.getDocumentElement()));
+        assertEquals("subject", XmlUtil.compile("*:Sync/email:Subject").getTextContent(doc));
+        assertEquals("plain", XmlUtil.compile("airsync:Sync/Plain").getTextContent(doc));
+        assertNull(XmlUtil.compile("airsync:Sync/Status").getElement(doc));
+        assertNull(XmlUtil.compile("airsync:Sync/email:Status").getTextContent(doc));
+        assertTrue(XmlUtil.compile("airsync:Sync/airsync:Nothing").getElements(doc).isEmpty());
+    }
+
+    @Test
+    public void testStringPaths() throws Exception {
+        Document doc = parse(XML);
+        assertEquals(2, XmlUtil.getElements(doc, "//airsync:Collection").size());
+        assertEquals("a", XmlUtil.getTextContent(doc, "//airsync:Collection/airsync:SyncKey"));
+        assertTrue(XmlUtil.hasElement(doc, "//airsync:Other"));
+        XmlUtil.setTextContent(doc, "//airsync:SyncKey", "c");
+        assertEquals("c", XmlUtil.getTextContent(doc, "//airsync:SyncKey"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnboundPrefix() {
+        XmlUtil.compile("foo:Bar");
+    }
+
+    @Test
+    public void testParserReuse() throws Exception {
+        try {
+            parse("<Sync>");
+            fail("XmlException expected");
+        } catch (XmlException e) {
+        }
+        for (int i = 0; i < 3; i++) {
+            Document doc = parse(XML);
+            assertEquals("1", XmlUtil.getTextContent(doc, "airsync:Sync/airsync:Status"));
+            String compact = XmlUtil.toString(doc);
+            assertEquals(compact, XmlUtil.toString(parse(compact)));
+            assertTrue(XmlUtil.toString(doc, false).length() > compact.length());
+        }
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return XmlUtil.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+}
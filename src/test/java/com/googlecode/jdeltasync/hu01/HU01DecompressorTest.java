@@ -18,11 +18,21 @@ package com.googlecode.jdeltasync.hu01;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -71,6 +81,432 @@ public class HU01DecompressorTest {
         decompress("test7.hu01", "test7.plain", "UTF-8");
     }
     
+    @Test
+    public void testDecompressMultiSymbol() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setMultiSymbolDecoding(true);
+            decompress(getClass().getResourceAsStream("test" + i + ".hu01"), 
+                    getClass().getResourceAsStream("test" + i + ".plain"), 
+                    i == 2 ? "ISO-8859-1" : "UTF-8", decompressor);
+        }
+    }
+    
+    @Test
+    public void testDecompressParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 1; i <= 7; i++) {
+                HU01Decompressor decompressor = new HU01Decompressor();
+                decompressor.setExecutor(executor, 3);
+                decompress(getClass().getResourceAsStream("test" + i + ".hu01"), 
+                        getClass().getResourceAsStream("test" + i + ".plain"), 
+                        i == 2 ? "ISO-8859-1" : "UTF-8", decompressor);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testSkipCrc() throws Exception {
+        byte[] data = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        // Corrupt the CRC of the first block which starts right after the 0x28 bytes header
+        data[0x28 + 12] ^= 0xff;
+        try {
+            decompress(new ByteArrayInputStream(data), getClass().getResourceAsStream("test6.plain"), "UTF-8");
+            fail("HU01Exception expected");
+        } catch (HU01Exception e) {
+            assertTrue(e.getMessage().startsWith("CRC check failed"));
+        }
+        HU01Decompressor decompressor = new HU01Decompressor();
+        decompressor.setVerifyCrc(false);
+        decompress(new ByteArrayInputStream(data), getClass().getResourceAsStream("test6.plain"), "UTF-8", decompressor);
+    }
+    
+    @Test
+    public void testTruncatedBlock() throws Exception {
+        byte[] data = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        // Claim that the first block decompresses to more bytes than its data holds
+        ByteBuffer b = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0x28 + 8, b.getInt(0x28 + 8) + 10000);
+        for (boolean multi : new boolean[] {false, true}) {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setVerifyCrc(false);
+            decompressor.setMultiSymbolDecoding(multi);
+            try {
+                decompress(new ByteArrayInputStream(data), getClass().getResourceAsStream("test6.plain"), 
+                        "UTF-8", decompressor);
+                fail("HU01Exception expected");
+            } catch (HU01Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Bad block: Decompressed"));
+            }
+        }
+    }
+    
+    @Test
+    public void testDecompressParallelCorruptBlock() throws Exception {
+        byte[] data = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        // Corrupt the CRC of the first block which starts right after the 0x28 bytes header
+        data[0x28 + 12] ^= 0xff;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setExecutor(executor, 2);
+            decompressor.addInput(data);
+            byte[] decoded = new byte[1024];
+            try {
+                while (decompressor.decompress(decoded) > 0) {
+                }
+                fail("HU01Exception expected");
+            } catch (HU01Exception e) {
+                assertTrue(e.getMessage().startsWith("CRC check failed"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testAddInputCopies() throws Exception {
+        byte[] data = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        HU01Decompressor decompressor = new HU01Decompressor();
+        // Reuse and clobber the same buffer for every chunk before decompressing anything
+        byte[] chunk = new byte[1000];
+        for (int off = 0; off < data.length; off += chunk.length) {
+            int n = Math.min(chunk.length, data.length - off);
+            System.arraycopy(data, off, chunk, 0, n);
+            if (off % 2000 == 0) {
+                decompressor.addInput(chunk, 0, n);
+            } else {
+                ByteBuffer src = ByteBuffer.wrap(chunk, 0, n);
+                decompressor.addInput(src);
+                assertFalse(src.hasRemaining());
+            }
+            Arrays.fill(chunk, (byte) 0);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] decoded = new byte[1024];
+        int n;
+        while ((n = decompressor.decompress(decoded)) > 0) {
+            baos.write(decoded, 0, n);
+        }
+        assertTrue(decompressor.finished());
+        assertArrayEquals(toByteArray(getClass().getResourceAsStream("test6.plain")), baos.toByteArray());
+    }
+
+    @Test
+    public void testMaxBlockSize() throws Exception {
+        // The largest block in test5.hu01 decompresses to 65536 bytes
+        decompress(getClass().getResourceAsStream("test5.hu01"), 
+                getClass().getResourceAsStream("test5.plain"), "UTF-8", 
+                new HU01Decompressor(1024, 65536));
+        try {
+            decompress(getClass().getResourceAsStream("test5.hu01"), 
+                    getClass().getResourceAsStream("test5.plain"), "UTF-8", 
+                    new HU01Decompressor(1024, 65535));
+            fail("HU01Exception expected");
+        } catch (HU01Exception e) {
+            assertTrue(e.getMessage().endsWith("exceeds the maximum block size 65535"));
+        }
+    }
+    
+    @Test
+    public void testPool() throws Exception {
+        HU01DecompressorPool pool = new HU01DecompressorPool(1);
+        HU01Decompressor first = pool.borrow();
+        // Release a decompressor in the middle of a stream
+        first.addInput(toByteArray(getClass().getResourceAsStream("test6.hu01")));
+        first.decompress(new byte[100]);
+        pool.release(first);
+        for (int i = 1; i <= 7; i++) {
+            HU01Decompressor decompressor = pool.borrow();
+            assertSame(first, decompressor);
+            decompress(getClass().getResourceAsStream("test" + i + ".hu01"), 
+                    getClass().getResourceAsStream("test" + i + ".plain"), 
+                    i == 2 ? "ISO-8859-1" : "UTF-8", decompressor);
+            pool.release(decompressor);
+        }
+        HU01Decompressor second = pool.borrow();
+        HU01Decompressor third = pool.borrow();
+        assertNotSame(second, third);
+        pool.release(second);
+        pool.release(third);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(10, pool.getBorrowCount());
+        assertEquals(2, pool.getCreateCount());
+    }
+    
+    @Test
+    public void testDecodeTableCache() throws Exception {
+        HU01DecodeTableCache cache = new HU01DecodeTableCache(64);
+        for (int i = 1; i <= 7; i++) {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setDecodeTableCache(cache);
+            decompress(getClass().getResourceAsStream("test" + i + ".hu01"), 
+                    getClass().getResourceAsStream("test" + i + ".plain"), 
+                    i == 2 ? "ISO-8859-1" : "UTF-8", decompressor);
+        }
+        long misses = cache.getMissCount();
+        assertTrue(misses > 0);
+        assertEquals(misses, cache.size());
+        // All tables are cached the second time around
+        long hits = cache.getHitCount();
+        for (int i = 1; i <= 7; i++) {
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setDecodeTableCache(cache);
+            decompress(getClass().getResourceAsStream("test" + i + ".hu01"), 
+                    getClass().getResourceAsStream("test" + i + ".plain"), 
+                    i == 2 ? "ISO-8859-1" : "UTF-8", decompressor);
+        }
+        assertEquals(misses, cache.getMissCount());
+        assertEquals(hits + misses + hits, cache.getHitCount());
+    }
+    
+    @Test
+    public void testDecodeTableCacheMultiSymbol() throws Exception {
+        // The multi-symbol tables are kept along with the cached decode tables
+        HU01DecodeTableCache cache = new HU01DecodeTableCache(64);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= 7; i++) {
+                HU01Decompressor decompressor = new HU01Decompressor();
+                decompressor.setDecodeTableCache(cache);
+                decompressor.setMultiSymbolDecoding(true);
+                decompress(getClass().getResourceAsStream("test" + i + ".hu01"), 
+                        getClass().getResourceAsStream("test" + i + ".plain"), 
+                        i == 2 ? "ISO-8859-1" : "UTF-8", decompressor);
+            }
+        }
+        assertEquals(cache.getMissCount(), cache.size());
+        // The first block follows the stream header
+        ByteBuffer data = ByteBuffer.wrap(toByteArray(getClass().getResourceAsStream("test6.hu01")));
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        int block = data.getInt(4);
+        HU01DecodeTableCache.Tables tables = cache.get(data, block + data.getInt(block + 4));
+        assertSame(tables, cache.get(data, block + data.getInt(block + 4)));
+        assertSame(tables.multi(), tables.multi());
+    }
+    
+    @Test
+    public void testDecompressByteBuffer() throws Exception {
+        int[] chunkSizes = {7, 1024, 65536};
+        for (int i = 1; i <= 7; i++) {
+            byte[] data = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            for (int chunkSize : chunkSizes) {
+                for (int direct = 0; direct < 2; direct++) {
+                    ByteBuffer src = direct == 1 ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+                    ByteBuffer dst = direct == 1 ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+                    HU01Decompressor decompressor = new HU01Decompressor();
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    for (int off = 0; off < data.length; off += chunkSize) {
+                        src.clear();
+                        src.put(data, off, Math.min(chunkSize, data.length - off));
+                        src.flip();
+                        while (src.hasRemaining() && !decompressor.finished()) {
+                            dst.clear();
+                            decompressor.decompress(src, dst);
+                            write(dst, baos);
+                        }
+                    }
+                    dst.clear();
+                    while (decompressor.decompress(src, dst) > 0) {
+                        write(dst, baos);
+                        dst.clear();
+                    }
+                    assertTrue(decompressor.finished());
+                    assertEquals("test" + i + " chunk size " + chunkSize + " direct " + direct, 
+                            new String(plain, "ISO-8859-1"), new String(baos.toByteArray(), "ISO-8859-1"));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testReadableByteChannel() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            ReadableByteChannel channel = new HU01DecompressorReadableByteChannel(
+                    Channels.newChannel(getClass().getResourceAsStream("test" + i + ".hu01")));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ByteBuffer dst = ByteBuffer.allocateDirect(1000);
+            while (channel.read(dst) != -1) {
+                write(dst, baos);
+                dst.clear();
+            }
+            channel.close();
+            assertEquals(new String(plain, "ISO-8859-1"), new String(baos.toByteArray(), "ISO-8859-1"));
+        }
+    }
+    
+    @Test
+    public void testReadableByteChannelTruncated() throws Exception {
+        byte[] data = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+        byte[] truncated = new byte[data.length - 10];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        ReadableByteChannel channel = new HU01DecompressorReadableByteChannel(
+                Channels.newChannel(new ByteArrayInputStream(truncated)));
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        try {
+            while (channel.read(dst) != -1) {
+                dst.clear();
+            }
+            fail("EOFException expected");
+        } catch (EOFException e) {
+        }
+    }
+    
+    @Test
+    public void testWritableByteChannel() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            byte[] data = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            HU01DecompressorWritableByteChannel channel = new HU01DecompressorWritableByteChannel(
+                    Channels.newChannel(baos), new HU01Decompressor(), ByteBuffer.allocateDirect(4096));
+            for (int off = 0; off < data.length; off += 1000) {
+                channel.write(ByteBuffer.wrap(data, off, Math.min(1000, data.length - off)));
+            }
+            assertTrue(channel.finished());
+            channel.close();
+            assertEquals(new String(plain, "ISO-8859-1"), new String(baos.toByteArray(), "ISO-8859-1"));
+        }
+    }
+
+    @Test
+    public void testDirectBufferPool() throws Exception {
+        // Room for the 64 kB output buffer but not for all of the decompressor's buffers
+        HU01DirectBufferPool bufferPool = new HU01DirectBufferPool(96 * 1024);
+        for (int i = 1; i <= 7; i++) {
+            byte[] data = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            HU01Decompressor decompressor = new HU01Decompressor();
+            decompressor.setBufferPool(bufferPool);
+            ByteBuffer buf = bufferPool.acquire(65536);
+            assertTrue(buf.isDirect());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            HU01DecompressorWritableByteChannel channel = new HU01DecompressorWritableByteChannel(
+                    Channels.newChannel(baos), decompressor, buf);
+            for (int off = 0; off < data.length; off += 1000) {
+                channel.write(ByteBuffer.wrap(data, off, Math.min(1000, data.length - off)));
+            }
+            assertTrue(channel.finished());
+            channel.close();
+            bufferPool.release(buf);
+            assertEquals(new String(plain, "ISO-8859-1"), new String(baos.toByteArray(), "ISO-8859-1"));
+            assertEquals(bufferPool.getAllocatedBytes(), bufferPool.getIdleBytes());
+        }
+        assertTrue(bufferPool.getAllocatedBytes() <= 96 * 1024);
+        assertTrue(bufferPool.getHeapCount() > 0);
+    }
+
+    @Test
+    public void testDecompressParallelBufferPool() throws Exception {
+        // Room for the buffers of 3 blocks in flight, the decoded block and the input buffer
+        HU01DirectBufferPool bufferPool = new HU01DirectBufferPool(8 * 65536);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                HU01Decompressor decompressor = new HU01Decompressor();
+                decompressor.setExecutor(executor, 3);
+                decompressor.setBufferPool(bufferPool);
+                decompress(getClass().getResourceAsStream("test6.hu01"), 
+                        getClass().getResourceAsStream("test6.plain"), "UTF-8", decompressor);
+                decompressor.end();
+                assertEquals(bufferPool.getAllocatedBytes(), bufferPool.getIdleBytes());
+            }
+            // The block buffers come from the pool and are reused by later streams
+            assertTrue(bufferPool.getAllocatedBytes() > 0);
+            assertEquals(0, bufferPool.getHeapCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDecompressorPipeline() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            HU01DecompressorPipeline pipeline = new HU01DecompressorPipeline(executor, 2, 1000);
+            for (int i = 1; i <= 7; i++) {
+                byte[] data = toByteArray(getClass().getResourceAsStream("test" + i + ".hu01"));
+                byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                HU01DecompressorOutputStream out = new HU01DecompressorOutputStream(baos);
+                pipeline.transfer(new ByteArrayInputStream(data), out);
+                out.close();
+                assertEquals(new String(plain, "ISO-8859-1"), new String(baos.toByteArray(), "ISO-8859-1"));
+            }
+
+            byte[] data = toByteArray(getClass().getResourceAsStream("test6.hu01"));
+            // Corrupt the CRC of the first block which starts right after the 0x28 bytes header
+            data[0x28 + 12] ^= 0xff;
+            try {
+                pipeline.transfer(new ByteArrayInputStream(data),
+                        new HU01DecompressorOutputStream(new ByteArrayOutputStream()));
+                fail("IOException expected");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof HU01Exception);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompressRoundTrip() throws Exception {
+        int[] levels = {HU01Compressor.BEST_SPEED, HU01Compressor.DEFAULT_COMPRESSION, HU01Compressor.BEST_COMPRESSION};
+        int[] blockSizes = {100, 4096, HU01Compressor.MAX_BLOCK_SIZE};
+        for (int i = 1; i <= 7; i++) {
+            byte[] plain = toByteArray(getClass().getResourceAsStream("test" + i + ".plain"));
+            for (int level : levels) {
+                for (int blockSize : blockSizes) {
+                    byte[] data = new HU01Compressor(level, blockSize).compress(plain);
+                    decompress(new ByteArrayInputStream(data), new ByteArrayInputStream(plain), "ISO-8859-1");
+                }
+            }
+        }
+        // Incompressible, empty, single symbol and long matches
+        byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        byte[][] inputs = {random, new byte[0], new byte[1], new byte[70000]};
+        for (byte[] plain : inputs) {
+            byte[] data = new HU01Compressor().compress(plain);
+            decompress(new ByteArrayInputStream(data), new ByteArrayInputStream(plain), "ISO-8859-1");
+        }
+    }
+
+    @Test
+    public void testCompressorOutputStream() throws Exception {
+        byte[] plain = toByteArray(getClass().getResourceAsStream("test6.plain"));
+        for (long size : new long[] {-1, plain.length}) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            HU01CompressorOutputStream out = new HU01CompressorOutputStream(baos,
+                    new HU01Compressor(HU01Compressor.BEST_SPEED, 8192), size);
+            for (int off = 0; off < plain.length; off += 1000) {
+                out.write(plain, off, Math.min(1000, plain.length - off));
+            }
+            out.close();
+            decompress(new ByteArrayInputStream(baos.toByteArray()), new ByteArrayInputStream(plain), "ISO-8859-1");
+        }
+
+        HU01CompressorOutputStream out = new HU01CompressorOutputStream(
+                new ByteArrayOutputStream(), new HU01Compressor(), plain.length + 1);
+        out.write(plain);
+        try {
+            out.close();
+            fail("IOException expected");
+        } catch (IOException e) {
+        }
+    }
+
+    private static void write(ByteBuffer b, ByteArrayOutputStream out) {
+        b.flip();
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        out.write(bytes, 0, bytes.length);
+    }
+    
     @Test
     @Ignore
     public void testDecompressLkml2009() throws Exception {
@@ -108,10 +544,15 @@ public class HU01DecompressorTest {
     }
     
     private void decompress(InputStream hu01Input, InputStream plainInput, String encoding) throws Exception {
+        decompress(hu01Input, plainInput, encoding, new HU01Decompressor());
+    }
+    
+    private void decompress(InputStream hu01Input, InputStream plainInput, String encoding, 
+            HU01Decompressor decompressor) throws Exception {
+        
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         byte[] data = new byte[1024];
         byte[] decoded = new byte[1024];
-        HU01Decompressor decompressor = new HU01Decompressor();
         while (true) {
             int n = hu01Input.read(data);
             if (n == -1) {